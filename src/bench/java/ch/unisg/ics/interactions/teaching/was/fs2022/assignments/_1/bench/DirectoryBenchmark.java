@@ -0,0 +1,200 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.bench;
+
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common.LocalServiceRegistry;
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.Profile;
+import jade.core.ProfileImpl;
+import jade.core.Runtime;
+import jade.core.behaviours.OneShotBehaviour;
+import jade.domain.DFService;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.Property;
+import jade.domain.FIPAAgentManagement.SearchConstraints;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.domain.FIPAException;
+import jade.wrapper.ContainerController;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+
+/**
+ * <p>A DirectoryBenchmark compares the directory latency and throughput of the Directory Facilitator (DF) with
+ * the {@link LocalServiceRegistry}.</p>
+ * <p>The benchmark registers N providers of T service types, each with a room property, and then searches random
+ * service types, and random service types in a room. The DF is measured by an agent of an in-process JADE
+ * platform without GUI, which registers the providers on their behalf, i.e. each registration and search is an
+ * ACL round trip through the mailbox of the DF agent. The local registry is measured with the same operations as
+ * method calls.</p>
+ * <p>Usage: <code>DirectoryBenchmark [registrations] [service types] [searches]</code>, e.g.
+ * <code>./gradlew benchDirectory --args="10000 100 1000"</code>.</p>
+ */
+public class DirectoryBenchmark {
+
+  // The rooms of the providers, i.e. a search in a room finds about 1/ROOMS of the providers of a type
+  private static final int ROOMS = 10;
+
+  /**
+   * <p>A DFClient registers the providers in the DF and searches them, and records the latency of each
+   * operation.</p>
+   */
+  public static class DFClient extends Agent {
+
+    @Override
+    protected void setup() {
+      int registrations = (Integer) getArguments()[0];
+      int types = (Integer) getArguments()[1];
+      int searches = (Integer) getArguments()[2];
+      long[][] latencies = (long[][]) getArguments()[3];
+      CountDownLatch done = (CountDownLatch) getArguments()[4];
+
+      addBehaviour(new OneShotBehaviour(this) {
+        @Override
+        public void action() {
+          try {
+            for (int i = 0; i < registrations; i++) {
+              DFAgentDescription dfd = new DFAgentDescription();
+              dfd.setName(new AID("provider-" + i, AID.ISLOCALNAME));
+              dfd.addServices(service(i % types, i % ROOMS));
+              long start = System.nanoTime();
+              DFService.register(myAgent, dfd);
+              latencies[0][i] = System.nanoTime() - start;
+            }
+
+            // The DF returns at most 100 results by default
+            SearchConstraints all = new SearchConstraints();
+            all.setMaxResults(-1L);
+            Random random = new Random(1);
+            for (int i = 0; i < searches; i++) {
+              DFAgentDescription template = new DFAgentDescription();
+              ServiceDescription sd = new ServiceDescription();
+              sd.setType("service-" + random.nextInt(types));
+              template.addServices(sd);
+              long start = System.nanoTime();
+              DFService.search(myAgent, template, all);
+              latencies[1][i] = System.nanoTime() - start;
+            }
+            for (int i = 0; i < searches; i++) {
+              DFAgentDescription template = new DFAgentDescription();
+              template.addServices(service(random.nextInt(types), random.nextInt(ROOMS)));
+              long start = System.nanoTime();
+              DFService.search(myAgent, template, all);
+              latencies[2][i] = System.nanoTime() - start;
+            }
+          } catch (FIPAException fe) {
+            fe.printStackTrace();
+          }
+          done.countDown();
+        }
+      });
+    }
+
+    private static ServiceDescription service(int type, int room) {
+      ServiceDescription sd = new ServiceDescription();
+      sd.setType("service-" + type);
+      sd.setName("service-" + type);
+      sd.addProperties(new Property("room", String.valueOf(room)));
+      return sd;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int registrations = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int types = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+    int searches = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+    // The DF logs every registration, which would dominate the measurement
+    java.util.logging.Logger root = java.util.logging.Logger.getLogger("");
+    root.setLevel(Level.WARNING);
+    for (Handler handler : root.getHandlers()) {
+      handler.setLevel(Level.WARNING);
+    }
+
+    System.out.printf("%d registrations of %d service types in %d rooms, %d searches%n", registrations, types,
+            ROOMS, searches);
+
+    // The local registry is measured first, so that it runs before the platform threads exist
+    long[][] local = new long[3][];
+    local[0] = new long[registrations];
+    local[1] = new long[searches];
+    local[2] = new long[searches];
+    // Warm up the registry and its callers, and then measure a fresh registry
+    runLocal(LocalServiceRegistry.forPlatform("warm-up"), registrations, types, searches, new long[][]{
+            new long[registrations], new long[searches], new long[searches]});
+    runLocal(LocalServiceRegistry.forPlatform("bench"), registrations, types, searches, local);
+
+    Runtime runtime = Runtime.instance();
+    runtime.setCloseVM(false);
+    Profile profile = new ProfileImpl();
+    profile.setParameter(Profile.GUI, "false");
+    profile.setParameter(Profile.NO_MTP, "true");
+    profile.setParameter(Profile.LOCAL_PORT, "1699");
+    ContainerController container = runtime.createMainContainer(profile);
+
+    long[][] df = new long[3][];
+    df[0] = new long[registrations];
+    df[1] = new long[searches];
+    df[2] = new long[searches];
+    CountDownLatch done = new CountDownLatch(1);
+    container.createNewAgent("DF-CLIENT", DFClient.class.getName(),
+            new Object[]{registrations, types, searches, df, done}).start();
+    done.await();
+
+    report("DF", df);
+    report("local registry", local);
+    container.kill();
+    // The threads of the platform outlive the container
+    System.exit(0);
+  }
+
+  private static void runLocal(LocalServiceRegistry registry, int registrations, int types, int searches,
+                               long[][] latencies) {
+    for (int i = 0; i < registrations; i++) {
+      // The platform does not run yet, so the names of the providers are global
+      AID provider = new AID("provider-" + i + "@bench", AID.ISGUID);
+      Map<String, String> properties = Collections.singletonMap("room", String.valueOf(i % ROOMS));
+      long start = System.nanoTime();
+      registry.register(provider, "service-" + (i % types), properties);
+      latencies[0][i] = System.nanoTime() - start;
+    }
+    Random random = new Random(1);
+    for (int i = 0; i < searches; i++) {
+      String type = "service-" + random.nextInt(types);
+      long start = System.nanoTime();
+      registry.search(type);
+      latencies[1][i] = System.nanoTime() - start;
+    }
+    for (int i = 0; i < searches; i++) {
+      String type = "service-" + random.nextInt(types);
+      Map<String, String> properties = Collections.singletonMap("room", String.valueOf(random.nextInt(ROOMS)));
+      long start = System.nanoTime();
+      registry.search(type, properties);
+      latencies[2][i] = System.nanoTime() - start;
+    }
+  }
+
+  private static void report(String directory, long[][] latencies) {
+    String[] operations = {"register", "search type", "search room"};
+    for (int i = 0; i < operations.length; i++) {
+      List<Long> sorted = new ArrayList<>(latencies[i].length);
+      long total = 0;
+      for (long latency : latencies[i]) {
+        sorted.add(latency);
+        total += latency;
+      }
+      Collections.sort(sorted);
+      System.out.printf("%-15s %-12s %10.0f ops/s, latency p50 %9.1f us, p99 %9.1f us%n", directory,
+              operations[i], sorted.size() / (total / 1e9), percentile(sorted, 0.5), percentile(sorted, 0.99));
+    }
+  }
+
+  private static double percentile(List<Long> sorted, double p) {
+    return sorted.get(Math.min(sorted.size() - 1, (int) (p * sorted.size()))) / 1e3;
+  }
+}
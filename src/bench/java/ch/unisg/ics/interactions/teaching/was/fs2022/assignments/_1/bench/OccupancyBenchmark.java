@@ -0,0 +1,127 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.bench;
+
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.cnp.initiators.RoomManagerAgent;
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.cnp.participants.MultiplexedControllerAgent;
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common.BaseAgent;
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.environment.BuildingEnvironmentAgent;
+import jade.core.Profile;
+import jade.core.ProfileImpl;
+import jade.core.Runtime;
+import jade.wrapper.AgentController;
+import jade.wrapper.ContainerController;
+import jade.wrapper.StaleProxyException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+
+/**
+ * <p>An OccupancyBenchmark measures how the notifications and negotiations of a room manager scale with the
+ * occupied rooms, with and without the argument occupancy-aware of the {@link RoomManagerAgent}.</p>
+ * <p>The benchmark starts an in-process JADE platform without GUI. In each scenario, a headless environment of N
+ * rooms, of which a fraction is occupied, a room manager of the N rooms and a {@link MultiplexedControllerAgent}
+ * with a lamp per room are started. After a warm-up, a driver toggles the illuminance of random rooms between
+ * high and low at a fixed period, i.e. the conditions of the empty rooms change as often as those of the
+ * occupied rooms. The benchmark reports the notifications that the environment sent and the negotiations that
+ * the manager started during the run. Note that a notification of a subscription to all rooms carries the
+ * values of all rooms, while a topic notification carries the value of one room.</p>
+ * <p>Usage: <code>OccupancyBenchmark [rooms] [seconds per scenario] [event period ms]</code>, e.g.
+ * <code>./gradlew benchOccupancy --args="100 10 20"</code>.</p>
+ */
+public class OccupancyBenchmark {
+
+  // The time (in ms) after the start of the agents until the counters are read
+  private static final long WARM_UP = 2000;
+
+  // The fractions of occupied rooms of the scenarios
+  private static final double[] OCCUPIED = {1.0, 0.5, 0.1};
+
+  public static void main(String[] args) throws Exception {
+    int rooms = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+    long seconds = args.length > 1 ? Long.parseLong(args[1]) : 10;
+    long period = args.length > 2 ? Long.parseLong(args[2]) : 20;
+
+    // The agents log every message, which would dominate the measurement
+    java.util.logging.Logger root = java.util.logging.Logger.getLogger("");
+    root.setLevel(Level.WARNING);
+    for (Handler handler : root.getHandlers()) {
+      handler.setLevel(Level.WARNING);
+    }
+
+    Runtime runtime = Runtime.instance();
+    runtime.setCloseVM(false);
+    Profile profile = new ProfileImpl();
+    profile.setParameter(Profile.GUI, "false");
+    profile.setParameter(Profile.NO_MTP, "true");
+    profile.setParameter(Profile.LOCAL_PORT, "1599");
+    ContainerController container = runtime.createMainContainer(profile);
+
+    System.out.printf("%d rooms, an event every %d ms for %d s per scenario%n", rooms, period, seconds);
+    int scenario = 0;
+    for (boolean aware : new boolean[]{false, true}) {
+      for (double occupied : OCCUPIED) {
+        run(container, "-" + scenario++, rooms, (int) Math.round(occupied * rooms), aware, seconds, period);
+      }
+    }
+
+    container.kill();
+    // The threads of the platform outlive the container
+    System.exit(0);
+  }
+
+  private static void run(ContainerController container, String suffix, int rooms, int occupied, boolean aware,
+                          long seconds, long period) throws StaleProxyException, InterruptedException {
+    List<AgentController> controllers = new ArrayList<>();
+
+    // The same notification period for subscriptions to all rooms and to topics
+    BuildingEnvironmentAgent environment = new BuildingEnvironmentAgent();
+    environment.setArguments(new Object[]{"gui=false", "rooms=" + rooms, "occupancy=empty", "notify-period=200",
+            "topic-period=200"});
+    controllers.add(start(container, "ENV" + suffix, environment));
+    while (!environment.isRegistered()) {
+      Thread.sleep(1);
+    }
+    for (int room = 1; room <= occupied; room++) {
+      environment.setOccupancy(String.valueOf(room), "occupied");
+    }
+
+    MultiplexedControllerAgent devices = new MultiplexedControllerAgent();
+    devices.setArguments(new Object[]{"rooms=" + rooms, "lamps=1", "blinds=0"});
+    controllers.add(start(container, "MUX" + suffix, devices));
+    RoomManagerAgent manager = new RoomManagerAgent();
+    manager.setArguments(new Object[]{"rooms=" + rooms, "occupancy-aware=" + aware});
+    controllers.add(start(container, "MNG" + suffix, manager));
+    Thread.sleep(WARM_UP);
+
+    long notificationsBefore = environment.getSentNotifications();
+    int negotiationsBefore = manager.getRuleNegotiations();
+    Random random = new Random(1);
+    long end = System.currentTimeMillis() + seconds * 1000;
+    int events = 0;
+    while (System.currentTimeMillis() < end) {
+      String room = String.valueOf(1 + random.nextInt(rooms));
+      String illuminance = environment.getEnvironmentState(room).getIlluminance();
+      environment.setIlluminance(room, "high".equals(illuminance) ? "low" : "high");
+      events++;
+      Thread.sleep(period);
+    }
+    long notifications = environment.getSentNotifications() - notificationsBefore;
+    int negotiations = manager.getRuleNegotiations() - negotiationsBefore;
+
+    for (AgentController controller : controllers) {
+      controller.kill();
+    }
+    System.out.printf("%-15s %3d%% occupied: %5d events, %6d notifications, %5d negotiations%n",
+            aware ? "occupancy-aware" : "all rooms", 100 * occupied / rooms, events, notifications, negotiations);
+    Thread.sleep(500);
+  }
+
+  private static AgentController start(ContainerController container, String name, BaseAgent agent)
+          throws StaleProxyException {
+    AgentController controller = container.acceptNewAgent(name, agent);
+    controller.start();
+    return controller;
+  }
+}
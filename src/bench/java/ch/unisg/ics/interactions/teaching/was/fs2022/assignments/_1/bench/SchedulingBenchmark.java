@@ -0,0 +1,204 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.bench;
+
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common.PriorityScheduler;
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.environment.BuildingEnvironmentAgent;
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.Profile;
+import jade.core.ProfileImpl;
+import jade.core.Runtime;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.TickerBehaviour;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+import jade.wrapper.AgentController;
+import jade.wrapper.ContainerController;
+import jade.wrapper.StaleProxyException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+
+/**
+ * <p>A SchedulingBenchmark measures the service time of set-illuminance requests to the
+ * {@link BuildingEnvironmentAgent} while the agent fans out notifications to many subscribers, once with plain
+ * round-robin scheduling and once with the {@link PriorityScheduler} and batched fan-outs.</p>
+ * <p>The benchmark starts an in-process JADE platform without GUI. In each phase, a headless environment is
+ * started together with the subscribers, which subscribe to the illuminance, the weather and the topics of all
+ * rooms. A requester sends a set-illuminance request every period, alternating low and high, so that every
+ * request also causes a fan-out of the changed illuminance to all subscribers. The service time is the time
+ * between sending a request and receiving its INFORM.</p>
+ * <p>Usage: <code>SchedulingBenchmark [subscribers] [seconds] [period-ms]</code>, e.g.
+ * <code>./gradlew benchScheduling --args="1000 20 50"</code>.</p>
+ */
+public class SchedulingBenchmark {
+
+  private static final String CONVERSATION = "set-illuminance-bench";
+
+  /**
+   * <p>A Subscriber subscribes to the notifications of the environment and discards them.</p>
+   */
+  public static class Subscriber extends Agent {
+
+    @Override
+    protected void setup() {
+      AID environment = new AID((String) getArguments()[0], AID.ISLOCALNAME);
+      AtomicLong received = (AtomicLong) getArguments()[1];
+      for (String serviceType : new String[]{"read-illuminance", "read-weather", "building/#"}) {
+        ACLMessage msg = new ACLMessage(ACLMessage.SUBSCRIBE);
+        msg.addReceiver(environment);
+        msg.setContent(serviceType);
+        msg.setConversationId("subscribe-" + serviceType);
+        send(msg);
+      }
+      addBehaviour(new CyclicBehaviour(this) {
+        @Override
+        public void action() {
+          ACLMessage msg = receive();
+          if (msg != null) {
+            if (msg.getPerformative() == ACLMessage.INFORM) {
+              received.incrementAndGet();
+            }
+          } else {
+            block();
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * <p>A Requester periodically sends a set-illuminance request and records its service time. A request is
+   * only sent once the previous request was served.</p>
+   */
+  public static class Requester extends Agent {
+
+    private long sentAt = -1;
+    private int requests = 0;
+
+    @Override
+    protected void setup() {
+      AID environment = new AID((String) getArguments()[0], AID.ISLOCALNAME);
+      long period = (Long) getArguments()[1];
+      @SuppressWarnings("unchecked")
+      List<Long> serviceTimes = (List<Long>) getArguments()[2];
+
+      addBehaviour(new TickerBehaviour(this, period) {
+        @Override
+        protected void onTick() {
+          if (sentAt >= 0) {
+            return;
+          }
+          ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+          msg.addReceiver(environment);
+          msg.setContent(requests++ % 2 == 0 ? "low" : "high");
+          msg.setConversationId(CONVERSATION);
+          msg.setReplyWith(CONVERSATION + "-" + requests);
+          sentAt = System.nanoTime();
+          send(msg);
+        }
+      });
+      addBehaviour(new CyclicBehaviour(this) {
+        private final MessageTemplate template = MessageTemplate.MatchConversationId(CONVERSATION);
+
+        @Override
+        public void action() {
+          ACLMessage msg = receive(template);
+          if (msg != null && sentAt >= 0) {
+            serviceTimes.add(System.nanoTime() - sentAt);
+            sentAt = -1;
+          } else if (msg == null) {
+            block();
+          }
+        }
+      });
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int subscribers = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    long seconds = args.length > 1 ? Long.parseLong(args[1]) : 20;
+    long period = args.length > 2 ? Long.parseLong(args[2]) : 50;
+
+    // The agents log every notification, which would dominate the measurement
+    java.util.logging.Logger root = java.util.logging.Logger.getLogger("");
+    root.setLevel(Level.WARNING);
+    for (Handler handler : root.getHandlers()) {
+      handler.setLevel(Level.WARNING);
+    }
+
+    Runtime runtime = Runtime.instance();
+    runtime.setCloseVM(false);
+    Profile profile = new ProfileImpl();
+    profile.setParameter(Profile.GUI, "false");
+    profile.setParameter(Profile.NO_MTP, "true");
+    profile.setParameter(Profile.LOCAL_PORT, "1299");
+    ContainerController container = runtime.createMainContainer(profile);
+
+    System.out.printf("%d subscribers, a request every %d ms for %d s%n", subscribers, period, seconds);
+    run(container, "round-robin", new String[]{"starvation-limit=0", "fan-out-batch=0"},
+            subscribers, seconds, period);
+    run(container, "prioritized", new String[]{"starvation-limit=8", "fan-out-batch=64"},
+            subscribers, seconds, period);
+
+    container.kill();
+    // The threads of the platform outlive the container
+    System.exit(0);
+  }
+
+  private static void run(ContainerController container, String phase, String[] schedulingArgs, int subscribers,
+                          long seconds, long period) throws StaleProxyException, InterruptedException {
+    String environmentName = "ENV-" + phase;
+    List<Object> environmentArgs = new ArrayList<>();
+    Collections.addAll(environmentArgs, "gui=false", "topic-period=" + period, "sweep-period=0");
+    Collections.addAll(environmentArgs, (Object[]) schedulingArgs);
+    AgentController environment = container.createNewAgent(environmentName,
+            BuildingEnvironmentAgent.class.getName(), environmentArgs.toArray());
+    environment.start();
+
+    AtomicLong received = new AtomicLong();
+    List<AgentController> agents = new ArrayList<>(subscribers + 1);
+    for (int i = 0; i < subscribers; i++) {
+      AgentController subscriber = container.createNewAgent(phase + "-sub-" + i, Subscriber.class.getName(),
+              new Object[]{environmentName, received});
+      subscriber.start();
+      agents.add(subscriber);
+    }
+    Thread.sleep(3000);
+
+    List<Long> serviceTimes = Collections.synchronizedList(new ArrayList<>());
+    long receivedBefore = received.get();
+    AgentController requester = container.createNewAgent(phase + "-requester", Requester.class.getName(),
+            new Object[]{environmentName, period, serviceTimes});
+    requester.start();
+    agents.add(requester);
+    Thread.sleep(seconds * 1000);
+    long notifications = received.get() - receivedBefore;
+
+    for (AgentController agent : agents) {
+      agent.kill();
+    }
+    environment.kill();
+
+    List<Long> sorted;
+    synchronized (serviceTimes) {
+      sorted = new ArrayList<>(serviceTimes);
+    }
+    Collections.sort(sorted);
+    if (sorted.isEmpty()) {
+      System.out.printf("%-12s no request was served%n", phase);
+      return;
+    }
+    System.out.printf("%-12s %5d requests, service time p50 %6.2f ms, p99 %7.2f ms, max %7.2f ms, "
+                    + "%d notifications delivered%n", phase, sorted.size(), percentile(sorted, 0.5),
+            percentile(sorted, 0.99), sorted.get(sorted.size() - 1) / 1e6, notifications);
+    Thread.sleep(1000);
+  }
+
+  private static double percentile(List<Long> sorted, double p) {
+    return sorted.get(Math.min(sorted.size() - 1, (int) (p * sorted.size()))) / 1e6;
+  }
+}
@@ -0,0 +1,74 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.bench;
+
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.environment.SensorTraceReader;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * <p>A SensorTraceGenerator writes a synthetic building sensor trace that can be read by the
+ * {@link SensorTraceReader}, e.g. for load-testing managers when no recorded trace is at hand.</p>
+ * <p>The daylight follows a daily cycle, and the weather changes between sunny and cloudy at random,
+ * which dims the daylight. Each room has its own share of the daylight.</p>
+ * <p>Usage: <code>SensorTraceGenerator &lt;file&gt; [days] [rooms] [interval-s] [csv|binary]</code>,
+ * e.g. <code>./gradlew generateTrace --args="/tmp/trace.csv 90 10 60 csv"</code>.</p>
+ */
+public class SensorTraceGenerator {
+
+  private static final long DAY = 24 * 60 * 60 * 1000L;
+
+  public static void main(String[] args) throws IOException {
+    Path path = Paths.get(args.length > 0 ? args[0] : "trace.csv");
+    int days = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+    int rooms = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+    long interval = (args.length > 3 ? Long.parseLong(args[3]) : 60) * 1000L;
+    boolean binary = args.length > 4 && "binary".equals(args[4]);
+
+    Random random = new Random(42);
+    double[] roomShare = new double[rooms];
+    for (int room = 0; room < rooms; room++) {
+      roomShare[room] = 0.5 + random.nextDouble();
+    }
+
+    long start = 1_640_995_200_000L; // 2022-01-01T00:00:00Z
+    long readings = 0;
+    boolean cloudy = false;
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path), 1 << 16);
+         DataOutputStream data = new DataOutputStream(out)) {
+      if (binary) {
+        data.writeInt(SensorTraceReader.MAGIC);
+      } else {
+        out.write("timestamp,room,lux,weather\n".getBytes(StandardCharsets.US_ASCII));
+      }
+      for (long time = start; time < start + days * DAY; time += interval) {
+        if (random.nextDouble() < 0.01) {
+          cloudy = !cloudy;
+        }
+        // Daylight between 6:00 and 18:00, peaking at noon
+        double dayPhase = ((time - start) % DAY) / (double) DAY;
+        double daylight = Math.max(0, Math.sin((dayPhase - 0.25) * 2 * Math.PI)) * (cloudy ? 300 : 1000);
+        for (int room = 0; room < rooms; room++) {
+          int lux = (int) (daylight * roomShare[room] + random.nextInt(20));
+          if (binary) {
+            data.writeLong(time);
+            data.writeInt(room + 1);
+            data.writeInt(lux);
+            data.writeByte(cloudy ? 1 : 0);
+          } else {
+            out.write((time + "," + (room + 1) + "," + lux + "," + (cloudy ? "cloudy" : "sunny") + "\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+          }
+          readings++;
+        }
+      }
+    }
+    System.out.println("Wrote " + readings + " readings to " + path + " (" + Files.size(path) + " bytes)");
+  }
+}
@@ -0,0 +1,39 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.bench;
+
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.environment.SharedStateChannel;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * <p>A SharedStateSimulator is an out-of-process sensor simulator that writes readings to the memory-mapped
+ * state file of the environment (see {@link SharedStateChannel}) as fast as possible, and reports the write
+ * rate.</p>
+ * <p>Usage: <code>SharedStateSimulator &lt;file&gt; [rooms] [seconds]</code>, e.g.
+ * <code>./gradlew simulateSharedState --args="/tmp/state.shm 10 30"</code> while the environment runs with
+ * <code>shared-state=/tmp/state.shm,shared-rooms=10</code>.</p>
+ */
+public class SharedStateSimulator {
+
+  public static void main(String[] args) throws IOException {
+    String path = args.length > 0 ? args[0] : "state.shm";
+    int rooms = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+    long seconds = args.length > 2 ? Long.parseLong(args[2]) : 10;
+
+    try (SharedStateChannel channel = SharedStateChannel.open(Paths.get(path), rooms)) {
+      long start = System.nanoTime();
+      long end = start + seconds * 1_000_000_000L;
+      long writes = 0;
+      while (System.nanoTime() < end) {
+        for (int slot = 0; slot < channel.getRooms(); slot++) {
+          // The illuminance alternates between low and high every million writes
+          int lux = (writes / 1_000_000) % 2 == 0 ? 800 : 100;
+          channel.write(slot, lux, slot % 2 == 0 ? "sunny" : "cloudy", System.currentTimeMillis());
+          writes++;
+        }
+      }
+      double elapsed = (System.nanoTime() - start) / 1e9;
+      System.out.printf("Wrote %d readings in %.1f s (%.0f readings/s)%n", writes, elapsed, writes / elapsed);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.bench;
+
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.cnp.initiators.LuxTrend;
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.environment.SensorTraceReader;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>A TrendEvaluation measures how well the {@link LuxTrend} of the room manager predicts that the illuminance
+ * of a room becomes low, by running the prediction over a recorded or generated sensor trace (see
+ * {@link SensorTraceReader} and {@link SensorTraceGenerator}).</p>
+ * <p>For every room, each crossing of the threshold from high to low is counted as a hit if the trend predicted
+ * it (i.e. if a prediction was raised before the crossing), and as a miss otherwise. A prediction that is not
+ * followed by a crossing within twice the horizon is counted as a false alarm. The lead time is the time between
+ * the prediction and the crossing.</p>
+ * <p>Usage: <code>TrendEvaluation &lt;trace&gt; [low-lux] [window] [horizon-s]</code>, e.g.
+ * <code>./gradlew evaluateTrend --args="/tmp/trace.csv 300 8 900"</code>.</p>
+ */
+public class TrendEvaluation {
+
+  /**
+   * <p>The prediction state of a room.</p>
+   */
+  private static class Room {
+    private final LuxTrend trend;
+    private boolean low = false;
+    private long alarm = -1;
+
+    private Room(int window) {
+      trend = new LuxTrend(window);
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    String trace = args.length > 0 ? args[0] : "trace.csv";
+    int lowLux = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+    int window = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+    long horizon = (args.length > 3 ? Long.parseLong(args[3]) : 900) * 1000L;
+
+    Map<String, Room> rooms = new HashMap<>();
+    long crossings = 0;
+    long hits = 0;
+    long falseAlarms = 0;
+    long leadTime = 0;
+
+    try (SensorTraceReader reader = new SensorTraceReader(Paths.get(trace))) {
+      SensorTraceReader.Reading reading;
+      while ((reading = reader.next()) != null) {
+        Room room = rooms.computeIfAbsent(reading.room, id -> new Room(window));
+        boolean cloudy = "cloudy".equals(reading.weather);
+        room.trend.add(reading.timestamp, reading.lux, cloudy);
+        boolean low = reading.lux < lowLux;
+
+        if (room.alarm >= 0 && reading.timestamp - room.alarm > 2 * horizon) {
+          falseAlarms++;
+          room.alarm = -1;
+        }
+        if (low && !room.low) {
+          crossings++;
+          if (room.alarm >= 0) {
+            hits++;
+            leadTime += reading.timestamp - room.alarm;
+            room.alarm = -1;
+          }
+        } else if (!low && room.alarm < 0 && room.trend.size() > 1
+                && room.trend.predict(reading.timestamp + horizon, cloudy) < lowLux) {
+          room.alarm = reading.timestamp;
+        }
+        room.low = low;
+      }
+      System.out.printf("Evaluated %d readings of %d rooms (low-lux=%d, window=%d, horizon=%d s)%n",
+              reader.getReadings(), rooms.size(), lowLux, window, horizon / 1000);
+    }
+
+    System.out.printf("Crossings: %d, predicted: %d (recall %.1f %%), false alarms: %d (precision %.1f %%)%n",
+            crossings, hits, crossings == 0 ? 0 : 100.0 * hits / crossings, falseAlarms,
+            hits + falseAlarms == 0 ? 0 : 100.0 * hits / (hits + falseAlarms));
+    System.out.printf("Mean lead time: %.1f s%n", hits == 0 ? 0 : leadTime / 1000.0 / hits);
+  }
+}
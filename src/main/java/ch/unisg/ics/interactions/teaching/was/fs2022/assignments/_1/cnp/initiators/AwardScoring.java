@@ -0,0 +1,57 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.cnp.initiators;
+
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common.Bid;
+
+/**
+ * <p>An AwardScoring ranks the bids that a {@link RoomManagerAgent} receives in a Contract Net protocol. The
+ * bid with the highest score is awarded the contract. The preferences of the active rules of the manager (see
+ * {@link RuleNetwork}) are added to the score.</p>
+ * <p>Three scorings are provided:</p>
+ * <ul>
+ * <li>{@link #WEATHER}: the original rule, i.e. raising the blinds is good if the weather is sunny, and
+ * turning on the light is good if the weather is cloudy
+ * <li>{@link #weighted(double, double, double, double)}: a linear combination of the attributes of the bid,
+ * where the lux gain of raising the blinds is reduced if the weather is cloudy
+ * <li>{@link #NONE}: all bids score 0, i.e. only the preferences of the rules rank the bids
+ * </ul>
+ */
+public interface AwardScoring {
+
+  // The share of the daylight that is left if the weather is cloudy
+  double CLOUDY_DAYLIGHT = 0.3;
+
+  AwardScoring WEATHER = (bid, weather) -> (("cloudy".equals(weather) && "turn-on-light".equals(bid.getMechanism()))
+          || ("sunny".equals(weather) && "raise-blinds".equals(bid.getMechanism()))) ? 1 : 0;
+
+  AwardScoring NONE = (bid, weather) -> 0;
+
+  /**
+   * Scores a bid.
+   *
+   * @param bid     the bid
+   * @param weather the perceived weather of the room, i.e. sunny, cloudy or empty if not perceived yet
+   * @return the score, where higher is better
+   */
+  double score(Bid bid, String weather);
+
+  /**
+   * Creates a scoring that rewards the expected lux gain, and penalizes the energy cost, the latency and
+   * the price of a bid.
+   *
+   * @param luxWeight     the weight of the expected lux gain
+   * @param energyWeight  the weight of the energy cost
+   * @param latencyWeight the weight of the latency in ms
+   * @param priceWeight   the weight of the price
+   * @return the scoring
+   */
+  static AwardScoring weighted(double luxWeight, double energyWeight, double latencyWeight, double priceWeight) {
+    return (bid, weather) -> {
+      double luxGain = bid.getLuxGain();
+      if ("raise-blinds".equals(bid.getMechanism()) && "cloudy".equals(weather)) {
+        luxGain *= CLOUDY_DAYLIGHT;
+      }
+      return luxWeight * luxGain - energyWeight * bid.getEnergyCost() - latencyWeight * bid.getLatency()
+              - priceWeight * bid.getPrice();
+    };
+  }
+}
@@ -0,0 +1,117 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.cnp.initiators;
+
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common.Bid;
+
+/**
+ * <p>A BidRanking selects the k best bids of a Contract Net protocol in a single pass over the proposals, i.e.
+ * in O(n log k) time and O(k) space for n proposals, without keeping or sorting all proposals.</p>
+ * <p>The selected bids are kept in a min-heap of size k, whose root is the worst selected bid. A new bid
+ * replaces the root only if it is better. Bids with equal scores are ranked by their arrival, i.e. the earlier
+ * bid is better.</p>
+ */
+class BidRanking {
+
+  private final Bid[] bids;
+  private final double[] scores;
+  private final long[] arrivals;
+  private int size = 0;
+  private long offered = 0;
+
+  BidRanking(int k) {
+    if (k < 1) {
+      throw new IllegalArgumentException("Invalid number of ranked bids: " + k);
+    }
+    bids = new Bid[k];
+    scores = new double[k];
+    arrivals = new long[k];
+  }
+
+  /**
+   * Offers a bid to the ranking.
+   *
+   * @param bid   the bid
+   * @param score the score of the bid, where higher is better
+   */
+  void offer(Bid bid, double score) {
+    long arrival = offered++;
+    if (size < bids.length) {
+      set(size, bid, score, arrival);
+      siftUp(size++);
+    } else if (isBetter(score, arrival, 0)) {
+      set(0, bid, score, arrival);
+      siftDown(0);
+    }
+  }
+
+  /**
+   * Returns the number of bids that were offered to the ranking.
+   *
+   * @return the number of offered bids
+   */
+  long getOffered() {
+    return offered;
+  }
+
+  /**
+   * Removes the selected bids from the ranking.
+   *
+   * @return the selected bids, the best bid first
+   */
+  Bid[] drainDescending() {
+    Bid[] ranked = new Bid[size];
+    while (size > 0) {
+      ranked[size - 1] = bids[0];
+      size--;
+      set(0, bids[size], scores[size], arrivals[size]);
+      bids[size] = null;
+      siftDown(0);
+    }
+    return ranked;
+  }
+
+  private void set(int i, Bid bid, double score, long arrival) {
+    bids[i] = bid;
+    scores[i] = score;
+    arrivals[i] = arrival;
+  }
+
+  // Whether a bid is better than the bid at position i
+  private boolean isBetter(double score, long arrival, int i) {
+    return score > scores[i] || (score == scores[i] && arrival < arrivals[i]);
+  }
+
+  private void siftUp(int i) {
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+      if (!isBetter(scores[parent], arrivals[parent], i)) {
+        return;
+      }
+      swap(i, parent);
+      i = parent;
+    }
+  }
+
+  private void siftDown(int i) {
+    while (true) {
+      int worst = i;
+      for (int child = 2 * i + 1; child <= 2 * i + 2 && child < size; child++) {
+        if (isBetter(scores[worst], arrivals[worst], child)) {
+          worst = child;
+        }
+      }
+      if (worst == i) {
+        return;
+      }
+      swap(i, worst);
+      i = worst;
+    }
+  }
+
+  private void swap(int i, int j) {
+    Bid bid = bids[i];
+    double score = scores[i];
+    long arrival = arrivals[i];
+    set(i, bids[j], scores[j], arrivals[j]);
+    set(j, bid, score, arrival);
+  }
+}
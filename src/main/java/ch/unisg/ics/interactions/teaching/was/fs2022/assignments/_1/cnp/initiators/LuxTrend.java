@@ -0,0 +1,101 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.cnp.initiators;
+
+/**
+ * <p>A LuxTrend keeps a rolling window of the last measured illuminance values of a room and estimates their
+ * trend with a least-squares line, so that a {@link RoomManagerAgent} can predict that the illuminance will
+ * become low before it actually does.</p>
+ * <p>The window is a ring buffer of a fixed size, i.e. adding a measurement does not create objects. The
+ * weather of each measurement is kept as well: If the weather turns cloudy after the last measurement, the
+ * prediction is reduced to the share of the daylight that is left under a cloudy sky.</p>
+ */
+public class LuxTrend {
+
+  private final long[] timestamps;
+  private final int[] lux;
+  private final boolean[] cloudy;
+
+  // The position of the next measurement, and the number of measurements in the window
+  private int next = 0;
+  private int size = 0;
+
+  public LuxTrend(int window) {
+    if (window < 2) {
+      throw new IllegalArgumentException("Invalid trend window: " + window);
+    }
+    timestamps = new long[window];
+    lux = new int[window];
+    cloudy = new boolean[window];
+  }
+
+  /**
+   * Adds a measurement to the window, and drops the oldest measurement if the window is full.
+   *
+   * @param timestamp the time of the measurement in ms
+   * @param lux       the measured illuminance in lux
+   * @param cloudy    whether the weather was cloudy
+   */
+  public void add(long timestamp, int lux, boolean cloudy) {
+    timestamps[next] = timestamp;
+    this.lux[next] = lux;
+    this.cloudy[next] = cloudy;
+    next = (next + 1) % timestamps.length;
+    size = Math.min(size + 1, timestamps.length);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Drops all measurements, e.g. after the illuminance was changed by an actuator.
+   */
+  public void clear() {
+    size = 0;
+  }
+
+  /**
+   * Returns the slope of the least-squares line through the measurements of the window.
+   *
+   * @return the trend in lux per ms, or 0 if there are less than two measurements
+   */
+  public double getSlope() {
+    if (size < 2) {
+      return 0;
+    }
+    // Times are taken relative to the newest measurement to keep the sums small
+    long newest = timestamps[(next - 1 + timestamps.length) % timestamps.length];
+    double sumT = 0;
+    double sumL = 0;
+    double sumTT = 0;
+    double sumTL = 0;
+    for (int i = 0; i < size; i++) {
+      int j = (next - 1 - i + timestamps.length) % timestamps.length;
+      double t = timestamps[j] - newest;
+      sumT += t;
+      sumL += lux[j];
+      sumTT += t * t;
+      sumTL += t * lux[j];
+    }
+    double denominator = size * sumTT - sumT * sumT;
+    return denominator == 0 ? 0 : (size * sumTL - sumT * sumL) / denominator;
+  }
+
+  /**
+   * Predicts the illuminance at a future time by extrapolating the trend from the newest measurement.
+   *
+   * @param timestamp the time of the prediction in ms
+   * @param cloudy    whether the weather is cloudy now
+   * @return the predicted illuminance in lux, or NaN if the window is empty
+   */
+  public double predict(long timestamp, boolean cloudy) {
+    if (size == 0) {
+      return Double.NaN;
+    }
+    int newest = (next - 1 + timestamps.length) % timestamps.length;
+    double prediction = lux[newest] + getSlope() * (timestamp - timestamps[newest]);
+    if (cloudy && !this.cloudy[newest]) {
+      prediction *= AwardScoring.CLOUDY_DAYLIGHT;
+    }
+    return prediction;
+  }
+}
@@ -1,17 +1,34 @@
 package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.cnp.initiators;
 
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common.Bid;
 import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common.CNPInitiator;
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common.MailboxPolicy;
 import jade.core.AID;
 import jade.core.behaviours.Behaviour;
 import jade.core.behaviours.CyclicBehaviour;
-import jade.core.behaviours.WakerBehaviour;
+import jade.core.behaviours.OneShotBehaviour;
+import jade.core.behaviours.ParallelBehaviour;
+import jade.core.behaviours.SequentialBehaviour;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
 import jade.util.Logger;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 
 import static jade.lang.acl.MessageTemplate.MatchPerformative;
 
@@ -31,7 +48,38 @@ import static jade.lang.acl.MessageTemplate.MatchPerformative;
  * in the <a href="http://www.fipa.org/specs/fipa00029/SC00029H.html">FIPA Contract Net
  * Interaction Protocol</a>. If the MNG perceives that the illuminance is low, it sends calls for proposals
  * (CFPs) to agents that offer the raise-illuminance service.
- * (See {@link PerformContractNetProtocol}).</p>
+ * (See {@link PerformContractNetProtocol}).
+ * The proposals are ranked with an {@link AwardScoring}, which is selected with the argument scoring=weighted
+ * (the default, with the arguments weight-lux, weight-energy, weight-latency and weight-price) or scoring=weather,
+ * or provided by overriding {@link #createScoring()}.
+ * The participants that are not awarded are sent a REJECT PROPOSAL, which releases the capacity that their
+ * proposals reserved. An awarded contract lasts until the MNG negotiates the same service for the room again,
+ * i.e. when the conditions that the contract maintained are gone, or until the MNG is taken down: The MNG then
+ * ends the conversation of the contract with a CANCEL, which releases the device of the participant.</p>
+ *
+ * <p>If the illuminance notifications carry the measured lux, the MNG keeps a rolling window of the measurements
+ * (see {@link LuxTrend}) and starts negotiating as soon as the trend predicts that the lux falls below the
+ * threshold low-lux within trend-horizon ms, i.e. before the illuminance is actually perceived as low.</p>
+ * <p>With the argument rooms=N, the MNG manages the rooms 1 to N of a building at once: It subscribes once
+ * to the conditions of all rooms (see {@link HandleRoomPercepts}), shares the DF lookups among all rooms, and
+ * keeps the perceived conditions and the negotiation state of the rooms in compact tables indexed by room
+ * (see {@link RoomTable}), so that the overhead per room is a few bytes.</p>
+ * <p>The decisions of the MNG are declared as rules over the perceived facts of each room (see {@link RuleNetwork}),
+ * which are read from the file given with the argument rules=file, or from the built-in rules/room-manager.rules.
+ * A rule either starts a Contract Net protocol for a service when it is activated (e.g. when the illuminance
+ * becomes low), or adds a preference to the score of the bids with a mechanism while it is active.</p>
+ * <p>With the argument occupancy-aware=true, the MNG subscribes to the occupancy topics of its rooms (see
+ * {@link HandleTopicPercepts}), and only perceives the illuminance of and negotiates for the rooms that are
+ * occupied: When a room becomes empty, the MNG cancels its subscription to the illuminance of the room, and
+ * does not start new negotiations for it (a running negotiation is completed). When the room becomes occupied
+ * again, the MNG subscribes again, and the current illuminance that the environment sends with the AGREE
+ * refreshes the facts of the room, so that the negotiations of the rules that are still active are started.
+ * The weather is perceived regardless of the occupancy.</p>
+ *
+ * <p>The MNG starts perceiving the environment as soon as the DF knows providers of all the services it needs,
+ * i.e. there is no fixed start-up delay, and logs how long after the start of the JVM its first Contract Net
+ * protocol was completed.</p>
+ *
  * <p> NOTE: This is the only class that needs to be changed for implementing Task 2 of this assignment.
  * You need to implement parts of the {@link PerformContractNetProtocol} to enable the MNG to successfully
  * perform the Contract Net Protocol.</p>
@@ -40,33 +88,375 @@ public class RoomManagerAgent extends CNPInitiator {
 
   private final static Logger LOGGER = Logger.getJADELogger(RoomManagerAgent.class.getName());
 
+  // The built-in rules, and the rules that are used if no rules can be loaded
+  private final static String DEFAULT_RULES = "/rules/room-manager.rules";
+  private final static String FALLBACK_RULE = "rule low-illuminance: illuminance = low -> negotiate increase-illuminance"
+          + "\nrule predicted-low-illuminance: illuminance = high and predicted-illuminance = low "
+          + "-> negotiate increase-illuminance";
+
   private String perceivedIlluminance = "";
   private String perceivedWeather = "";
 
+  // The latest illuminance version of the single room that the agent perceived, which the awarded
+  // participant expects when it sets the illuminance, or -1 if no version was perceived
+  private long perceivedVersion = -1;
+
+  // The perceived conditions of the managed rooms, or null if the agent manages a single room
+  private RoomTable rooms;
+
+  // The scoring that ranks the proposals of a Contract Net protocol
+  private AwardScoring scoring;
+
+  // The number of best proposals that are kept per Contract Net protocol, i.e. the awarded proposal and the
+  // proposals that are awarded if the previous awardees fail
+  private int awardCandidates;
+
+  // The time (in ms) that a Contract Net protocol waits for the proposals, and for the result of an awarded
+  // contract before it awards the next best proposal
+  private long proposalTimeout;
+  private long awardTimeout;
+
+  // The trend of the measured illuminance of a single room, the lux below which the illuminance is low,
+  // and how far ahead (in ms) the trend is extrapolated. A horizon of 0 disables predictive negotiations.
+  private LuxTrend trend;
+  private int lowLux;
+  private long trendHorizon;
+
+  // Whether a Contract Net protocol is running for the single room, and whether the trend predicts low illuminance
+  private boolean negotiating = false;
+  private boolean predicted = false;
+
+  // The rules that map the perceived facts of the rooms to negotiations and preferences, and the number of
+  // negotiations that the rules started
+  private RuleNetwork rules;
+  private volatile int ruleNegotiations = 0;
+
+  // Whether the agent only perceives the illuminance of, and negotiates for, the occupied rooms
+  private boolean occupancyAware = false;
+
+  // Per room of the rule network (i.e. the single room 0, or the rooms 1 to N): whether the room is perceived
+  // as occupied, whether the agent subscribed to its illuminance, and whether the illuminance that refreshes the
+  // room after the subscription was not perceived yet
+  private boolean[] occupied;
+  private boolean[] perceiving;
+  private boolean[] refreshing;
+
+  // Per room of the rule network: the negotiate rule that was activated while a Contract Net protocol was
+  // running for the room, which is negotiated once the protocol terminates if it is still active
+  private RuleNetwork.Rule[] deferredNegotiations;
+
+  // The handlers of the rules that start negotiations, and of the illuminance of the single room
+  private StartNegotiations startNegotiations;
+  private HandleIlluminancePercept illuminancePercepts;
+
+  // Whether a Contract Net protocol has been completed successfully since the start of the agent
+  private boolean firstCompleted = false;
+
+  // The contracts that were awarded and not cancelled yet, i.e. the ACCEPT PROPOSAL messages of the successful
+  // Contract Net protocols, by room and service type
+  private final Map<String, ACLMessage> contracts = new HashMap<>();
+
+  // The prefix and the counter of the reply-with values of the CFP and ACCEPT PROPOSAL messages. A re-negotiation
+  // or a re-award in the same ms must not reuse the id of a closed conversation, whose replies are swept.
+  private String replyWithPrefix;
+  private long replyWiths = 0;
+
   protected void setup() {
+    super.setup();
+    replyWithPrefix = getLocalName() + "-" + UUID.randomUUID() + "-";
 
     LOGGER.info("Hello world! Room manager agent " + getLocalName() + " is set up.");
 
-    addBehaviour(
-            new WakerBehaviour(this, 5000) {
-              public void onWake() {
-                addBehaviour(new PerceiveEnvironment("read-illuminance", new HandleIlluminancePercept()));
-                addBehaviour(new PerceiveEnvironment("read-weather", new HandleWeatherPercept()));
-              }
-            });
+    // The argument rooms=N enables the management of the rooms 1 to N
+    int roomCount = Integer.parseInt(getArgument("rooms", "0"));
+    if (roomCount > 0) {
+      rooms = new RoomTable(roomCount);
+    }
+
+    scoring = createScoring();
+    awardCandidates = Integer.parseInt(getArgument("award-candidates", "3"));
+    proposalTimeout = Long.parseLong(getArgument("proposal-timeout", "1000"));
+    awardTimeout = Long.parseLong(getArgument("award-timeout", "5000"));
+
+    trend = new LuxTrend(Integer.parseInt(getArgument("trend-window", "8")));
+    lowLux = Integer.parseInt(getArgument("low-lux", "300"));
+    trendHorizon = Long.parseLong(getArgument("trend-horizon", "10000"));
+
+    // The rules are evaluated for the single room 0, or for the rooms 1 to N
+    rules = loadRules(roomCount + 1);
+    startNegotiations = new StartNegotiations();
+    rules.setListener(startNegotiations);
+
+    // The argument occupancy-aware=true suspends the perception of the illuminance and the negotiations of
+    // empty rooms
+    occupancyAware = Boolean.parseBoolean(getArgument("occupancy-aware", "false"));
+    occupied = new boolean[roomCount + 1];
+    perceiving = new boolean[roomCount + 1];
+    refreshing = new boolean[roomCount + 1];
+    deferredNegotiations = new RuleNetwork.Rule[roomCount + 1];
+    illuminancePercepts = new HandleIlluminancePercept();
+
+    // The searches run in parallel, and the agent perceives the environment once all of them are completed
+    ParallelBehaviour searches = new ParallelBehaviour(this, ParallelBehaviour.WHEN_ALL);
 
     // Search services in the DF for reading the illuminance
     // This service is used to simulate the manager agent's ability to perceive the illuminance of the environment
     // (e.g. through sensors)
-    addBehaviour(new SearchServiceBehavior("read-illuminance"));
+    searches.addSubBehaviour(new SearchServiceBehavior("read-illuminance"));
 
     // Search services in the DF for reading the illuminance
     // This service is used to simulate the manager agent's ability to perceive the weather conditions
     // (e.g. by using a third-party weather service)
-    addBehaviour(new SearchServiceBehavior("read-weather"));
+    searches.addSubBehaviour(new SearchServiceBehavior("read-weather"));
 
     // Search services in the DF for increasing the illuminance (e.g. in case the illuminance is low)
-    addBehaviour(new SearchServiceBehavior("increase-illuminance"));
+    searches.addSubBehaviour(new SearchServiceBehavior("increase-illuminance"));
+
+    SequentialBehaviour startUp = new SequentialBehaviour(this);
+    startUp.addSubBehaviour(searches);
+    startUp.addSubBehaviour(new OneShotBehaviour(this) {
+      @Override
+      public void action() {
+        LOGGER.info("Services discovered " + ManagementFactory.getRuntimeMXBean().getUptime()
+                + " ms after start. Perceiving the environment.");
+        if (occupancyAware) {
+          // The illuminance of a room is perceived once the room is perceived as occupied
+          addBehaviour(new PerceiveEnvironment("read-illuminance",
+                  rooms == null ? "building/*/1/occupancy" : "building/*/*/occupancy", new HandleTopicPercepts()));
+          addBehaviour(new PerceiveEnvironment("read-weather", rooms == null ? new HandleWeatherPercept()
+                  : new HandleRoomPercepts("read-weather")));
+        } else if (rooms == null) {
+          addBehaviour(new PerceiveEnvironment("read-illuminance", illuminancePercepts));
+          addBehaviour(new PerceiveEnvironment("read-weather", new HandleWeatherPercept()));
+        } else {
+          addBehaviour(new PerceiveEnvironment("read-illuminance", new HandleRoomPercepts("read-illuminance")));
+          addBehaviour(new PerceiveEnvironment("read-weather", new HandleRoomPercepts("read-weather")));
+        }
+      }
+    });
+    addBehaviour(startUp);
+  }
+
+  @Override
+  protected void takeDown() {
+    for (ACLMessage contract : contracts.values()) {
+      cancelContract(contract);
+    }
+    contracts.clear();
+    super.takeDown();
+  }
+
+  /**
+   * Ends the conversation of a contract with a CANCEL, which releases the device of the participant.
+   *
+   * @param accept the ACCEPT PROPOSAL message of the contract
+   */
+  private void cancelContract(ACLMessage accept) {
+    ACLMessage cancel = new ACLMessage(ACLMessage.CANCEL);
+    Iterator<?> receivers = accept.getAllReceiver();
+    cancel.addReceiver((AID) receivers.next());
+    cancel.setContent(accept.getContent());
+    if (accept.getUserDefinedParameter(ROOM_PARAMETER) != null) {
+      cancel.addUserDefinedParameter(ROOM_PARAMETER, accept.getUserDefinedParameter(ROOM_PARAMETER));
+    }
+    cancel.setConversationId(accept.getConversationId());
+    cancel.setInReplyTo(accept.getReplyWith());
+    sendMessage(cancel);
+    LOGGER.info("CANCEL " + accept.getContent());
+  }
+
+  /**
+   * Returns the policy that bounds the mailbox of the agent. If the agent is aware of the occupancy of many rooms
+   * and no telemetry capacity is given, the telemetry lane holds at least an occupancy and an illuminance
+   * notification of each room, since the environment sends the current occupancy of all rooms at once.
+   *
+   * @return the mailbox policy of the agent
+   */
+  @Override
+  protected MailboxPolicy getMailboxPolicy() {
+    MailboxPolicy policy = super.getMailboxPolicy();
+    int topics = 2 * Integer.parseInt(getArgument("rooms", "0"));
+    if (!Boolean.parseBoolean(getArgument("occupancy-aware", "false"))
+            || getArgument("telemetry-capacity", null) != null || policy.getTelemetryCapacity() >= topics) {
+      return policy;
+    }
+    return new MailboxPolicy(policy.getControlCapacity(), topics, policy.getTelemetryOverflow());
+  }
+
+  /**
+   * Returns the number of negotiations that the rules started, e.g. the number of times that a low illuminance
+   * of a room was negotiated.
+   *
+   * @return the number of negotiations
+   */
+  public int getRuleNegotiations() {
+    return ruleNegotiations;
+  }
+
+  /**
+   * Creates the scoring that ranks the proposals of a Contract Net protocol. By default, the scoring is selected
+   * with the agent arguments. The default weights prefer raising the blinds if the weather is sunny, and turning
+   * on the light if the weather is cloudy.
+   *
+   * @return the scoring
+   */
+  protected AwardScoring createScoring() {
+    String scoring = getArgument("scoring", "weighted");
+    if ("weather".equals(scoring)) {
+      return AwardScoring.WEATHER;
+    } else if ("none".equals(scoring)) {
+      return AwardScoring.NONE;
+    }
+    return AwardScoring.weighted(Double.parseDouble(getArgument("weight-lux", "1")),
+            Double.parseDouble(getArgument("weight-energy", "1")),
+            Double.parseDouble(getArgument("weight-latency", "0.05")),
+            Double.parseDouble(getArgument("weight-price", "10")));
+  }
+
+  /**
+   * Loads and compiles the rules of the agent. If the rules cannot be loaded, only the rules that negotiate
+   * when the illuminance is low or predicted to become low are used.
+   *
+   * @param rooms the number of rooms of the rule network
+   * @return the compiled rules
+   */
+  private RuleNetwork loadRules(int rooms) {
+    String path = getArgument("rules", null);
+    try {
+      InputStream builtIn = path == null ? RoomManagerAgent.class.getResourceAsStream(DEFAULT_RULES) : null;
+      try (Reader reader = path != null ? Files.newBufferedReader(Paths.get(path))
+              : builtIn != null ? new InputStreamReader(builtIn, StandardCharsets.UTF_8)
+              : new StringReader(FALLBACK_RULE)) {
+        RuleNetwork network = RuleNetwork.compile(reader, rooms);
+        LOGGER.info("Compiled " + network.getRules().size() + " rules into " + network.getConditions()
+                + " conditions");
+        return network;
+      }
+    } catch (IOException | IllegalArgumentException e) {
+      LOGGER.severe("Cannot load rules " + (path == null ? DEFAULT_RULES : path) + ": " + e.getMessage());
+      try {
+        return RuleNetwork.compile(new StringReader(FALLBACK_RULE), rooms);
+      } catch (IOException impossible) {
+        throw new IllegalStateException(impossible);
+      }
+    }
+  }
+
+  /**
+   * <p>A StartNegotiations starts a Contract Net protocol for the service of a negotiate rule when the rule is
+   * activated for a room. If a protocol is already running for the room, e.g. since its result did not arrive yet
+   * while the conditions changed again, the negotiation is deferred until the protocol terminates.</p>
+   */
+  private class StartNegotiations implements RuleNetwork.Listener {
+
+    @Override
+    public void activated(RuleNetwork.Rule rule, int room) {
+      if (!RuleNetwork.Rule.NEGOTIATE.equals(rule.getAction()) || (occupancyAware && !occupied[room])) {
+        return;
+      }
+      if (room > 0 && !rooms.negotiating[room - 1]) {
+        rooms.negotiating[room - 1] = true;
+      } else if (room == 0 && !negotiating) {
+        negotiating = true;
+        LOGGER.info("Rule " + rule.getName() + " activated");
+      } else {
+        deferredNegotiations[room] = rule;
+        return;
+      }
+      ruleNegotiations++;
+      addBehaviour(new PerformContractNetProtocol(rule.getArgument(), room));
+    }
+
+    @Override
+    public void deactivated(RuleNetwork.Rule rule, int room) {
+    }
+  }
+
+  /**
+   * Subscribes to the illuminance of a room that is perceived as occupied. The environment sends the current
+   * illuminance right after the AGREE, which refreshes the facts of the room (see {@link #refreshed(int)}).
+   *
+   * @param room the room of the rule network
+   */
+  private void resumePerception(int room) {
+    perceiving[room] = true;
+    refreshing[room] = true;
+    LOGGER.info("Room " + room + " is occupied. Perceiving its illuminance.");
+    if (room == 0) {
+      addBehaviour(new PerceiveEnvironment("read-illuminance", "read-illuminance", illuminancePercepts));
+    } else {
+      addBehaviour(new PerceiveEnvironment("read-illuminance", "building/*/" + room + "/illuminance", null));
+    }
+  }
+
+  /**
+   * Cancels the subscription to the illuminance of a room that is perceived as empty.
+   *
+   * @param room the room of the rule network
+   */
+  private void suspendPerception(int room) {
+    perceiving[room] = false;
+    refreshing[room] = false;
+    Set<AID> environments = serviceProviders.get("read-illuminance");
+    if (environments == null || environments.isEmpty()) {
+      return;
+    }
+    String subject = room == 0 ? "read-illuminance" : "building/*/" + room + "/illuminance";
+    ACLMessage cancel = new ACLMessage(ACLMessage.CANCEL);
+    cancel.addReceiver(environments.iterator().next());
+    cancel.setContent(subject);
+    cancel.setConversationId("subscribe-" + subject);
+    sendMessage(cancel);
+    LOGGER.info("Room " + room + " is empty. CANCEL " + subject);
+  }
+
+  /**
+   * Starts the negotiations of the rules that are active in a room when its illuminance is perceived for the
+   * first time after the subscription, since the rules only start negotiations when their facts change, and the
+   * facts of the room may not have changed while it was empty.
+   *
+   * @param room the room of the rule network
+   */
+  private void refreshed(int room) {
+    if (!occupancyAware || !refreshing[room]) {
+      return;
+    }
+    refreshing[room] = false;
+    for (RuleNetwork.Rule rule : rules.getRules()) {
+      if (rules.isActive(rule, room)) {
+        startNegotiations.activated(rule, room);
+      }
+    }
+  }
+
+  /**
+   * Records the illuminance version of the single room that a notification reports. Notifications may
+   * arrive out of order, so only newer versions are recorded.
+   *
+   * @param notification the notification received within a Subscribe protocol
+   */
+  private void perceiveVersion(ACLMessage notification) {
+    String version = notification.getUserDefinedParameter(VERSION_PARAMETER);
+    try {
+      if (version != null) {
+        perceivedVersion = Math.max(perceivedVersion, Long.parseLong(version));
+      }
+    } catch (NumberFormatException e) {
+      LOGGER.warning("Invalid version " + version + " of a notification");
+    }
+  }
+
+  /**
+   * Acknowledges a notification with a CONFIRM, if the notification asks for a reply.
+   *
+   * @param notification the notification received within a Subscribe protocol
+   */
+  private void acknowledge(ACLMessage notification) {
+    if (notification.getReplyWith() != null) {
+      ACLMessage ack = notification.createReply();
+      ack.setPerformative(ACLMessage.CONFIRM);
+      sendMessage(ack);
+    }
   }
 
   /**
@@ -88,6 +478,15 @@ public class RoomManagerAgent extends CNPInitiator {
    * Accept information about the progress of the offer (e.g. "inform-done" or "not-available")
    * by the the participant with the best offer (Task 2.4)
    * </ul></p>
+   * <p>The proposals are scored as they arrive, and only the best proposals are kept in a {@link BidRanking}.
+   * If the awarded participant fails, the proposal of the next best participant is accepted. The participants
+   * that are not awarded are sent a REJECT PROPOSAL when the protocol terminates.</p>
+   * <p>The protocol first cancels the contract of the previous protocol for the same service and room, since the
+   * conditions that the contract maintained are gone, so that the participant offers the released device
+   * again.</p>
+   * <p>The CFP and the ACCEPT PROPOSAL carry a reply-by date. Proposals that did not arrive by the date of the
+   * CFP (e.g. since a participant crashed or a PROPOSE was lost) are not waited for, and an awardee that did not
+   * reply by the date of the ACCEPT PROPOSAL is treated as failed, i.e. the next best proposal is accepted.</p>
    * <p>This behavior is triggered when the MNG perceives that conditions of the environment need to
    * change, e.g. when the illuminance is perceived to be low. See also line 431 on
    * {@link HandleIlluminancePercept}.</p>
@@ -97,6 +496,9 @@ public class RoomManagerAgent extends CNPInitiator {
     // The service type is used to identify the agents that will be contacted
     private final String serviceType;
 
+    // The managed room whose conditions are negotiated, or 0 if the agent manages a single room
+    private final int room;
+
     // The agent that provides the service of serviceType. In this Contract Net protocol,
     // at least one participant is required.
     private Set<AID> participants = new HashSet<>();
@@ -107,9 +509,24 @@ public class RoomManagerAgent extends CNPInitiator {
     // The best offer
     private String bestOffer;
 
+    // The best proposals so far, and the ranked proposals once all replies are received
+    private final BidRanking ranking = new BidRanking(awardCandidates);
+    private Bid[] candidates;
+    private int nextCandidate = 0;
+
+    // The messages that opened the conversations of the protocol, which are closed when the protocol terminates
+    private ACLMessage cfpMsg;
+    private ACLMessage acceptMsg;
+
+    // The participants whose proposals were accepted
+    private final Set<AID> awardees = new HashSet<>();
+
     // The counter of replies from seller agents
     private int repliesCounter = 0;
 
+    // The time (in ms since the epoch) by which the replies of the current step are expected
+    private long replyBy;
+
     // The template to receive messages
     // The template is used to filter incoming messages e.g. based on the conversation id,
     // or the performative
@@ -124,7 +541,12 @@ public class RoomManagerAgent extends CNPInitiator {
     private int step = 0;
 
     PerformContractNetProtocol(String serviceType) {
+      this(serviceType, 0);
+    }
+
+    PerformContractNetProtocol(String serviceType, int room) {
       this.serviceType = serviceType;
+      this.room = room;
       if (serviceProviders.containsKey(serviceType)) {
         this.participants = serviceProviders.get(serviceType);
       }
@@ -136,6 +558,12 @@ public class RoomManagerAgent extends CNPInitiator {
           // Initiating Contract Net protocol
           LOGGER.info("Initiating Contract Net protocol");
 
+          // The previous contract for the service and the room is ended before the participants are called
+          ACLMessage previousContract = contracts.remove(room + "/" + serviceType);
+          if (previousContract != null) {
+            cancelContract(previousContract);
+          }
+
           // 1) Terminate behavior if there is not at least one agent providing the service of serviceType
           // HINT: If the participants set is empty, update the protocol phase step=4 and break.
           if(participants.isEmpty()) {
@@ -154,14 +582,24 @@ public class RoomManagerAgent extends CNPInitiator {
 
           // 4) Set the content, i.e. the serviceType
           msg.setContent(serviceType); // does serviceType here automatically refer to "increase-illuminance"?
+          if (room > 0) {
+            msg.addUserDefinedParameter(ROOM_PARAMETER, String.valueOf(room));
+          }
+          // Participants that choose among mechanisms, e.g. the multiplexed controller, choose by the weather
+          if (!getWeather().isEmpty()) {
+            msg.addUserDefinedParameter(WEATHER_PARAMETER, getWeather());
+          }
 
           // 5) Set additional message meta-data, that are used to identify the incoming messages
           // of the conversation
           msg.setConversationId("cfp-" + serviceType);
-          msg.setReplyWith("cfp-" + System.currentTimeMillis());
+          msg.setReplyWith("cfp-" + room + "-" + replyWithPrefix + (++replyWiths)); // Unique value
+          replyBy = System.currentTimeMillis() + proposalTimeout;
+          msg.setReplyByDate(new Date(replyBy));
 
           // 6) Send the message
-          myAgent.send(msg);
+          sendMessage(msg);
+          cfpMsg = msg;
 
           LOGGER.info("CFP " + serviceType);
 
@@ -190,19 +628,11 @@ public class RoomManagerAgent extends CNPInitiator {
             // 2.2) if there is no former proposal, set the sender and the offer as bestParticipant and bestOffer
             // 2.3) if there is former proposal, check if the offer is good and, if needed, update the bestParticipant
             //      and bestOffer.
-            //      HINT: Use the method isGoodOffer() to determine whether an offer is best
+            //      HINT: Use the scoring to determine whether an offer is best
             if(msg.getPerformative() == ACLMessage.PROPOSE) {
-              AID sender = msg.getSender();
-              String offer = msg.getContent();
-              if(bestOffer == null) {
-                bestOffer = offer;
-                bestParticipant = sender;
-              }
-
-              if(isGoodOffer(offer) && !isGoodOffer(bestOffer)) {
-                bestOffer = offer;
-                bestParticipant = sender;
-              }
+              Bid bid = Bid.read(msg);
+              // The preferences of the active rules are added to the score
+              ranking.offer(bid, scoring.score(bid, getWeather()) + rules.getPreference(room, bid.getMechanism()));
             }
 
             // 3) Update the number of messages received in this conversation (not only PROPOSE messages)
@@ -211,10 +641,16 @@ public class RoomManagerAgent extends CNPInitiator {
 
             // 4) If messages were received by all participants, update the protocol phase
             // HINT: Compare the repliesCounter with the size of the participants set
-            if (repliesCounter == participants.size()) step = 2;
+            if (repliesCounter == participants.size()) {
+              rankProposals();
+            }
+          } else if (System.currentTimeMillis() >= replyBy) {
+            // The missing participants are not waited for
+            LOGGER.info("Received " + repliesCounter + " of " + participants.size() + " replies by the deadline");
+            rankProposals();
           } else {
-            // Block the behavior until a new message that matches the template is received
-            block();
+            // Block the behavior until a new message that matches the template is received, or the deadline
+            block(replyBy - System.currentTimeMillis());
           }
           break;
         case 2: // TODO: Implement the case to send ACCEPT PROPOSAL messages
@@ -227,14 +663,29 @@ public class RoomManagerAgent extends CNPInitiator {
 
           // 3) Set the content, i.e. the bestOffer
           acceptProposalMsg.setContent(bestOffer);
+          if (room > 0) {
+            acceptProposalMsg.addUserDefinedParameter(ROOM_PARAMETER, String.valueOf(room));
+          } else if (perceivedVersion >= 0) {
+            // The participant's change is rejected if the conditions changed after those that the agent perceived
+            acceptProposalMsg.addUserDefinedParameter(VERSION_PARAMETER, String.valueOf(perceivedVersion));
+          }
 
           // 4) Set additional message meta-data, that are used to identify the incoming messages
           // of the conversation
           acceptProposalMsg.setConversationId("acceptProposal-" + serviceType + "-with-" + bestOffer);
-          acceptProposalMsg.setReplyWith("acceptProposal-" + System.currentTimeMillis());
+          acceptProposalMsg.setInReplyTo(cfpMsg.getReplyWith()); // The proposal answered the CFP
+          acceptProposalMsg.setReplyWith("acceptProposal-" + room + "-" + replyWithPrefix + (++replyWiths));
+          replyBy = System.currentTimeMillis() + awardTimeout;
+          acceptProposalMsg.setReplyByDate(new Date(replyBy));
 
           // 5) Send the message
-          myAgent.send(acceptProposalMsg);
+          if (acceptMsg != null) {
+            // A late reply of the previous awardee is swept from the mailbox
+            closeConversation(acceptMsg);
+          }
+          sendMessage(acceptProposalMsg);
+          acceptMsg = acceptProposalMsg;
+          awardees.add(bestParticipant);
 
           LOGGER.info("ACCEPT PROPOSAL " + serviceType + " with " + bestOffer);
 
@@ -263,6 +714,23 @@ public class RoomManagerAgent extends CNPInitiator {
               AID sender = msg.getSender();
               String serviceType = msg.getContent();
               LOGGER.info("Progress of service " + serviceType + " informed by " + sender + " with offer " + bestOffer + ". Successfully completed.");
+              contracts.put(room + "/" + this.serviceType, acceptMsg);
+              if (room == 0) {
+                // The actuation changed the illuminance in a step, which the measurements before it would
+                // extrapolate, so the trend starts over
+                trend.clear();
+              }
+              if (!firstCompleted) {
+                firstCompleted = true;
+                LOGGER.info("First negotiation completed " + ManagementFactory.getRuntimeMXBean().getUptime()
+                        + " ms after start.");
+              }
+            } else if (nextCandidate < candidates.length) {
+              // Award the contract to the next best participant
+              LOGGER.info("Service " + serviceType + " not successfully completed. Trying the next best offer.");
+              nextCandidate();
+              step = 2;
+              break;
             } else {
               LOGGER.info("Service " + serviceType + " not successfully completed.");
             }
@@ -273,9 +741,20 @@ public class RoomManagerAgent extends CNPInitiator {
 
             // 4) Update protocol phase
             step = 4;
+          } else if (System.currentTimeMillis() >= replyBy) {
+            // The awardee did not reply in time, e.g. since it crashed
+            LOGGER.info("No result of service " + serviceType + " from " + bestParticipant + " by the deadline.");
+            // The awardee may have satisfied the offer without its result arriving, so the contract is ended
+            cancelContract(acceptMsg);
+            if (nextCandidate < candidates.length) {
+              nextCandidate();
+              step = 2;
+            } else {
+              step = 4;
+            }
           } else {
-            // Block the behavior until a new message that matches the template is received
-            block();
+            // Block the behavior until a new message that matches the template is received, or the deadline
+            block(replyBy - System.currentTimeMillis());
           }
           break;
       }
@@ -287,18 +766,83 @@ public class RoomManagerAgent extends CNPInitiator {
 
       if (step == 2 && bestParticipant == null) {
         LOGGER.info("Contract net protocol terminated because no agent proposed an offer");
+        negotiated();
         return true;
       }
       if (step == 4) {
         LOGGER.info("Contract net protocol terminated");
+        negotiated();
         return true;
       }
       return false;
     }
 
-    private boolean isGoodOffer(String offer) {
-      return (("cloudy".equals(perceivedWeather) && "turn-on-light".equals(offer))
-              || ("sunny".equals(perceivedWeather) && "raise-blinds".equals(offer)));
+    private void negotiated() {
+      // Late replies, e.g. proposals that arrive after the protocol terminated, are swept from the mailbox
+      if (cfpMsg != null) {
+        closeConversation(cfpMsg);
+        rejectProposals();
+      }
+      if (acceptMsg != null) {
+        closeConversation(acceptMsg);
+      }
+      if (room > 0) {
+        rooms.negotiating[room - 1] = false;
+      } else {
+        negotiating = false;
+      }
+      RuleNetwork.Rule deferred = deferredNegotiations[room];
+      deferredNegotiations[room] = null;
+      if (deferred != null && rules.isActive(deferred, room)) {
+        startNegotiations.activated(deferred, room);
+      }
+    }
+
+    // Rejects the proposals of the participants that were called but not awarded, including those whose
+    // proposals did not arrive in time
+    private void rejectProposals() {
+      ACLMessage reject = new ACLMessage(ACLMessage.REJECT_PROPOSAL);
+      Iterator<?> receivers = cfpMsg.getAllReceiver();
+      while (receivers.hasNext()) {
+        AID receiver = (AID) receivers.next();
+        if (!awardees.contains(receiver)) {
+          reject.addReceiver(receiver);
+        }
+      }
+      if (reject.getAllReceiver().hasNext()) {
+        reject.setContent(serviceType);
+        if (room > 0) {
+          reject.addUserDefinedParameter(ROOM_PARAMETER, String.valueOf(room));
+        }
+        reject.setConversationId(cfpMsg.getConversationId());
+        reject.setInReplyTo(cfpMsg.getReplyWith());
+        sendMessage(reject);
+      }
+    }
+
+    // Ranks the received proposals and selects the best one, if any
+    private void rankProposals() {
+      candidates = ranking.drainDescending();
+      LOGGER.info("Ranked " + ranking.getOffered() + " proposals");
+      nextCandidate();
+      step = 2;
+    }
+
+    // Selects the next best proposal, if any
+    private void nextCandidate() {
+      if (nextCandidate < candidates.length) {
+        bestParticipant = candidates[nextCandidate].getBidder();
+        bestOffer = candidates[nextCandidate].getMechanism();
+        LOGGER.info("Best offer: " + candidates[nextCandidate]);
+        nextCandidate++;
+      } else {
+        bestParticipant = null;
+        bestOffer = null;
+      }
+    }
+
+    private String getWeather() {
+      return room > 0 ? rooms.getWeather(room) : perceivedWeather;
     }
   }
 
@@ -317,6 +861,9 @@ public class RoomManagerAgent extends CNPInitiator {
     // The service type is used to identify the agents that will be contacted
     private final String serviceType;
 
+    // The subject of the subscription, i.e. the service type or a topic pattern
+    private final String subject;
+
     // The behavior that is triggered when the agent perceives the environment
     // (e.g. the illuminance or the weather)
     private final Behaviour perceptHandler;
@@ -337,7 +884,12 @@ public class RoomManagerAgent extends CNPInitiator {
     private int step = 0;
 
     public PerceiveEnvironment(String serviceType, Behaviour perceptHandler) {
+      this(serviceType, serviceType, perceptHandler);
+    }
+
+    public PerceiveEnvironment(String serviceType, String subject, Behaviour perceptHandler) {
       this.serviceType = serviceType;
+      this.subject = subject;
       this.perceptHandler = perceptHandler;
     }
 
@@ -348,7 +900,7 @@ public class RoomManagerAgent extends CNPInitiator {
         case 0:
           LOGGER.info("Initiating Subscribe protocol");
           // Terminate behavior if there is not at most one agent providing the service read-illuminance
-          if (!serviceProviders.containsKey(serviceType) || serviceProviders.get(serviceType).size() > 1) {
+          if (!serviceProviders.containsKey(serviceType) || serviceProviders.get(serviceType).size() != 1) {
             LOGGER.info("No appropriate service provider found");
             // Update protocol phase to terminate the protocol
             step = 2;
@@ -362,20 +914,24 @@ public class RoomManagerAgent extends CNPInitiator {
             AID environment = environmentAgents.next();
             msg.addReceiver(environment);
 
-            // Set the content, i.e. the serviceType
-            msg.setContent(serviceType);
+            // Set the content, i.e. the serviceType or the topic pattern
+            msg.setContent(subject);
+            if (rooms != null && subject.equals(serviceType)) {
+              // Subscribe once to the conditions of all rooms
+              msg.addUserDefinedParameter(ROOM_PARAMETER, ALL_ROOMS);
+            }
 
             // Set additional message meta-data, that are used to identify the incoming messages
             // of the conversation
-            msg.setConversationId("subscribe-" + serviceType);
+            msg.setConversationId("subscribe-" + subject);
             msg.setReplyWith("subscribe-" + System.currentTimeMillis()); // Unique value
 
             // Send the message
-            myAgent.send(msg);
-            LOGGER.info("SUBSCRIBE " + serviceType);
+            sendMessage(msg);
+            LOGGER.info("SUBSCRIBE " + subject);
 
             // Prepare the template to get responses to the request
-            msgTemplate = MessageTemplate.and(MessageTemplate.MatchConversationId("subscribe-" + serviceType),
+            msgTemplate = MessageTemplate.and(MessageTemplate.MatchConversationId("subscribe-" + subject),
                     MessageTemplate.MatchInReplyTo(msg.getReplyWith()));
 
             // Update protocol phase and break
@@ -390,7 +946,9 @@ public class RoomManagerAgent extends CNPInitiator {
             // Message received
             // If it is AGREED that the agent can perceive the environment (e.g. the illuminance or the weather),
             // the agent handles the notifications.
-            if (msg.getPerformative() == ACLMessage.AGREE) {
+            // A handler is only added once, i.e. not again when the agent subscribes again after a suspension
+            if (msg.getPerformative() == ACLMessage.AGREE && perceptHandler != null
+                    && perceptHandler.getAgent() == null) {
               addBehaviour(perceptHandler);
             }
             // Update protocol phase
@@ -423,6 +981,8 @@ public class RoomManagerAgent extends CNPInitiator {
    * the read-illuminance service. Upon reception, if the illuminance is low, the agent triggers the
    * behavior {@link PerformContractNetProtocol}, so as to send calls for proposal (CFPs) for raising
    * the illuminance.</p>
+   * <p>If the notification carries the measured lux, the measurement is added to the {@link LuxTrend} of the
+   * room, and the protocol is already triggered if the trend predicts low illuminance within the horizon.</p>
    * <p>This behavior is triggered upon successful subscription on {@link PerceiveEnvironment}
    * for the notificationType read-illuminance.</p>
    * <p>The class extends {@link CyclicBehaviour}, i.e. the behavior is executed continuously.</p>
@@ -439,15 +999,48 @@ public class RoomManagerAgent extends CNPInitiator {
         // Request message received
         String illuminanceValue = msg.getContent();
 
-        // If it is the first time that the illuminance is perceived as low,
-        // the agent requests from other agents to increase the illuminance
-        if ("low".equals(illuminanceValue) && !perceivedIlluminance.equals(illuminanceValue)) {
-          addBehaviour(new PerformContractNetProtocol("increase-illuminance"));
+        // Acknowledge the notification if the agent offering the service asks for acknowledgements
+        acknowledge(msg);
+
+        // The rules decide whether the agent requests from other agents to change the conditions,
+        // e.g. to increase the illuminance when it is perceived as low for the first time
+        String lux = msg.getUserDefinedParameter(LUX_PARAMETER);
+        rules.assertFact(0, "illuminance", illuminanceValue);
+        rules.assertFact(0, "lux", lux);
+        if ("low".equals(illuminanceValue)) {
+          predicted = false;
+        }
+
+        // A malformed or negative lux is not added to the trend, i.e. the sample is skipped
+        int measured = -1;
+        if (lux != null) {
+          try {
+            measured = Integer.parseInt(lux);
+          } catch (NumberFormatException e) {
+            LOGGER.warning("Invalid lux " + lux + " of a notification");
+          }
+        }
+
+        // If the trend predicts that the illuminance becomes low within the horizon, the rules may already
+        // request to increase the illuminance, e.g. by the rule predicted-low-illuminance
+        if (measured >= 0 && trendHorizon > 0) {
+          long now = System.currentTimeMillis();
+          boolean cloudy = "cloudy".equals(perceivedWeather);
+          trend.add(now, measured, cloudy);
+          double prediction = trend.predict(now + trendHorizon, cloudy);
+          boolean low = trend.size() > 1 && prediction < lowLux;
+          if (low && !predicted) {
+            LOGGER.info("Predicted illuminance of " + (int) prediction + " lux within " + trendHorizon + " ms");
+          }
+          predicted = low;
+          rules.assertFact(0, "predicted-illuminance", low ? "low" : "high");
         }
 
         // Update the value of perceived illuminanceValue
         perceivedIlluminance = illuminanceValue;
+        perceiveVersion(msg);
         LOGGER.info("Perceived illuminance: " + perceivedIlluminance);
+        refreshed(0);
       } else {
         // Block the behavior until a new message that matches the template is received
         block();
@@ -477,8 +1070,13 @@ public class RoomManagerAgent extends CNPInitiator {
         // Request message received
         String weatherValue = msg.getContent();
 
+        // Acknowledge the notification if the agent offering the service asks for acknowledgements
+        acknowledge(msg);
+
         // Update the value of perceived weather
         perceivedWeather = weatherValue;
+        perceiveVersion(msg);
+        rules.assertFact(0, "weather", weatherValue);
         LOGGER.info("Perceived weather: " + perceivedWeather);
       } else {
         // Block the behavior until a new message that matches the template is received
@@ -487,4 +1085,172 @@ public class RoomManagerAgent extends CNPInitiator {
     }
   }
 
+  /**
+   * <p>A RoomTable keeps the perceived conditions and the negotiation state of the managed rooms 1 to N in
+   * arrays indexed by room, i.e. without an object or a map entry per room.</p>
+   */
+  private static class RoomTable {
+
+    // The encoded conditions, where 0 means that the condition was not perceived yet
+    private static final byte HIGH = 1;
+    private static final byte LOW = 2;
+    private static final byte SUNNY = 1;
+    private static final byte CLOUDY = 2;
+
+    private final byte[] illuminance;
+    private final byte[] weather;
+
+    // Whether a Contract Net protocol is running for a room
+    private final boolean[] negotiating;
+
+    private RoomTable(int rooms) {
+      illuminance = new byte[rooms];
+      weather = new byte[rooms];
+      negotiating = new boolean[rooms];
+    }
+
+    private int size() {
+      return illuminance.length;
+    }
+
+    private String getWeather(int room) {
+      return weather[room - 1] == CLOUDY ? "cloudy" : weather[room - 1] == SUNNY ? "sunny" : "";
+    }
+  }
+
+  /**
+   * <p>A HandleRoomPercepts is a JADE behavior that implements part of the
+   * <a href="http://www.fipa.org/specs/fipa00035/SC00035H.html">FIPA Subscribe Interaction Protocol</a>
+   * for the role of the Initiator, if the agent manages many rooms.</p>
+   * <p>The behavior receives the notifications with the conditions of all rooms (e.g. <code>1=high;2=low</code>),
+   * and dispatches the value of each room to the {@link RoomTable} and the {@link RuleNetwork} without creating
+   * objects. If the illuminance of a room is perceived as low for the first time, the rules trigger the behavior
+   * {@link PerformContractNetProtocol} for the room, unless a protocol is already running for the room.</p>
+   * <p>This behavior is triggered upon successful subscription on {@link PerceiveEnvironment}.</p>
+   * <p>The class extends {@link CyclicBehaviour}, i.e. the behavior is executed continuously.</p>
+   */
+  private class HandleRoomPercepts extends CyclicBehaviour {
+
+    private final boolean illuminance;
+
+    private final MessageTemplate msgTemplate;
+
+    public HandleRoomPercepts(String notificationType) {
+      this.illuminance = "read-illuminance".equals(notificationType);
+      this.msgTemplate = MessageTemplate.and(MatchPerformative(ACLMessage.INFORM),
+              MessageTemplate.MatchConversationId("subscribe-" + notificationType));
+    }
+
+    @Override
+    public void action() {
+      ACLMessage msg = myAgent.receive(msgTemplate);
+      if (msg != null) {
+        // Acknowledge the notification if the agent offering the service asks for acknowledgements
+        acknowledge(msg);
+
+        String content = msg.getContent();
+        int length = content == null ? 0 : content.length();
+        int negotiations = ruleNegotiations;
+        int i = 0;
+        while (i < length) {
+          // Parse the room number up to the '=', and the first character of the value
+          int room = 0;
+          while (i < length && content.charAt(i) != '=') {
+            room = room * 10 + (content.charAt(i++) - '0');
+          }
+          char value = ++i < length ? content.charAt(i) : 0;
+          while (i < length && content.charAt(i) != ';') {
+            i++;
+          }
+          i++;
+
+          if (room < 1 || room > rooms.size()) {
+            continue;
+          }
+          int index = room - 1;
+          if (illuminance) {
+            byte perceived = value == 'l' ? RoomTable.LOW : RoomTable.HIGH;
+            rooms.illuminance[index] = perceived;
+            rules.assertFact(room, "illuminance", perceived == RoomTable.LOW ? "low" : "high");
+          } else {
+            rooms.weather[index] = value == 'c' ? RoomTable.CLOUDY : RoomTable.SUNNY;
+            rules.assertFact(room, "weather", rooms.getWeather(room));
+          }
+        }
+        negotiations = ruleNegotiations - negotiations;
+        if (negotiations > 0) {
+          LOGGER.info("Perceived low illuminance in " + negotiations + " more rooms");
+        }
+      } else {
+        // Block the behavior until a new message that matches the template is received
+        block();
+      }
+    }
+  }
+
+  /**
+   * <p>A HandleTopicPercepts is a JADE behavior that implements part of the
+   * <a href="http://www.fipa.org/specs/fipa00035/SC00035H.html">FIPA Subscribe Interaction Protocol</a>
+   * for the role of the Initiator, if the agent is aware of the occupancy of its rooms.</p>
+   * <p>The behavior receives the notifications of the topics <code>building/&lt;floor&gt;/&lt;room&gt;/occupancy</code>
+   * and, if the agent manages many rooms, <code>building/&lt;floor&gt;/&lt;room&gt;/illuminance</code>. When a room
+   * becomes occupied, the agent subscribes to its illuminance, and when it becomes empty, the agent cancels the
+   * subscription (see {@link #resumePerception(int)} and {@link #suspendPerception(int)}). The illuminance of a
+   * room is dispatched to the {@link RoomTable} and the {@link RuleNetwork} like in {@link HandleRoomPercepts}.</p>
+   * <p>This behavior is triggered upon successful subscription on {@link PerceiveEnvironment} to the occupancy
+   * topics.</p>
+   * <p>The class extends {@link CyclicBehaviour}, i.e. the behavior is executed continuously.</p>
+   */
+  private class HandleTopicPercepts extends CyclicBehaviour {
+
+    // The notifications of the topic subscriptions, whose conversations are named after their patterns
+    private final MessageTemplate msgTemplate = MessageTemplate.and(MatchPerformative(ACLMessage.INFORM),
+            new MessageTemplate((MessageTemplate.MatchExpression) msg -> msg.getConversationId() != null
+                    && msg.getConversationId().startsWith("subscribe-building/")));
+
+    @Override
+    public void action() {
+      ACLMessage msg = myAgent.receive(msgTemplate);
+      if (msg == null) {
+        // Block the behavior until a new message that matches the template is received
+        block();
+        return;
+      }
+      // Acknowledge the notification if the agent offering the service asks for acknowledgements
+      acknowledge(msg);
+
+      // The topic is building/<floor>/<room>/<kind>, where the single room is room 1 of the environment
+      String topic = msg.getUserDefinedParameter(TOPIC_PARAMETER);
+      String value = msg.getContent();
+      int kindStart = topic == null ? -1 : topic.lastIndexOf('/');
+      int roomStart = kindStart < 1 ? -1 : topic.lastIndexOf('/', kindStart - 1);
+      if (roomStart < 0 || value == null) {
+        return;
+      }
+      String kind = topic.substring(kindStart + 1);
+      int room;
+      try {
+        room = rooms == null ? 0 : Integer.parseInt(topic.substring(roomStart + 1, kindStart));
+      } catch (NumberFormatException e) {
+        return;
+      }
+      if (rooms != null && (room < 1 || room > rooms.size())) {
+        return;
+      }
+
+      if ("occupancy".equals(kind)) {
+        occupied[room] = "occupied".equals(value);
+        if (occupied[room] && !perceiving[room]) {
+          resumePerception(room);
+        } else if (!occupied[room] && perceiving[room]) {
+          suspendPerception(room);
+        }
+      } else if ("illuminance".equals(kind) && rooms != null) {
+        byte perceived = "low".equals(value) ? RoomTable.LOW : RoomTable.HIGH;
+        rooms.illuminance[room - 1] = perceived;
+        rules.assertFact(room, "illuminance", value);
+        refreshed(room);
+      }
+    }
+  }
 }
@@ -0,0 +1,419 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.cnp.initiators;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A RuleNetwork maps the perceived facts of the rooms of a {@link RoomManagerAgent} (e.g. the illuminance,
+ * the weather or the measured lux) to actions. The rules are declared in a text file with one rule per line:</p>
+ * <pre>
+ * # rule &lt;name&gt;: &lt;fact&gt; &lt;op&gt; &lt;value&gt; [and &lt;fact&gt; &lt;op&gt; &lt;value&gt;]* -&gt; &lt;action&gt;
+ * rule low-illuminance: illuminance = low -&gt; negotiate increase-illuminance
+ * rule cloudy-lamp: weather = cloudy and lux &lt; 200 -&gt; prefer turn-on-light 500
+ * </pre>
+ * <p>The operators are <code>=</code> and <code>!=</code> for all values, and <code>&lt;</code>,
+ * <code>&lt;=</code>, <code>&gt;</code> and <code>&gt;=</code> for numbers. The actions are:</p>
+ * <ul>
+ * <li><code>negotiate &lt;service type&gt;</code>: the {@link Listener} is asked to start a Contract Net
+ * protocol for the service
+ * <li><code>prefer &lt;mechanism&gt; &lt;weight&gt;</code>: while the rule is active, the weight is added to the
+ * score of the bids with the mechanism (see {@link #getPreference(int, String)})
+ * </ul>
+ * <p>A rule is activated when all its conditions become true for a room, and deactivated when one of them
+ * becomes false, i.e. a rule does not fire again while its conditions stay true.</p>
+ * <p>The rules are compiled into a Rete-style network: Each distinct condition is a node that is shared by all
+ * rules with the condition, and remembers per room whether it is true. The nodes are indexed by fact, and
+ * equality tests by value and range tests by threshold, so that a changed fact only tests the nodes that can
+ * change, i.e. the nodes of the old and the new value and the thresholds between them. Each rule counts per room
+ * how many of its conditions are true, so that the rules of a changed node are updated without testing their
+ * other conditions.</p>
+ * <p>The network is not thread-safe, i.e. it must only be accessed by the behaviors of the agent.</p>
+ */
+public class RuleNetwork {
+
+  /**
+   * <p>A Listener is notified when a rule is activated or deactivated for a room.</p>
+   */
+  public interface Listener {
+    void activated(Rule rule, int room);
+
+    void deactivated(Rule rule, int room);
+  }
+
+  /**
+   * <p>A Rule is a compiled rule of the network.</p>
+   */
+  public static final class Rule {
+    public static final String NEGOTIATE = "negotiate";
+    public static final String PREFER = "prefer";
+
+    private final String name;
+    private final String action;
+    private final String argument;
+    private final double weight;
+    private final int size;
+
+    // The number of true conditions per room
+    private final int[] satisfied;
+
+    private Rule(String name, String action, String argument, double weight, int size, int rooms) {
+      this.name = name;
+      this.action = action;
+      this.argument = argument;
+      this.weight = weight;
+      this.size = size;
+      this.satisfied = new int[rooms];
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getAction() {
+      return action;
+    }
+
+    // The service type of a negotiate action, or the mechanism of a prefer action
+    public String getArgument() {
+      return argument;
+    }
+
+    public double getWeight() {
+      return weight;
+    }
+
+    @Override
+    public String toString() {
+      return name + " -> " + action + " " + argument;
+    }
+  }
+
+  /**
+   * <p>A Condition is a node of the network, i.e. a test of a fact that is shared by all rules with the test.</p>
+   */
+  private static final class Condition {
+    private final String operator;
+    private final String value;
+    private final double number;
+    private final List<Rule> rules = new ArrayList<>(1);
+
+    // Whether the condition is true, per room
+    private final boolean[] memory;
+
+    private Condition(String operator, String value, int rooms) {
+      this.operator = operator;
+      this.value = value;
+      this.number = isRange(operator) ? Double.parseDouble(value) : Double.NaN;
+      this.memory = new boolean[rooms];
+    }
+
+    private boolean test(String fact, double factNumber) {
+      switch (operator) {
+        case "=":
+          return value.equals(fact);
+        case "!=":
+          return !value.equals(fact);
+        case "<":
+          return factNumber < number;
+        case "<=":
+          return factNumber <= number;
+        case ">":
+          return factNumber > number;
+        default:
+          return factNumber >= number;
+      }
+    }
+  }
+
+  /**
+   * <p>A FactIndex indexes the conditions of a fact, and keeps the current value of the fact per room.</p>
+   */
+  private static final class FactIndex {
+    private final Map<String, List<Condition>> equal = new HashMap<>();
+    private final Map<String, List<Condition>> notEqual = new HashMap<>();
+    private final List<Condition> allNotEqual = new ArrayList<>();
+    private Condition[] ranges = new Condition[0];
+
+    private final String[] values;
+    private final double[] numbers;
+
+    private FactIndex(int rooms) {
+      values = new String[rooms];
+      numbers = new double[rooms];
+      Arrays.fill(numbers, Double.NaN);
+    }
+  }
+
+  private final Map<String, FactIndex> facts = new HashMap<>();
+  private final List<Rule> rules = new ArrayList<>();
+  private final int rooms;
+
+  // The preference weights of the active prefer rules, per mechanism and room
+  private final Map<String, double[]> preferences = new HashMap<>();
+
+  private Listener listener;
+
+  // The number of condition tests, e.g. for checking that only affected conditions are tested
+  private long tests = 0;
+
+  private RuleNetwork(int rooms) {
+    this.rooms = rooms;
+  }
+
+  private static boolean isRange(String operator) {
+    return operator.startsWith("<") || operator.startsWith(">");
+  }
+
+  /**
+   * Compiles the rules of a rule file.
+   *
+   * @param reader the reader of the rule file
+   * @param rooms  the number of rooms, i.e. the rooms 0 to rooms - 1 can be asserted
+   * @return the compiled network
+   * @throws IOException              if the file cannot be read
+   * @throws IllegalArgumentException if a rule is invalid
+   */
+  public static RuleNetwork compile(Reader reader, int rooms) throws IOException {
+    RuleNetwork network = new RuleNetwork(rooms);
+    // The nodes of all distinct conditions, by fact, operator and value
+    Map<String, Condition> nodes = new HashMap<>();
+    Map<String, List<Condition>> ranges = new HashMap<>();
+
+    BufferedReader lines = new BufferedReader(reader);
+    String line;
+    int number = 0;
+    while ((line = lines.readLine()) != null) {
+      number++;
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      try {
+        network.compileRule(line, nodes, ranges);
+      } catch (RuntimeException e) {
+        throw new IllegalArgumentException("Invalid rule in line " + number + ": " + line + " (" + e.getMessage()
+                + ")", e);
+      }
+    }
+
+    for (Map.Entry<String, List<Condition>> entry : ranges.entrySet()) {
+      Condition[] sorted = entry.getValue().toArray(new Condition[0]);
+      Arrays.sort(sorted, Comparator.comparingDouble(condition -> condition.number));
+      network.facts.get(entry.getKey()).ranges = sorted;
+    }
+    return network;
+  }
+
+  private void compileRule(String line, Map<String, Condition> nodes, Map<String, List<Condition>> ranges) {
+    int colon = line.indexOf(':');
+    int arrow = line.indexOf("->");
+    if (!line.startsWith("rule ") || colon < 0 || arrow < colon) {
+      throw new IllegalArgumentException("expected rule <name>: <conditions> -> <action>");
+    }
+    String name = line.substring("rule ".length(), colon).trim();
+    String[] conditions = line.substring(colon + 1, arrow).trim().split("\\s+and\\s+");
+    String[] action = line.substring(arrow + 2).trim().split("\\s+");
+
+    Rule rule;
+    if (Rule.NEGOTIATE.equals(action[0]) && action.length == 2) {
+      rule = new Rule(name, Rule.NEGOTIATE, action[1], 0, conditions.length, rooms);
+    } else if (Rule.PREFER.equals(action[0]) && action.length == 3) {
+      rule = new Rule(name, Rule.PREFER, action[1], Double.parseDouble(action[2]), conditions.length, rooms);
+    } else {
+      throw new IllegalArgumentException("expected negotiate <service type> or prefer <mechanism> <weight>");
+    }
+
+    for (String condition : conditions) {
+      String[] parts = condition.trim().split("\\s+");
+      if (parts.length != 3 || !parts[1].matches("=|!=|<|<=|>|>=")) {
+        throw new IllegalArgumentException("expected <fact> <op> <value>");
+      }
+      String fact = parts[0];
+      String operator = parts[1];
+      String value = parts[2];
+      FactIndex index = facts.computeIfAbsent(fact, f -> new FactIndex(rooms));
+      Condition node = nodes.get(fact + " " + operator + " " + value);
+      if (node == null) {
+        node = new Condition(operator, value, rooms);
+        nodes.put(fact + " " + operator + " " + value, node);
+        if ("=".equals(operator)) {
+          index.equal.computeIfAbsent(value, v -> new ArrayList<>(1)).add(node);
+        } else if ("!=".equals(operator)) {
+          index.notEqual.computeIfAbsent(value, v -> new ArrayList<>(1)).add(node);
+          index.allNotEqual.add(node);
+        } else {
+          ranges.computeIfAbsent(fact, f -> new ArrayList<>()).add(node);
+        }
+      }
+      node.rules.add(rule);
+    }
+    rules.add(rule);
+  }
+
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Asserts the current value of a fact of a room, and activates or deactivates the rules whose conditions
+   * change. Facts without conditions are ignored.
+   *
+   * @param room  the room
+   * @param fact  the fact, e.g. illuminance
+   * @param value the value, e.g. low
+   */
+  public void assertFact(int room, String fact, String value) {
+    FactIndex index = facts.get(fact);
+    if (index == null || value == null || value.equals(index.values[room])) {
+      return;
+    }
+    String old = index.values[room];
+    double oldNumber = index.numbers[room];
+    double number = parseNumber(value);
+    index.values[room] = value;
+    index.numbers[room] = number;
+
+    // Conditions that become false are updated first, so that rules are deactivated before they are activated
+    if (old != null) {
+      update(index.equal.get(old), room, false);
+      update(index.notEqual.get(value), room, false);
+      update(index.notEqual.get(old), room, true);
+    } else {
+      for (Condition condition : index.allNotEqual) {
+        tests++;
+        set(condition, room, condition.test(value, number));
+      }
+    }
+    update(index.equal.get(value), room, true);
+
+    if (index.ranges.length > 0) {
+      updateRanges(index.ranges, room, value, number, oldNumber);
+    }
+  }
+
+  private void update(List<Condition> conditions, int room, boolean value) {
+    if (conditions != null) {
+      for (Condition condition : conditions) {
+        tests++;
+        set(condition, room, value);
+      }
+    }
+  }
+
+  // Tests the range conditions whose threshold lies between the old and the new number, since only these can change
+  private void updateRanges(Condition[] ranges, int room, String value, double number, double oldNumber) {
+    if (Double.isNaN(number) || Double.isNaN(oldNumber)) {
+      for (Condition condition : ranges) {
+        tests++;
+        set(condition, room, !Double.isNaN(number) && condition.test(value, number));
+      }
+      return;
+    }
+    double low = Math.min(number, oldNumber);
+    double high = Math.max(number, oldNumber);
+    for (int i = firstAtLeast(ranges, low); i < ranges.length && ranges[i].number <= high; i++) {
+      tests++;
+      set(ranges[i], room, ranges[i].test(value, number));
+    }
+  }
+
+  private static int firstAtLeast(Condition[] ranges, double threshold) {
+    int low = 0;
+    int high = ranges.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (ranges[middle].number < threshold) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  private static double parseNumber(String value) {
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      return Double.NaN;
+    }
+  }
+
+  private void set(Condition condition, int room, boolean value) {
+    if (condition.memory[room] == value) {
+      return;
+    }
+    condition.memory[room] = value;
+    for (Rule rule : condition.rules) {
+      if (value && ++rule.satisfied[room] == rule.size) {
+        fire(rule, room, true);
+      } else if (!value && rule.satisfied[room]-- == rule.size) {
+        fire(rule, room, false);
+      }
+    }
+  }
+
+  private void fire(Rule rule, int room, boolean activated) {
+    if (Rule.PREFER.equals(rule.action)) {
+      preferences.computeIfAbsent(rule.argument, mechanism -> new double[rooms])[room]
+              += activated ? rule.weight : -rule.weight;
+    }
+    if (listener != null) {
+      if (activated) {
+        listener.activated(rule, room);
+      } else {
+        listener.deactivated(rule, room);
+      }
+    }
+  }
+
+  /**
+   * Returns the sum of the weights of the active prefer rules of a mechanism in a room.
+   *
+   * @param room      the room
+   * @param mechanism the mechanism of a bid, e.g. raise-blinds
+   * @return the preference, or 0 if no prefer rule of the mechanism is active
+   */
+  public double getPreference(int room, String mechanism) {
+    double[] weights = preferences.get(mechanism);
+    return weights == null ? 0 : weights[room];
+  }
+
+  /**
+   * Checks whether a rule is active in a room.
+   *
+   * @param rule the rule
+   * @param room the room
+   * @return true if all conditions of the rule are true in the room
+   */
+  public boolean isActive(Rule rule, int room) {
+    return rule.satisfied[room] == rule.size;
+  }
+
+  public List<Rule> getRules() {
+    return rules;
+  }
+
+  // The number of condition nodes, which is smaller than the number of conditions if rules share conditions
+  public int getConditions() {
+    int conditions = 0;
+    for (FactIndex index : facts.values()) {
+      for (List<Condition> equal : index.equal.values()) {
+        conditions += equal.size();
+      }
+      conditions += index.allNotEqual.size() + index.ranges.length;
+    }
+    return conditions;
+  }
+
+  public long getTests() {
+    return tests;
+  }
+}
@@ -21,6 +21,7 @@ public class BlindsControllerAgent extends CNPParticipant {
   private final static Logger LOGGER = Logger.getJADELogger(RoomManagerAgent.class.getName());
 
   protected void setup() {
+    super.setup();
 
     LOGGER.info("Hello world! Blinds controller agent " + getAID().getName() + " is set up.");
 
@@ -36,10 +37,14 @@ public class BlindsControllerAgent extends CNPParticipant {
     addBehaviour(new SearchServiceBehavior("set-illuminance"));
 
     // Offer to increase illuminance by raising the blinds
-    addBehaviour(new OfferProposalsServer("increase-illuminance", "raise-blinds"));
+    addBehaviour(new OfferProposalsServer("increase-illuminance", "raise-blinds",
+            Integer.parseInt(getArgument("lux-gain", "800")), Integer.parseInt(getArgument("energy-cost", "5")),
+            Integer.parseInt(getArgument("latency-ms", "3000"))));
 
     // Satisfy offers by raising the blinds. For satisfying the offer raise-blinds, a behavior RequestSetIlluminance
-    // is triggered to simulate the effects of raising the blinds.
-    addBehaviour(new SatisfyOffersServer("raise-blinds", new RequestSetIlluminance("high")));
+    // is triggered to simulate the effects of raising the blinds. The request expects the conditions that the room
+    // manager perceived.
+    addBehaviour(new SatisfyOffersServer("raise-blinds",
+            accept -> new RequestSetIlluminance("high", null, getExpectedVersion(accept))));
   }
 }
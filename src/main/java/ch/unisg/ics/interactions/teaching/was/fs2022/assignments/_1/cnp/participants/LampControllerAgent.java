@@ -5,7 +5,7 @@ import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common.CNPPa
 import jade.util.Logger;
 
 /**
- * A Lamp Controller Agent (LAMP) is a JADE agent that controls the blinds in a room.
+ * A Lamp Controller Agent (LAMP) is a JADE agent that controls the light in a room.
  * <p>The LAMP publishes one service to the Directory Facilitator (DF):
  * <ul>
  * <li>raise-illuminance: for raising the illuminance of the room by turning on the light.
@@ -21,6 +21,7 @@ public class LampControllerAgent extends CNPParticipant {
   private final static Logger LOGGER = Logger.getJADELogger(RoomManagerAgent.class.getName());
 
   protected void setup() {
+    super.setup();
 
     LOGGER.info("Hello world! Lamp controller agent " + getAID().getName() + " is set up.");
 
@@ -35,11 +36,16 @@ public class LampControllerAgent extends CNPParticipant {
     // environment (e.g. by turning on the light)
     addBehaviour(new SearchServiceBehavior("set-illuminance"));
 
-    // Offer to increase illuminance by raising the blinds
-    addBehaviour(new OfferProposalsServer("increase-illuminance", "turn-on-light"));
+    // Offer to increase illuminance by turning on the light. A lamp adds a moderate amount of light regardless of the
+    // weather, quickly, but at a high energy cost.
+    addBehaviour(new OfferProposalsServer("increase-illuminance", "turn-on-light",
+            Integer.parseInt(getArgument("lux-gain", "400")), Integer.parseInt(getArgument("energy-cost", "60")),
+            Integer.parseInt(getArgument("latency-ms", "200"))));
 
     // Satisfy offers by turning on the light. For satisfying the offer turn-on-light, a behavior RequestSetIlluminance
-    // is triggered to simulate the effects of turning on the light.
-    addBehaviour(new SatisfyOffersServer("turn-on-light", new RequestSetIlluminance("high")));
+    // is triggered to simulate the effects of turning on the light. The request expects the conditions that the room
+    // manager perceived.
+    addBehaviour(new SatisfyOffersServer("turn-on-light",
+            accept -> new RequestSetIlluminance("high", null, getExpectedVersion(accept))));
   }
 }
@@ -0,0 +1,407 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.cnp.participants;
+
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common.Bid;
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common.CNPParticipant;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+import jade.util.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Multiplexed Controller Agent is a JADE agent that controls many devices, i.e. lamps and blinds in many rooms.
+ * <p>The agent publishes one service to the Directory Facilitator (DF):
+ * <ul>
+ * <li>increase-illuminance: for raising the illuminance of a room by turning on the lights or by raising
+ * the blinds of the room.
+ * </ul></p>
+ * <p>The class extends {@link CNPParticipant} for enabling an agent to behave as a participant
+ * in the <a href="http://www.fipa.org/specs/fipa00029/SC00029H.html">FIPA Contract Net
+ * Interaction Protocol</a>. Unlike the {@link LampControllerAgent} and the {@link BlindsControllerAgent}, which
+ * represent one device each, the agent keeps a table of devices (their room, mechanism and state). It answers
+ * calls for proposals for the devices of the room given in the CFP, and actuates all devices of the room with
+ * the accepted mechanism at once. Hence, the number of agents, threads and DF entries grows with the number of
+ * controllers rather than with the number of devices. CFPs and ACCEPT PROPOSALs must name their room, e.g. the
+ * agent does not work with a room manager of a single room: Messages without a room are replied with NOT
+ * UNDERSTOOD rather than attributed to one of the rooms.</p>
+ * <p>The device table is read from a CSV file with the columns device id, room and mechanism (raise-blinds or
+ * turn-on-light) given with the argument device-table, or generated with the arguments rooms, lamps and blinds
+ * (the number of rooms, and the number of lamps and blinds per room).</p>
+ * <p>Devices that are offered are reserved until the proposal is accepted or rejected, and devices that are
+ * actuated (e.g. lamps that are on) are held until the initiator cancels the contract. Reserved and actuated
+ * devices are not offered again, so the agent refuses CFPs for rooms whose devices are all reserved or
+ * actuated.</p>
+ */
+public class MultiplexedControllerAgent extends CNPParticipant {
+
+  private final static Logger LOGGER = Logger.getJADELogger(MultiplexedControllerAgent.class.getName());
+
+  // The mechanisms of the devices, i.e. the offers of the agent
+  private final static String[] MECHANISMS = {"raise-blinds", "turn-on-light"};
+  private final static int RAISE_BLINDS = 0;
+  private final static int TURN_ON_LIGHT = 1;
+
+  // The expected lux gain, the energy cost and the latency in ms of actuating a device of each mechanism
+  private final static int[] LUX_GAIN = {800, 400};
+  private final static int[] ENERGY_COST = {5, 60};
+  private final static int[] LATENCY = {3000, 200};
+
+  // The device table, stored as parallel arrays that are indexed by device
+  private String[] deviceIds;
+  private int[] deviceRooms;
+  private byte[] deviceMechanisms;
+  private boolean[] actuated;
+  private boolean[] reserved;
+
+  // The rooms of the devices, and the devices of each room
+  private final List<String> rooms = new ArrayList<>();
+  private final Map<String, Integer> roomIndex = new HashMap<>();
+  private int[][] devicesOfRoom;
+
+  protected void setup() {
+    super.setup();
+
+    try {
+      loadDeviceTable();
+    } catch (IOException | IllegalArgumentException e) {
+      LOGGER.severe("Cannot load device table: " + e.getMessage());
+      doDelete();
+      return;
+    }
+
+    LOGGER.info("Hello world! Multiplexed controller agent " + getAID().getName() + " is set up with "
+            + deviceIds.length + " devices in " + rooms.size() + " rooms.");
+
+    // Add all provided services
+    this.providedServices.add("increase-illuminance");
+
+    // Publish all provided services to DF
+    addBehaviour(new PublishServiceBehavior());
+
+    // Search services in the DF for setting the illuminance
+    addBehaviour(new SearchServiceBehavior("set-illuminance"));
+
+    // Offer to increase the illuminance of rooms with the devices of the rooms
+    addBehaviour(new OfferDeviceProposalsServer("increase-illuminance"));
+
+    // Satisfy offers by actuating the devices of rooms
+    addBehaviour(new ActuateDevicesServer());
+  }
+
+  private void loadDeviceTable() throws IOException {
+    List<String> ids = new ArrayList<>();
+    List<String> roomIds = new ArrayList<>();
+    List<String> mechanisms = new ArrayList<>();
+
+    String table = getArgument("device-table", null);
+    if (table != null) {
+      try (BufferedReader reader = Files.newBufferedReader(Paths.get(table))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          String[] columns = line.trim().split(",");
+          if (columns.length < 3 || columns[0].isEmpty() || columns[0].startsWith("#")) {
+            continue;
+          }
+          ids.add(columns[0].trim());
+          roomIds.add(columns[1].trim());
+          mechanisms.add(columns[2].trim());
+        }
+      }
+    } else {
+      int roomCount = Integer.parseInt(getArgument("rooms", "1"));
+      int lamps = Integer.parseInt(getArgument("lamps", "1"));
+      int blinds = Integer.parseInt(getArgument("blinds", "1"));
+      for (int room = 1; room <= roomCount; room++) {
+        for (int i = 1; i <= lamps + blinds; i++) {
+          ids.add((i <= lamps ? "lamp-" : "blinds-") + room + "-" + i);
+          roomIds.add(String.valueOf(room));
+          mechanisms.add(i <= lamps ? "turn-on-light" : "raise-blinds");
+        }
+      }
+    }
+
+    int devices = ids.size();
+    deviceIds = ids.toArray(new String[0]);
+    deviceRooms = new int[devices];
+    deviceMechanisms = new byte[devices];
+    actuated = new boolean[devices];
+    reserved = new boolean[devices];
+    int[] devicesPerRoom = new int[devices];
+    for (int device = 0; device < devices; device++) {
+      Integer index = roomIndex.get(roomIds.get(device));
+      if (index == null) {
+        index = rooms.size();
+        rooms.add(roomIds.get(device));
+        roomIndex.put(roomIds.get(device), index);
+      }
+      deviceRooms[device] = index;
+      deviceMechanisms[device] = mechanism(mechanisms.get(device));
+      devicesPerRoom[index]++;
+    }
+    devicesOfRoom = new int[rooms.size()][];
+    for (int room = 0; room < rooms.size(); room++) {
+      devicesOfRoom[room] = new int[devicesPerRoom[room]];
+      devicesPerRoom[room] = 0;
+    }
+    for (int device = 0; device < devices; device++) {
+      int room = deviceRooms[device];
+      devicesOfRoom[room][devicesPerRoom[room]++] = device;
+    }
+  }
+
+  private static byte mechanism(String name) {
+    for (byte i = 0; i < MECHANISMS.length; i++) {
+      if (MECHANISMS[i].equals(name)) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("Unknown mechanism " + name);
+  }
+
+  /**
+   * Returns why the room of a message is not understood. Since the agent controls the devices of many rooms,
+   * a message without a room cannot be attributed to one of them, and the devices of all rooms are not actuated
+   * at once.
+   *
+   * @param msg the message
+   * @return missing-room or invalid-room, or null if the message names a room
+   */
+  private static String invalidRoom(ACLMessage msg) {
+    String room = msg.getUserDefinedParameter(ROOM_PARAMETER);
+    if (room == null) {
+      return "missing-room";
+    }
+    return room.trim().isEmpty() || ALL_ROOMS.equals(room) ? "invalid-room" : null;
+  }
+
+  /**
+   * Returns the room that a message is about.
+   *
+   * @param msg the message
+   * @return the index of the room, or -1 if the message names no room or the agent controls no device in the room
+   */
+  private int roomOf(ACLMessage msg) {
+    Integer index = roomIndex.get(msg.getUserDefinedParameter(ROOM_PARAMETER));
+    return index == null ? -1 : index;
+  }
+
+  /**
+   * Chooses the mechanism to offer for a room, like the room manager chooses between the offers of a
+   * {@link BlindsControllerAgent} and a {@link LampControllerAgent} with the weather scoring: raising the blinds
+   * if the weather is sunny or not known, and turning on the lights if it is cloudy. If the room has no available
+   * device of that mechanism, the other mechanism is offered.
+   *
+   * @param devices the number of available devices of the room per mechanism
+   * @param weather the weather that the initiator perceived, i.e. sunny, cloudy or null
+   * @return the index of the mechanism, or -1 if the room has no available device
+   */
+  static int chooseMechanism(int[] devices, String weather) {
+    int preferred = "cloudy".equals(weather) ? TURN_ON_LIGHT : RAISE_BLINDS;
+    int other = preferred == RAISE_BLINDS ? TURN_ON_LIGHT : RAISE_BLINDS;
+    return devices[preferred] > 0 ? preferred : devices[other] > 0 ? other : -1;
+  }
+
+  /**
+   * <p>An OfferDeviceProposalsServer is a JADE behavior that implements part of the
+   * <a href="http://www.fipa.org/specs/fipa00029/SC00029H.html">FIPA Contract Net Interaction Protocol</a>
+   * for the role of the Participant.</p>
+   * <p>The behavior enables the agent to continuously receive calls for proposals (CFPs) for a room, and to
+   * propose the mechanism of the devices of the room that suits the weather given in the CFP (see
+   * {@link #chooseMechanism(int[], String)}). Only devices that are neither reserved nor actuated are offered, and the price is
+   * the number of these devices. The expected lux gain and the energy cost of the offer add up over these
+   * devices, which are reserved until the proposal is accepted or rejected. The agent refuses if it controls no
+   * such device in the room, and replies NOT UNDERSTOOD if the CFP names no room (see
+   * {@link #invalidRoom(ACLMessage)}).</p>
+   * <p>The class extends {@link CyclicBehaviour}, i.e. the behavior is executed continuously.</p>
+   */
+  private class OfferDeviceProposalsServer extends CyclicBehaviour {
+
+    // The task for which a proposal is offered
+    private final String serviceType;
+
+    private final MessageTemplate msgTemplate = MessageTemplate.MatchPerformative(ACLMessage.CFP);
+
+    public OfferDeviceProposalsServer(String serviceType) {
+      this.serviceType = serviceType;
+    }
+
+    public void action() {
+      ACLMessage msg = myAgent.receive(msgTemplate);
+
+      if (msg != null) {
+        ACLMessage reply = msg.createReply();
+        int room = roomOf(msg);
+        prepareProposal(msg, serviceType);
+
+        // Find the devices of the room for each mechanism that are neither reserved nor actuated
+        int[] devices = new int[MECHANISMS.length];
+        if (room >= 0) {
+          for (int device : devicesOfRoom[room]) {
+            if (!actuated[device] && !reserved[device]) {
+              devices[deviceMechanisms[device]]++;
+            }
+          }
+        }
+        int mechanism = chooseMechanism(devices, msg.getUserDefinedParameter(WEATHER_PARAMETER));
+
+        String invalidRoom = invalidRoom(msg);
+        if (invalidRoom != null) {
+          reply.setPerformative(ACLMessage.NOT_UNDERSTOOD);
+          reply.setContent(invalidRoom);
+          LOGGER.warning("NOT UNDERSTOOD " + msg.getContent() + " from " + msg.getSender().getName() + ": "
+                  + invalidRoom);
+        } else if (serviceType.equals(msg.getContent()) && mechanism >= 0) {
+          int count = devices[mechanism];
+          Bid bid = new Bid(getAID(), MECHANISMS[mechanism], count, LUX_GAIN[mechanism] * count,
+                  ENERGY_COST[mechanism] * count, LATENCY[mechanism]);
+          int[] offeredDevices = new int[count];
+          count = 0;
+          for (int device : devicesOfRoom[room]) {
+            if (deviceMechanisms[device] == mechanism && !actuated[device] && !reserved[device]) {
+              reserved[device] = true;
+              offeredDevices[count++] = device;
+            }
+          }
+          reserve(msg, () -> {
+            for (int device : offeredDevices) {
+              reserved[device] = false;
+            }
+          });
+          reply.setPerformative(ACLMessage.PROPOSE);
+          bid.write(reply);
+          reply.addUserDefinedParameter(ROOM_PARAMETER, rooms.get(room));
+          LOGGER.info("PROPOSE " + serviceType + " in room " + rooms.get(room) + " with " + bid
+                  + " (" + count + " devices)");
+        } else {
+          reply.setPerformative(ACLMessage.REFUSE);
+          reply.setContent("not-available");
+          LOGGER.info("REFUSE " + msg.getContent());
+        }
+        sendMessage(reply);
+      } else {
+        block();
+      }
+    }
+  } // End of inner class OfferDeviceProposalsServer
+
+  /**
+   * <p>An ActuateDevicesServer is a JADE behavior that implements part of the
+   * <a href="http://www.fipa.org/specs/fipa00029/SC00029H.html">FIPA Contract Net Interaction Protocol</a>
+   * for the role of the Participant.</p>
+   * <p>The behavior enables the agent to continuously receive acceptance messages, and to satisfy the offer by
+   * actuating all devices of the room with the accepted mechanism that are not actuated yet at once. The effect
+   * on the room is simulated with a single {@link RequestSetIlluminance} per room, rather than with one request
+   * per device. The reservation of the proposal is taken first, and the devices are released again when the
+   * initiator cancels the contract. A duplicate of an ACCEPT PROPOSAL is informed again without actuating
+   * again. An ACCEPT PROPOSAL that names no room is replied with NOT UNDERSTOOD.</p>
+   * <p>The class extends {@link CyclicBehaviour}, i.e. the behavior is executed continuously.</p>
+   */
+  private class ActuateDevicesServer extends CyclicBehaviour {
+
+    private final MessageTemplate msgTemplate = MessageTemplate.MatchPerformative(ACLMessage.ACCEPT_PROPOSAL);
+
+    public void action() {
+      ACLMessage msg = myAgent.receive(msgTemplate);
+
+      if (msg != null) {
+        ACLMessage reply = msg.createReply();
+        int room = roomOf(msg);
+        Runnable reservation = takeReservation(msg);
+        if (reservation != null) {
+          // The reserved devices are actuated below
+          reservation.run();
+        }
+        int mechanism = -1;
+        for (int i = 0; i < MECHANISMS.length; i++) {
+          if (MECHANISMS[i].equals(msg.getContent())) {
+            mechanism = i;
+          }
+        }
+
+        int actuatedDevices = 0;
+        int[] contractDevices = new int[room >= 0 ? devicesOfRoom[room].length : 0];
+        boolean duplicate = isContractOpen(msg);
+        if (room >= 0 && mechanism >= 0 && !duplicate) {
+          for (int device : devicesOfRoom[room]) {
+            if (deviceMechanisms[device] == mechanism && !actuated[device] && !reserved[device]) {
+              actuated[device] = true;
+              contractDevices[actuatedDevices++] = device;
+            }
+          }
+        }
+
+        String invalidRoom = invalidRoom(msg);
+        if (invalidRoom != null) {
+          reply.setPerformative(ACLMessage.NOT_UNDERSTOOD);
+          reply.setContent(invalidRoom);
+          LOGGER.warning("NOT UNDERSTOOD " + msg.getContent() + " from " + msg.getSender().getName() + ": "
+                  + invalidRoom);
+        } else if (duplicate) {
+          reply.setPerformative(ACLMessage.INFORM);
+          reply.setContent("inform-done");
+          LOGGER.info("INFORM " + msg.getContent() + " done again");
+        } else if (actuatedDevices > 0) {
+          addBehaviour(new RequestSetIlluminance("high", rooms.get(room), getExpectedVersion(msg)));
+          int releasedDevices = actuatedDevices;
+          openContract(msg);
+          completeContract(msg, () -> {
+            for (int i = 0; i < releasedDevices; i++) {
+              actuated[contractDevices[i]] = false;
+            }
+          });
+          reply.setPerformative(ACLMessage.INFORM);
+          reply.setContent("inform-done");
+          LOGGER.info("INFORM " + msg.getContent() + " done for " + actuatedDevices + " devices in room "
+                  + rooms.get(room));
+        } else {
+          reply.setPerformative(ACLMessage.FAILURE);
+          reply.setContent("not-available");
+          LOGGER.info("FAIL " + msg.getContent() + " not available");
+        }
+        sendMessage(reply);
+      } else {
+        block();
+      }
+    }
+  } // End of inner class ActuateDevicesServer
+
+  /**
+   * Returns the number of devices that are actuated, e.g. lamps that are turned on.
+   *
+   * @return the number of actuated devices
+   */
+  public int getActuatedDevices() {
+    int count = 0;
+    for (boolean deviceActuated : actuated) {
+      if (deviceActuated) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Returns the number of devices of a mechanism that are actuated, e.g. lamps that are turned on.
+   *
+   * @param mechanism the mechanism, i.e. raise-blinds or turn-on-light
+   * @return the number of actuated devices of the mechanism
+   */
+  public int getActuatedDevices(String mechanism) {
+    byte index = mechanism(mechanism);
+    int count = 0;
+    for (int device = 0; device < actuated.length; device++) {
+      if (actuated[device] && deviceMechanisms[device] == index) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,139 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common;
+
+/**
+ * <p>An ActuatorState keeps track of the device of a {@link CNPParticipant} (e.g. a lamp or blinds) and of the
+ * contracts that the participant committed to:</p>
+ * <ul>
+ * <li>level: the current level of the device between 0 (e.g. the light is off, the blinds are lowered) and
+ * maxLevel (e.g. the light is on, the blinds are fully raised). Each contract raises the level by one.
+ * <li>inFlight: the number of accepted contracts whose effect is not completed yet.
+ * <li>reserved: the number of proposals that are neither accepted nor rejected yet.
+ * </ul>
+ * <p>The contracts in flight and the reserved proposals together are bounded by the capacity of the participant.
+ * The headroom of the device is the number of levels that are neither reached, committed to nor reserved. A
+ * participant only proposes offers if the device has headroom and the participant has capacity left, so that
+ * initiators do not award contracts that change nothing, and concurrent CFPs are not offered the same level.
+ * The price of an offer grows with the level that the contract raises the device to.</p>
+ * <p>The state is only accessed by the behaviors of the agent, i.e. by a single thread.</p>
+ */
+public class ActuatorState {
+
+  private final int maxLevel;
+  private final int capacity;
+  private final int costPerLevel;
+
+  private int level = 0;
+  private int inFlight = 0;
+  private int reserved = 0;
+
+  public ActuatorState(int maxLevel, int capacity, int costPerLevel) {
+    if (maxLevel < 1 || capacity < 1 || costPerLevel < 0) {
+      throw new IllegalArgumentException("Invalid actuator: maxLevel=" + maxLevel + ", capacity=" + capacity
+              + ", cost=" + costPerLevel);
+    }
+    this.maxLevel = maxLevel;
+    this.capacity = capacity;
+    this.costPerLevel = costPerLevel;
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  public int getMaxLevel() {
+    return maxLevel;
+  }
+
+  public int getInFlight() {
+    return inFlight;
+  }
+
+  public int getReserved() {
+    return reserved;
+  }
+
+  /**
+   * Returns the number of levels that can still be offered.
+   *
+   * @return the headroom of the device
+   */
+  public int getHeadroom() {
+    return maxLevel - level - inFlight - reserved;
+  }
+
+  /**
+   * Returns whether the participant can commit to another contract, i.e. whether the device has headroom
+   * and the capacity for contracts in flight and reserved proposals is not exhausted.
+   *
+   * @return true if a contract can be committed to
+   */
+  public boolean canCommit() {
+    return getHeadroom() > 0 && inFlight + reserved < capacity;
+  }
+
+  /**
+   * Returns the price of the next contract, which grows with the level that the contract raises the device to.
+   *
+   * @return the price of the next contract
+   */
+  public int getPrice() {
+    return costPerLevel * (level + inFlight + reserved + 1);
+  }
+
+  /**
+   * Reserves the capacity for a proposal, until the proposal is accepted or rejected.
+   *
+   * @return false if the participant cannot commit to another contract
+   */
+  public boolean reserve() {
+    if (!canCommit()) {
+      return false;
+    }
+    reserved++;
+    return true;
+  }
+
+  /**
+   * Cancels the reservation of a proposal, e.g. when the proposal is rejected or accepted.
+   */
+  public void cancelReservation() {
+    if (reserved > 0) {
+      reserved--;
+    }
+  }
+
+  /**
+   * Commits to a contract.
+   *
+   * @return false if the participant cannot commit to another contract
+   */
+  public boolean commit() {
+    if (!canCommit()) {
+      return false;
+    }
+    inFlight++;
+    return true;
+  }
+
+  /**
+   * Completes a committed contract, i.e. raises the level of the device.
+   */
+  public void complete() {
+    if (inFlight > 0) {
+      inFlight--;
+      level = Math.min(maxLevel, level + 1);
+    }
+  }
+
+  /**
+   * Releases one level of the device, e.g. when the light is turned off since the initiator ended the contract.
+   */
+  public void release() {
+    level = Math.max(0, level - 1);
+  }
+
+  @Override
+  public String toString() {
+    return "level=" + level + "/" + maxLevel + ", inFlight=" + inFlight + ", reserved=" + reserved + "/" + capacity;
+  }
+}
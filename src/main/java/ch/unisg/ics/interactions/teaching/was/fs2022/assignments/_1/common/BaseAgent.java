@@ -2,44 +2,531 @@ package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common;
 
 import jade.core.AID;
 import jade.core.Agent;
+import jade.core.MessageQueue;
 import jade.core.behaviours.Behaviour;
+import jade.core.behaviours.CyclicBehaviour;
 import jade.core.behaviours.OneShotBehaviour;
+import jade.core.behaviours.TickerBehaviour;
 import jade.domain.DFService;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.Property;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
 import jade.domain.FIPAException;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+import jade.util.Logger;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * <p>A BaseAgent is an abstract JADE agent that specifies two behavior classes for
- * interacting with the Directory Facilitator (DF):
+ * <p>A BaseAgent is an abstract JADE agent that provides what all agents of the building share: the directory
+ * of services, the mailbox and its sweeping, the recording, replay and fault injection of the traffic, and the
+ * scheduling of the behaviors. It specifies two behavior classes for interacting with the Directory
+ * Facilitator (DF):
  * <ul>
  * <li>{@link PublishServiceBehavior}: publish services to the DF
  * <li>{@link SearchServiceBehavior}: search for a service in the DF
  * </ul></p>
- * <p>NOTE: This class does not need to be changed for the purpose of this assignment.</p>
+ * <p>Searches subscribe to the DF, i.e. a search completes as soon as the first provider registers, and the
+ * discovered providers are kept up to date while the agent runs (see {@link DirectoryServer}).</p>
+ * <p>Agents that share a JVM can publish and search services in a {@link LocalServiceRegistry} instead of the
+ * DF, i.e. without an ACL round trip through the mailbox of the DF agent. The directory is configured with the
+ * agent argument directory:</p>
+ * <ul>
+ * <li>directory=df (default): services are published and searched in the DF
+ * <li>directory=local: services are published and searched in the local registry only, e.g. if all agents of
+ * the platform run in one JVM
+ * <li>directory=hybrid: services are published and searched in both; a search completes as soon as the local
+ * registry knows a provider, and the DF adds the providers of remote containers
+ * </ul>
+ * <p>The mailbox of a BaseAgent is a {@link LaneMessageQueue}, i.e. protocol-control messages are kept apart
+ * from notifications. The mailbox is bounded according to the {@link MailboxPolicy} returned by
+ * {@link #getMailboxPolicy()}, which can be configured with the agent arguments control-capacity,
+ * telemetry-capacity and telemetry-overflow (e.g. <code>MNG:...RoomManagerAgent(telemetry-capacity=16)</code>).</p>
+ * <p>The traffic of a BaseAgent can be recorded and replayed for performance regression runs:</p>
+ * <ul>
+ * <li>record=dir: all messages sent with {@link #sendMessage(ACLMessage)} and all received messages are
+ * recorded to dir/&lt;agent name&gt;.acl (see {@link TrafficRecorder})
+ * <li>replay=file and replay-speed=N: the received messages of a recorded session are fed into the
+ * mailbox of the agent at N times the recorded pace (see {@link TrafficReplayer})
+ * <li>faults=file and fault-seed=N: the sent and received messages are dropped, duplicated, delayed or
+ * reordered, and the agent crashes, according to the faults declared in the file (see {@link FaultInjector})
+ * </ul>
+ * <p>The mailbox is swept periodically (see {@link MailboxSweeper}): Messages that no behavior received within
+ * the TTL of their lane, and replies to conversations that the agent closed with
+ * {@link #closeConversation(ACLMessage)}, are moved to a bounded {@link DeadLetterBuffer}. Notifications are
+ * superseded by the next notification, so the telemetry lane has a short TTL. Replies to open conversations may
+ * legitimately be slow, so the control lane has a long TTL; protocols that give up waiting close their
+ * conversations, whose late replies are then swept right away. The sweeper is configured with the agent
+ * arguments telemetry-ttl (in ms, default 30000), control-ttl (in ms, default 300000), sweep-period (in ms,
+ * default 5000; 0 disables sweeping) and dead-letter-capacity (default 256).</p>
+ * <p>Behaviors declare the {@link PriorityClass} of their work by asking {@link #mayRun(PriorityClass)} at the
+ * start of their turn, so that they yield to more urgent messages in the mailbox (see {@link PriorityScheduler}).
+ * Notifications to many receivers are sent with {@link #sendFanOut(ACLMessage)} in batches, so that a large
+ * fan-out does not delay actuation requests. The scheduling is configured with the agent arguments
+ * starvation-limit (default 8; 0 disables the scheduling), yield-backoff (the time in ms for which a cyclic
+ * behavior that yields is blocked, default 2) and fan-out-batch (default 64 receivers).</p>
+ * <p>The services published by a {@link PublishServiceBehavior} are deregistered from the directory when the
+ * agent is taken down, and the DF subscriptions of the searches are cancelled before.</p>
+ * <p>Subclasses that override {@link #setup()} and {@link #takeDown()} must call <code>super.setup()</code> and
+ * <code>super.takeDown()</code>.</p>
  */
 public abstract class BaseAgent extends Agent {
 
+  private final static Logger LOGGER = Logger.getJADELogger(BaseAgent.class.getName());
+
+  // The user-defined message parameter that identifies the room that a message is about
+  public static final String ROOM_PARAMETER = "room";
+
+  // The value of the room parameter for subscriptions to the conditions of all rooms at once
+  public static final String ALL_ROOMS = "*";
+
+  // The user-defined message parameter with the topic of a topic notification, e.g. building/1/3/illuminance
+  public static final String TOPIC_PARAMETER = "topic";
+
+  // The user-defined message parameter with the weather that the initiator of a CFP perceived for the room
+  public static final String WEATHER_PARAMETER = "weather";
+
+  // The user-defined message parameter with the measured illuminance in lux of an illuminance notification
+  public static final String LUX_PARAMETER = "lux";
+
+  // The user-defined message parameter with the illuminance version that a notification or a reply reports,
+  // or that a set-illuminance request expects
+  public static final String VERSION_PARAMETER = "version";
+
+  // The user-defined message parameter that identifies a set-illuminance request, which retries of the request keep
+  public static final String REQUEST_ID_PARAMETER = "request-id";
+
+  // The content of the FAILURE to a set-illuminance request whose expected version is outdated
+  public static final String STALE_VERSION = "stale-version";
+
   // The set of the agent's provided services that are published to the DF
   protected Set<String> providedServices = new HashSet<>();
 
   // The map of agents that provide the services for which the agent searched in the DF
-  // The key is the type of the discovered service
-  protected Map<String, Set<AID>> serviceProviders = new HashMap<>();
+  // The key is the type of the discovered service. The sets are replaced on every change, i.e. a set that was
+  // read from the map does not change. The local registry changes the map from the threads of other agents.
+  protected Map<String, Set<AID>> serviceProviders = new ConcurrentHashMap<>();
+
+  // The local registry of the agent's directory, or null if the agent only uses the DF, and whether the agent
+  // also uses the DF
+  private LocalServiceRegistry registry;
+  private boolean useDF = true;
+
+  // The providers that the local registry notified last per service type, which are replaced in the
+  // providers on every notification, and the service types of the agent's listeners of the local registry
+  private final Map<String, Set<AID>> localProviders = new ConcurrentHashMap<>();
+  private final Map<LocalServiceRegistry.Listener, String> localSubscriptions = new ConcurrentHashMap<>();
+
+  // The service types of the DF subscriptions of completed searches by conversation id, and the behavior that
+  // receives their later notifications
+  private final Map<String, String> directorySubscriptions = new HashMap<>();
+  private DirectoryServer directoryServer;
+
+  // The SUBSCRIBE messages of all DF subscriptions, also of running searches, which are cancelled when the agent
+  // is taken down, so that the DF does not keep notifying an agent that is gone
+  private final List<ACLMessage> directorySubscriptionMessages = new ArrayList<>();
+
+  // The mailbox of the agent
+  private LaneMessageQueue mailbox;
+
+  // The recorder of the agent's traffic, or null if the traffic is not recorded
+  private TrafficRecorder recorder;
+
+  // The injector of faults into the agent's traffic, or null if no faults are injected
+  private FaultInjector faults;
+
+  // The counters of messages sent with sendMessage() per receiver, and of the notifications among them,
+  // which are read by other threads (e.g. for performance checks)
+  private final AtomicLong sentMessages = new AtomicLong();
+  private final AtomicLong sentNotifications = new AtomicLong();
+
+  // Whether the agent published its services to its directory, and whether the agent crashed by an injected
+  // fault. The services are deregistered when the agent is taken down, unless it crashed.
+  private volatile boolean registered = false;
+  private volatile boolean crashed = false;
+
+  // The messages that were swept from the mailbox, and the times (in ms) after which the messages of the
+  // telemetry lane and of the control lane are swept
+  private DeadLetterBuffer deadLetters = new DeadLetterBuffer(256);
+  private long telemetryTtl = 30000;
+  private long controlTtl = 300000;
+
+  // The reply-with values of the messages that opened closed conversations, and the times at which the
+  // conversations were closed (in the order of closing)
+  private final Map<String, Long> closedConversations = new LinkedHashMap<>();
+
+  // The scheduler through which behaviors yield to more urgent work
+  private PriorityScheduler scheduler;
+
+  // The batches of fan-outs that are not sent yet, the behavior that sends them, and the receivers per batch
+  private final Deque<ACLMessage> fanOutBatches = new ArrayDeque<>();
+  private FanOutSender fanOutSender;
+  private int fanOutBatch = 64;
+
+  @Override
+  protected void setup() {
+    String directory = getArgument("directory", "df");
+    if ("local".equals(directory) || "hybrid".equals(directory)) {
+      registry = LocalServiceRegistry.forPlatform(getHap());
+      useDF = "hybrid".equals(directory);
+    } else if (!"df".equals(directory)) {
+      LOGGER.warning("Unknown directory " + directory + ", using the DF");
+    }
+
+    String recordDir = getArgument("record", null);
+    if (recordDir != null) {
+      Path log = Paths.get(recordDir, getLocalName() + ".acl");
+      try {
+        recorder = new TrafficRecorder(log);
+        mailbox.setRecorder(recorder);
+        LOGGER.info("Recording traffic of " + getLocalName() + " to " + log);
+      } catch (IOException e) {
+        LOGGER.warning("Cannot record traffic to " + log + ": " + e.getMessage());
+      }
+    }
+
+    String faultFile = getArgument("faults", null);
+    if (faultFile != null) {
+      try (Reader reader = Files.newBufferedReader(Paths.get(faultFile), StandardCharsets.UTF_8)) {
+        faults = FaultInjector.read(reader, Long.parseLong(getArgument("fault-seed", "0")), getLocalName());
+        faults.connect(this::postMessage, this::send, () -> {
+          crashed = true;
+          doDelete();
+        });
+        mailbox.setFaultInjector(faults);
+        LOGGER.info("Injecting faults of " + faultFile + " into the traffic of " + getLocalName());
+      } catch (IOException | IllegalArgumentException e) {
+        LOGGER.warning("Cannot read faults " + faultFile + ": " + e.getMessage());
+      }
+    }
+
+    String replayLog = getArgument("replay", null);
+    if (replayLog != null) {
+      double speed = Double.parseDouble(getArgument("replay-speed", "1"));
+      addBehaviour(new TrafficReplayer(this, Paths.get(replayLog), speed));
+    }
+
+    telemetryTtl = Long.parseLong(getArgument("telemetry-ttl", "30000"));
+    controlTtl = Long.parseLong(getArgument("control-ttl", "300000"));
+    deadLetters = new DeadLetterBuffer(Integer.parseInt(getArgument("dead-letter-capacity", "256")));
+    scheduler = new PriorityScheduler(mailbox, Integer.parseInt(getArgument("starvation-limit", "8")),
+            Long.parseLong(getArgument("yield-backoff", "2")));
+    fanOutBatch = Integer.parseInt(getArgument("fan-out-batch", "64"));
+
+    long sweepPeriod = Long.parseLong(getArgument("sweep-period", "5000"));
+    if (sweepPeriod > 0) {
+      addBehaviour(new MailboxSweeper(this, sweepPeriod));
+    }
+  }
+
+  @Override
+  protected void takeDown() {
+    for (Map.Entry<LocalServiceRegistry.Listener, String> subscription : localSubscriptions.entrySet()) {
+      registry.unsubscribe(subscription.getValue(), subscription.getKey());
+    }
+    if (!crashed) {
+      for (ACLMessage subscription : directorySubscriptionMessages) {
+        sendMessage(DFService.createCancelMessage(this, getDefaultDF(), subscription));
+      }
+    }
+    directorySubscriptionMessages.clear();
+    if (registered && !crashed) {
+      if (registry != null) {
+        registry.deregister(getAID());
+      }
+      if (useDF) {
+        try {
+          DFService.deregister(this);
+        } catch (FIPAException fe) {
+          LOGGER.warning("Cannot deregister " + getLocalName() + " from the DF: " + fe.getMessage());
+        }
+      }
+    }
+    if (faults != null) {
+      mailbox.setFaultInjector(null);
+      faults.close();
+    }
+    if (recorder != null) {
+      mailbox.setRecorder(null);
+      try {
+        recorder.close();
+        LOGGER.info("Recorded " + recorder.getRecordedMessages() + " messages of " + getLocalName());
+      } catch (IOException e) {
+        LOGGER.warning("Cannot close traffic log: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Sends a message. All agent behaviors send messages through this method, so that the traffic
+   * of the agent can be recorded.
+   *
+   * @param msg the message to send
+   */
+  protected void sendMessage(ACLMessage msg) {
+    int receivers = countReceivers(msg);
+    sentMessages.addAndGet(receivers);
+    if (LaneMessageQueue.isTelemetry(msg)) {
+      sentNotifications.addAndGet(receivers);
+    }
+    if (recorder != null) {
+      recorder.record(TrafficRecorder.SENT, msg, System.currentTimeMillis());
+    }
+    if (faults != null && faults.interceptOutgoing(msg)) {
+      // The message is dropped, or sent later by the injector
+      return;
+    }
+    send(msg);
+  }
+
+  /**
+   * Sends a notification to many receivers. If the message has more receivers than the fan-out batch, it is
+   * split into batches that are sent one per turn by a TELEMETRY behavior, so that more urgent behaviors run
+   * between the batches. The batches of consecutive fan-outs are sent in order.
+   *
+   * @param msg the message to send
+   */
+  protected void sendFanOut(ACLMessage msg) {
+    int receivers = countReceivers(msg);
+    if (fanOutBatch <= 0 || (receivers <= fanOutBatch && fanOutBatches.isEmpty())) {
+      sendMessage(msg);
+      return;
+    }
+
+    ACLMessage template = (ACLMessage) msg.clone();
+    template.clearAllReceiver();
+    ACLMessage batch = null;
+    jade.util.leap.Iterator it = msg.getAllReceiver();
+    for (int i = 0; it.hasNext(); i++) {
+      if (i % fanOutBatch == 0) {
+        batch = (ACLMessage) template.clone();
+        fanOutBatches.addLast(batch);
+      }
+      batch.addReceiver((AID) it.next());
+    }
+
+    if (fanOutSender == null) {
+      fanOutSender = new FanOutSender();
+      addBehaviour(fanOutSender);
+    } else {
+      fanOutSender.restart();
+    }
+  }
+
+  private static int countReceivers(ACLMessage msg) {
+    int receivers = 0;
+    jade.util.leap.Iterator it = msg.getAllReceiver();
+    while (it.hasNext()) {
+      it.next();
+      receivers++;
+    }
+    return receivers;
+  }
+
+  /**
+   * Decides whether a behavior may do its work in its current turn, or should yield to more urgent work
+   * (see {@link PriorityScheduler}).
+   *
+   * @param priority the class of the work of the behavior
+   * @return true if the behavior may run
+   */
+  protected boolean mayRun(PriorityClass priority) {
+    return scheduler == null || scheduler.mayRun(priority);
+  }
+
+  /**
+   * Decides whether a cyclic behavior may do its work in its current turn, and blocks the behavior for the
+   * backoff of the scheduler if it should yield, so that it does not spin until the starvation protection lets
+   * it run (see {@link PriorityScheduler#getBackoff()}).
+   *
+   * @param priority  the class of the work of the behavior
+   * @param behaviour the behavior, which is blocked if it should yield
+   * @return true if the behavior may run
+   */
+  protected boolean mayRun(PriorityClass priority, Behaviour behaviour) {
+    if (mayRun(priority)) {
+      return true;
+    }
+    behaviour.block(scheduler.getBackoff());
+    return false;
+  }
+
+  /**
+   * Returns the scheduler of the agent, e.g. for reading the counters of deferred turns.
+   *
+   * @return the scheduler, or null if the agent has not been set up yet
+   */
+  public PriorityScheduler getScheduler() {
+    return scheduler;
+  }
+
+  /**
+   * Closes the conversation that a message opened, i.e. replies to the message that arrive later (e.g. a late
+   * PROPOSE after a Contract Net protocol ended) are swept from the mailbox.
+   *
+   * @param msg the message that opened the conversation, with a reply-with value
+   */
+  protected void closeConversation(ACLMessage msg) {
+    if (msg.getReplyWith() != null) {
+      closedConversations.put(msg.getReplyWith(), System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Returns the number of messages that the agent sent, counted per receiver.
+   *
+   * @return the number of sent messages, including notifications
+   */
+  public long getSentMessages() {
+    return sentMessages.get();
+  }
+
+  /**
+   * Returns the number of notifications of the FIPA Subscribe Interaction Protocol that the agent sent, counted
+   * per receiver.
+   *
+   * @return the number of sent notifications
+   */
+  public long getSentNotifications() {
+    return sentNotifications.get();
+  }
+
+  /**
+   * Returns whether the services of the agent are registered with the DF, i.e. whether the agent is set up and
+   * can be found by other agents.
+   *
+   * @return true if the services are registered
+   */
+  public boolean isRegistered() {
+    return registered;
+  }
+
+  /**
+   * Returns the injector of faults into the traffic of the agent, e.g. for reading the counters of faults.
+   *
+   * @return the injector, or null if no faults are injected
+   */
+  public FaultInjector getFaultInjector() {
+    return faults;
+  }
+
+  /**
+   * Returns the messages that were swept from the mailbox of the agent.
+   *
+   * @return the dead letter buffer
+   */
+  public DeadLetterBuffer getDeadLetters() {
+    return deadLetters;
+  }
+
+  /**
+   * Creates the mailbox of the agent. This method is called by JADE when the agent is started.
+   *
+   * @return a {@link LaneMessageQueue} that is bounded according to the agent's {@link MailboxPolicy}
+   */
+  @Override
+  protected MessageQueue createMessageQueue() {
+    mailbox = new LaneMessageQueue(getMailboxPolicy());
+    return mailbox;
+  }
+
+  /**
+   * Returns the policy that bounds the mailbox of the agent. By default, the policy is read from the
+   * agent arguments, and {@link MailboxPolicy#DEFAULT} applies for missing arguments.
+   *
+   * @return the mailbox policy of the agent
+   */
+  protected MailboxPolicy getMailboxPolicy() {
+    MailboxPolicy defaults = MailboxPolicy.DEFAULT;
+    int controlCapacity = Integer.parseInt(getArgument("control-capacity",
+            String.valueOf(defaults.getControlCapacity())));
+    int telemetryCapacity = Integer.parseInt(getArgument("telemetry-capacity",
+            String.valueOf(defaults.getTelemetryCapacity())));
+    MailboxPolicy.TelemetryOverflow overflow = "drop-oldest".equals(getArgument("telemetry-overflow", ""))
+            ? MailboxPolicy.TelemetryOverflow.DROP_OLDEST : defaults.getTelemetryOverflow();
+    return new MailboxPolicy(controlCapacity, telemetryCapacity, overflow);
+  }
+
+  /**
+   * Returns the mailbox of the agent, e.g. for reading the counters of dropped messages.
+   *
+   * @return the mailbox, or null if the agent has not been started yet
+   */
+  public LaneMessageQueue getMailbox() {
+    return mailbox;
+  }
+
+  /**
+   * Reads an agent argument of the form <code>name=value</code>. Agent arguments are given on start up,
+   * e.g. <code>ENV:...BuildingEnvironmentAgent(name=value,other=value)</code>.
+   *
+   * @param name         the name of the argument
+   * @param defaultValue the value that is returned if the argument is not given
+   * @return the value of the argument
+   */
+  protected String getArgument(String name, String defaultValue) {
+    Object[] args = getArguments();
+    if (args != null) {
+      for (Object arg : args) {
+        String argument = String.valueOf(arg).trim();
+        if (argument.startsWith(name + "=")) {
+          return argument.substring(name.length() + 1);
+        }
+      }
+    }
+    return defaultValue;
+  }
+
+  /**
+   * Returns the properties with which a provided service is published, e.g. for searching the providers of a
+   * room. By default, services are published without properties.
+   *
+   * @param serviceType the type of the provided service
+   * @return the properties of the service
+   */
+  protected Map<String, String> getServiceProperties(String serviceType) {
+    return Collections.emptyMap();
+  }
 
   /**
    * <p>A PublishServiceBehavior is a JADE behavior for publishing a service to the Directory Facilitator (DF).</p>
+   * <p>If the agent uses a local registry, the services are published to the registry, and to the DF only if the
+   * directory is hybrid.</p>
    * <p>The class extends {@link OneShotBehaviour}, i.e. the behavior is executed only once.</p>
    */
   public class PublishServiceBehavior extends OneShotBehaviour {
 
     @Override
     public void action() {
+      if (registry != null) {
+        for (String serviceType : providedServices) {
+          registry.register(myAgent.getAID(), serviceType, getServiceProperties(serviceType));
+        }
+        registered = true;
+        if (!useDF) {
+          return;
+        }
+      }
+
       // Create the agent description that is published in the DF
       DFAgentDescription dfd = new DFAgentDescription();
 
@@ -53,6 +540,9 @@ public abstract class BaseAgent extends Agent {
         // Set the service type and name
         sd.setType(serviceType);
         sd.setName(serviceType);
+        for (Map.Entry<String, String> property : getServiceProperties(serviceType).entrySet()) {
+          sd.addProperties(new Property(property.getKey(), property.getValue()));
+        }
 
         // Add the service description to the agent description
         dfd.addServices(sd);
@@ -61,14 +551,62 @@ public abstract class BaseAgent extends Agent {
       // Register the agent description to the yellow pages of the DF
       try {
         DFService.register(myAgent, dfd);
+        registered = true;
       } catch (FIPAException fe) {
         fe.printStackTrace();
       }
     }
   }
 
+  // Updates the providers of a service with a notification of a DF subscription
+  private void updateServiceProviders(String serviceType, ACLMessage notification) {
+    if (notification.getPerformative() != ACLMessage.INFORM) {
+      LOGGER.warning("DF subscription for " + serviceType + " failed: " + notification.getContent());
+      return;
+    }
+    DFAgentDescription[] descriptions;
+    try {
+      descriptions = DFService.decodeNotification(notification.getContent());
+    } catch (FIPAException fe) {
+      LOGGER.warning("Cannot decode DF notification for " + serviceType + ": " + fe.getMessage());
+      return;
+    }
+    serviceProviders.compute(serviceType, (type, current) -> {
+      Set<AID> providers = current == null ? new HashSet<>() : new HashSet<>(current);
+      for (DFAgentDescription description : descriptions) {
+        // The DF notifies deregistrations with descriptions without services
+        if (description.getAllServices().hasNext()) {
+          providers.add(description.getName());
+        } else {
+          providers.remove(description.getName());
+        }
+      }
+      return providers;
+    });
+  }
+
+  // Updates the providers of a service with the providers in the local registry, which replace the providers that
+  // the registry notified before
+  private void updateLocalProviders(String serviceType, Set<AID> local) {
+    serviceProviders.compute(serviceType, (type, current) -> {
+      Set<AID> providers = current == null ? new HashSet<>() : new HashSet<>(current);
+      providers.removeAll(localProviders.getOrDefault(type, Collections.emptySet()));
+      providers.addAll(local);
+      localProviders.put(type, local);
+      return providers;
+    });
+  }
+
   /**
    * <p>A SearchServiceBehavior is a JADE behavior for searching a service in the Directory Facilitator (DF).</p>
+   * <p>The behavior subscribes to the DF for the agents that provide the service, i.e. the DF notifies the
+   * current providers and every later registration and deregistration, and the behavior is blocked in between
+   * instead of polling the DF. Once the search is completed, the {@link DirectoryServer} receives the later
+   * notifications.</p>
+   * <p>If the agent uses a local registry, the behavior subscribes to the registry instead, which notifies the
+   * providers from the threads of the registering agents, and restarts the behavior. If the directory is hybrid,
+   * the behavior also subscribes to the DF for the providers of remote containers, but does not wait for the DF
+   * if a provider runs in the JVM.</p>
    * <p>The class extends the generic {@link Behaviour} class, i.e. the behavior {@link #action()} is executed
    * until  {@link #done()} returns true. Here, {@link #done()} returns true only if at least one agent providing
    * the desired service has been discovered in the DF.</p>
@@ -77,6 +615,15 @@ public abstract class BaseAgent extends Agent {
 
     private final String serviceType;
 
+    // The conversation of the DF subscription, and the template for receiving its notifications
+    private String conversationId;
+    private MessageTemplate msgTemplate;
+
+    // The listener of the local registry, and whether the search ended, after which the listener only updates
+    // the providers
+    private LocalServiceRegistry.Listener localListener;
+    private volatile boolean ended = false;
+
     /**
      * Constructs a {@link SearchServiceBehavior} for searching a service in the DF.
      * <p>
@@ -89,31 +636,145 @@ public abstract class BaseAgent extends Agent {
 
     @Override
     public void action() {
-      // Prepare the template for searching service of serviceType
-      DFAgentDescription template = new DFAgentDescription();
-      ServiceDescription sd = new ServiceDescription();
-      sd.setType(serviceType);
-      template.addServices(sd);
-      try {
-        // Search the DF for agent descriptions that match the template
-        DFAgentDescription[] result = DFService.search(myAgent, template);
+      if (registry != null && localListener == null) {
+        localListener = (type, providers) -> {
+          updateLocalProviders(type, providers);
+          if (!ended) {
+            restart();
+          }
+        };
+        localSubscriptions.put(localListener, serviceType);
+        updateLocalProviders(serviceType, registry.subscribe(serviceType, localListener));
+      }
+
+      if (useDF && conversationId == null) {
+        // Prepare the template for searching service of serviceType
+        DFAgentDescription template = new DFAgentDescription();
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType(serviceType);
+        template.addServices(sd);
+
+        // Subscribe to the DF for agent descriptions that match the template
+        ACLMessage subscription = DFService.createSubscriptionMessage(myAgent, getDefaultDF(), template, null);
+        conversationId = "df-" + serviceType + "-" + System.currentTimeMillis();
+        subscription.setConversationId(conversationId);
+        msgTemplate = MessageTemplate.and(MessageTemplate.MatchSender(getDefaultDF()),
+                MessageTemplate.MatchConversationId(conversationId));
+        serviceProviders.putIfAbsent(serviceType, new HashSet<>());
+        sendMessage(subscription);
+        directorySubscriptionMessages.add(subscription);
+      }
+      if (!serviceProviders.get(serviceType).isEmpty()) {
+        return;
+      }
 
-        // Store the agents that offer services of serviceType
-        Set<AID> agents = new HashSet<>();
-        for (DFAgentDescription serviceProviderDesc : result) {
-          agents.add(serviceProviderDesc.getName());
+      ACLMessage msg = conversationId == null ? null : myAgent.receive(msgTemplate);
+      if (msg != null) {
+        updateServiceProviders(serviceType, msg);
+      } else {
+        // Block the behavior until the DF or the local registry notifies the agent
+        block();
+        // The local registry may have notified a provider since the providers were read
+        if (!serviceProviders.get(serviceType).isEmpty()) {
+          restart();
         }
-        serviceProviders.put(serviceType, agents);
-      } catch (FIPAException fe) {
-        fe.printStackTrace();
       }
     }
 
     @Override
     public boolean done() {
       // The behavior terminates when agents service providers have been discovered for the serviceType
-      // Otherwise, the search action is repeated
+      // Otherwise, the behavior waits for the next notification of the DF
       return !serviceProviders.get(serviceType).isEmpty();
     }
+
+    @Override
+    public int onEnd() {
+      ended = true;
+      LOGGER.info("Discovered " + serviceProviders.get(serviceType) + " for " + serviceType);
+      if (conversationId != null) {
+        directorySubscriptions.put(conversationId, serviceType);
+        if (directoryServer == null) {
+          directoryServer = new DirectoryServer();
+          myAgent.addBehaviour(directoryServer);
+        }
+      }
+      return super.onEnd();
+    }
   }
+
+  /**
+   * <p>A DirectoryServer is a JADE behavior that receives the notifications of the DF subscriptions of completed
+   * searches (see {@link SearchServiceBehavior}), i.e. it adds providers that register later and removes
+   * providers that deregister.</p>
+   * <p>The class extends {@link CyclicBehaviour}, i.e. the behavior is executed continuously.</p>
+   */
+  private class DirectoryServer extends CyclicBehaviour {
+
+    private final MessageTemplate msgTemplate = new MessageTemplate(
+            (MessageTemplate.MatchExpression) msg -> directorySubscriptions.containsKey(msg.getConversationId()));
+
+    @Override
+    public void action() {
+      ACLMessage msg = myAgent.receive(msgTemplate);
+      if (msg != null) {
+        String serviceType = directorySubscriptions.get(msg.getConversationId());
+        updateServiceProviders(serviceType, msg);
+        LOGGER.info("Providers of " + serviceType + ": " + serviceProviders.get(serviceType));
+      } else {
+        // Block the behavior until the DF notifies the agent
+        block();
+      }
+    }
+  } // End of inner class DirectoryServer
+
+  /**
+   * <p>A MailboxSweeper is a JADE behavior that periodically sweeps the mailbox of the agent: Messages that were
+   * posted longer than the TTL of their lane ago, and replies to closed conversations, are moved to the
+   * {@link DeadLetterBuffer}. Closed conversations are forgotten after the TTL of the control lane, since their
+   * late replies are swept as expired anyway.</p>
+   * <p>The class extends {@link TickerBehaviour}, i.e. the behavior is executed periodically.</p>
+   */
+  private class MailboxSweeper extends TickerBehaviour {
+
+    public MailboxSweeper(Agent a, long period) {
+      super(a, period);
+    }
+
+    @Override
+    protected void onTick() {
+      if (!mayRun(PriorityClass.HOUSEKEEPING)) {
+        return;
+      }
+      long now = System.currentTimeMillis();
+      Iterator<Long> closed = closedConversations.values().iterator();
+      while (closed.hasNext() && closed.next() < now - controlTtl) {
+        closed.remove();
+      }
+
+      int swept = mailbox.sweep(now - controlTtl, now - telemetryTtl, closedConversations.keySet(), deadLetters);
+      if (swept > 0) {
+        LOGGER.info("Swept " + swept + " messages of " + getLocalName() + " to dead letters (expired: "
+                + deadLetters.getExpired() + ", closed: " + deadLetters.getClosed() + ")");
+      }
+    }
+  } // End of inner class MailboxSweeper
+
+  /**
+   * <p>A FanOutSender is a JADE behavior that sends the batches of fan-outs (see {@link #sendFanOut(ACLMessage)}),
+   * one batch per turn, and yields its turn while more urgent messages are in the mailbox.</p>
+   * <p>The class extends {@link CyclicBehaviour}, i.e. the behavior is executed continuously.</p>
+   */
+  private class FanOutSender extends CyclicBehaviour {
+
+    @Override
+    public void action() {
+      if (fanOutBatches.isEmpty()) {
+        // Block the behavior until the next fan-out
+        block();
+      } else if (mayRun(PriorityClass.TELEMETRY, this)) {
+        sendMessage(fanOutBatches.pollFirst());
+      }
+    }
+  } // End of inner class FanOutSender
 }
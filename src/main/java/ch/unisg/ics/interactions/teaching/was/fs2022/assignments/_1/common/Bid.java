@@ -0,0 +1,108 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common;
+
+import jade.core.AID;
+import jade.lang.acl.ACLMessage;
+
+/**
+ * <p>A Bid is the offer of a participant in a Contract Net protocol together with its numeric attributes:</p>
+ * <ul>
+ * <li>mechanism: how the participant satisfies the call, e.g. raise-blinds or turn-on-light
+ * <li>price: the price of the contract (see {@link ActuatorState#getPrice()})
+ * <li>luxGain: the expected gain of illuminance in lux under a clear sky
+ * <li>energyCost: the energy that the contract costs, e.g. in W
+ * <li>latency: the time that the actuation takes in ms
+ * </ul>
+ * <p>The mechanism is the content of the proposal, and the attributes are user-defined message parameters, so
+ * that initiators that only read the content keep working. Missing attributes are 0.</p>
+ */
+public final class Bid {
+
+  // The user-defined message parameters with the attributes of a bid
+  public static final String COST_PARAMETER = "cost";
+  public static final String LUX_GAIN_PARAMETER = "lux-gain";
+  public static final String ENERGY_COST_PARAMETER = "energy-cost";
+  public static final String LATENCY_PARAMETER = "latency-ms";
+
+  private final AID bidder;
+  private final String mechanism;
+  private final int price;
+  private final int luxGain;
+  private final int energyCost;
+  private final int latency;
+
+  public Bid(AID bidder, String mechanism, int price, int luxGain, int energyCost, int latency) {
+    this.bidder = bidder;
+    this.mechanism = mechanism;
+    this.price = price;
+    this.luxGain = luxGain;
+    this.energyCost = energyCost;
+    this.latency = latency;
+  }
+
+  /**
+   * Reads the bid of a proposal.
+   *
+   * @param msg the message, i.e. a proposal within a Contract Net protocol
+   * @return the bid of the sender
+   */
+  public static Bid read(ACLMessage msg) {
+    return new Bid(msg.getSender(), msg.getContent(), readAttribute(msg, COST_PARAMETER),
+            readAttribute(msg, LUX_GAIN_PARAMETER),
+            readAttribute(msg, ENERGY_COST_PARAMETER), readAttribute(msg, LATENCY_PARAMETER));
+  }
+
+  /**
+   * Writes the bid to a proposal.
+   *
+   * @param msg the proposal
+   */
+  public void write(ACLMessage msg) {
+    msg.setContent(mechanism);
+    msg.addUserDefinedParameter(COST_PARAMETER, String.valueOf(price));
+    msg.addUserDefinedParameter(LUX_GAIN_PARAMETER, String.valueOf(luxGain));
+    msg.addUserDefinedParameter(ENERGY_COST_PARAMETER, String.valueOf(energyCost));
+    msg.addUserDefinedParameter(LATENCY_PARAMETER, String.valueOf(latency));
+  }
+
+  private static int readAttribute(ACLMessage msg, String name) {
+    String value = msg.getUserDefinedParameter(name);
+    if (value == null) {
+      return 0;
+    }
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  public AID getBidder() {
+    return bidder;
+  }
+
+  public String getMechanism() {
+    return mechanism;
+  }
+
+  public int getPrice() {
+    return price;
+  }
+
+  public int getLuxGain() {
+    return luxGain;
+  }
+
+  public int getEnergyCost() {
+    return energyCost;
+  }
+
+  public int getLatency() {
+    return latency;
+  }
+
+  @Override
+  public String toString() {
+    return mechanism + " by " + (bidder == null ? "?" : bidder.getLocalName()) + " (price=" + price
+            + ", lux-gain=" + luxGain + ", energy-cost=" + energyCost + ", latency-ms=" + latency + ")";
+  }
+}
@@ -4,11 +4,19 @@ import jade.core.AID;
 import jade.core.behaviours.Behaviour;
 import jade.core.behaviours.CyclicBehaviour;
 import jade.core.behaviours.OneShotBehaviour;
+import jade.core.behaviours.SequentialBehaviour;
+import jade.core.behaviours.WakerBehaviour;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
 import jade.util.Logger;
 
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * <p>A CNPParticipant is an abstract JADE agent that specifies two behavior classes for
@@ -17,21 +25,236 @@ import java.util.Iterator;
  * <ul>
  * <li>{@link OfferProposalsServer}: respond to call for proposals (CFPs)
  * <li>{@link SatisfyOffersServer}: satisfy offers if the agent's proposal is accepted
+ * <li>{@link ReleaseCommitmentsServer}: release the reservations of rejected proposals, and the levels of the
+ * contracts that the initiators cancelled
  * </ul></p>
  * The class also includes a {@link RequestSetIlluminance} behavior for simulating the effects of
  * satisfying an offer in the context of the Room Management use case.
+ * <p>A CNPParticipant tracks the state of its device and its commitments in an {@link ActuatorState}, which is
+ * configured with the agent arguments max-level (the number of levels of the device, default 1), capacity
+ * (the number of contracts in flight and reserved proposals, default 1) and cost (the price per level, default 1).</p>
+ * <p>A proposal reserves the capacity it offers until the initiator accepts or rejects it, or until
+ * reservation-timeout ms (default 20000) passed, e.g. since the initiator crashed or the REJECT PROPOSAL was lost.
+ * A raised level is held as long as the contract lasts, i.e. until the initiator ends the conversation of the
+ * contract with a CANCEL, or calls for proposals for the same room again.</p>
+ * <p>Set-illuminance requests are retried with the same request id if the environment does not reply within
+ * request-timeout ms (default 1000), at most request-retries times (default 2), since the environment
+ * acknowledges retries without applying them again.</p>
  * <p>NOTE: This class does not need to be changed for the purpose of this assignment.</p>
  */
 public abstract class CNPParticipant extends BaseAgent {
 
   private final static Logger LOGGER = Logger.getJADELogger(CNPParticipant.class.getName());
 
+  // The state of the agent's device and of its commitments
+  protected ActuatorState actuator;
+
+  // The time (in ms) after which the reservation of a proposal that was neither accepted nor rejected expires
+  private long reservationTimeout;
+
+  // The reservations of the proposals that were neither accepted nor rejected yet, and the contracts that were
+  // not ended by their initiators yet, by initiator and room
+  private final Map<String, Reservation> reservations = new HashMap<>();
+  private final Map<String, Contract> contracts = new HashMap<>();
+
+  // The template of the messages that end commitments, i.e. rejected proposals and cancelled contracts
+  private final static MessageTemplate ENDED_COMMITMENTS = MessageTemplate.or(
+          MessageTemplate.MatchPerformative(ACLMessage.REJECT_PROPOSAL),
+          MessageTemplate.MatchPerformative(ACLMessage.CANCEL));
+
+  // The number of contracts whose effect is completed, which is read by other threads (e.g. for performance checks)
+  private volatile int completedContracts = 0;
+
+  // The time (in ms) after which an unanswered set-illuminance request is retried, the maximum number of
+  // retries per request, and the number of requests that were sent. The request ids are the count prefixed with
+  // the name of the agent and a nonce per start, so that a restarted agent does not reuse the ids of its earlier
+  // requests, which the environment would acknowledge as retries without applying them.
+  private long requestTimeout;
+  private int requestRetries;
+  private String requestIdPrefix;
+  private long requests = 0;
+
+  @Override
+  protected void setup() {
+    super.setup();
+    actuator = new ActuatorState(Integer.parseInt(getArgument("max-level", "1")),
+            Integer.parseInt(getArgument("capacity", "1")), Integer.parseInt(getArgument("cost", "1")));
+    reservationTimeout = Long.parseLong(getArgument("reservation-timeout", "20000"));
+    requestTimeout = Long.parseLong(getArgument("request-timeout", "1000"));
+    requestRetries = Integer.parseInt(getArgument("request-retries", "2"));
+    requestIdPrefix = getLocalName() + "-" + UUID.randomUUID() + "-";
+
+    // Release the commitments that the initiators end
+    addBehaviour(new ReleaseCommitmentsServer());
+  }
+
+  /**
+   * Returns the illuminance version that the initiator of a contract perceived, which the effect of the contract
+   * can expect when it sets the illuminance.
+   *
+   * @param accept the ACCEPT PROPOSAL message of the contract
+   * @return the version, or -1 if the initiator did not send a version
+   */
+  protected static long getExpectedVersion(ACLMessage accept) {
+    String version = accept.getUserDefinedParameter(VERSION_PARAMETER);
+    try {
+      return version == null ? -1 : Long.parseLong(version);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  // The commitments of the agent are identified by the initiator and the room of their messages, since an
+  // initiator negotiates one Contract Net protocol per room at a time
+  private static String key(ACLMessage msg) {
+    String room = msg.getUserDefinedParameter(ROOM_PARAMETER);
+    return msg.getSender().getName() + "/" + (room == null ? "" : room);
+  }
+
+  /**
+   * Prepares the answer to a CFP: The commitments that the initiators ended before the CFP was sent are released
+   * first, so that the answer offers their capacity. A CFP for the service of the agent also ends the reservation
+   * and the contract of the previous protocol of the initiator for the same room, since the initiator only
+   * negotiates again when the conditions that the previous contract maintained are gone, so that the released
+   * capacity is offered even if the REJECT PROPOSAL or the CANCEL of the initiator is delayed.
+   *
+   * @param cfp the CFP that is answered
+   * @param serviceType the service that the agent offers
+   */
+  protected void prepareProposal(ACLMessage cfp, String serviceType) {
+    releaseEndedCommitments();
+    if (serviceType.equals(cfp.getContent())) {
+      String key = key(cfp);
+      Reservation previous = reservations.remove(key);
+      if (previous != null) {
+        removeBehaviour(previous);
+        previous.cancellation.run();
+      }
+      endContract(contracts.remove(key));
+    }
+  }
+
+  /**
+   * Reserves the capacity that a proposal offers until the initiator accepts or rejects the proposal, or until
+   * the reservation expires.
+   *
+   * @param cfp the CFP that is answered with the proposal
+   * @param cancellation the action that releases the reserved capacity
+   */
+  protected void reserve(ACLMessage cfp, Runnable cancellation) {
+    Reservation reservation = new Reservation(key(cfp), cfp.getReplyWith(), cancellation);
+    reservations.put(reservation.key, reservation);
+    addBehaviour(reservation);
+  }
+
+  /**
+   * Takes the reservation of a proposal, e.g. when the proposal is accepted or rejected.
+   *
+   * @param reply the ACCEPT PROPOSAL or REJECT PROPOSAL message, which is in reply to the CFP
+   * @return the action that releases the reserved capacity, or null if the proposal has no reservation
+   */
+  protected Runnable takeReservation(ACLMessage reply) {
+    String key = key(reply);
+    Reservation reservation = reservations.get(key);
+    if (reservation == null || !Objects.equals(reservation.cfp, reply.getInReplyTo())) {
+      return null;
+    }
+    reservations.remove(key);
+    removeBehaviour(reservation);
+    return reservation.cancellation;
+  }
+
+  /**
+   * Returns whether the contract of an ACCEPT PROPOSAL is open, i.e. whether the message is a duplicate.
+   *
+   * @param accept the ACCEPT PROPOSAL message of the contract
+   * @return true if the contract is open
+   */
+  protected boolean isContractOpen(ACLMessage accept) {
+    Contract contract = contracts.get(key(accept));
+    return contract != null && Objects.equals(contract.accept, accept.getReplyWith());
+  }
+
+  /**
+   * Opens the contract of an ACCEPT PROPOSAL, whose effect is in flight until it is completed.
+   *
+   * @param accept the ACCEPT PROPOSAL message of the contract
+   */
+  protected void openContract(ACLMessage accept) {
+    endContract(contracts.put(key(accept), new Contract(accept.getReplyWith())));
+  }
+
+  /**
+   * Completes the contract of an ACCEPT PROPOSAL. The level of the device is released when the initiator ends
+   * the contract, or right away if the initiator ended it while its effect was in flight.
+   *
+   * @param accept the ACCEPT PROPOSAL message of the contract
+   * @param release the action that releases the level of the device
+   */
+  protected void completeContract(ACLMessage accept, Runnable release) {
+    if (isContractOpen(accept)) {
+      contracts.get(key(accept)).release = release;
+    } else {
+      release.run();
+    }
+  }
+
+  // Releases the level of an ended contract, unless its effect is in flight, i.e. the level is not raised yet
+  private void endContract(Contract contract) {
+    if (contract != null && contract.release != null) {
+      contract.release.run();
+    }
+  }
+
+  /**
+   * Releases the reservations of the proposals that were rejected, and the levels of the contracts that were
+   * cancelled, since the last call.
+   *
+   * @return true if a commitment was ended
+   */
+  protected boolean releaseEndedCommitments() {
+    boolean ended = false;
+    ACLMessage msg;
+    while ((msg = receive(ENDED_COMMITMENTS)) != null) {
+      ended = true;
+      if (msg.getPerformative() == ACLMessage.REJECT_PROPOSAL) {
+        Runnable cancellation = takeReservation(msg);
+        if (cancellation != null) {
+          cancellation.run();
+          LOGGER.info("REJECTED " + msg.getContent() + " (" + actuator + ")");
+        }
+      } else {
+        Contract contract = contracts.get(key(msg));
+        if (contract != null && Objects.equals(contract.accept, msg.getInReplyTo())) {
+          contracts.remove(key(msg));
+          endContract(contract);
+          LOGGER.info("CANCELLED " + msg.getContent() + " (" + actuator + ")");
+        }
+      }
+    }
+    return ended;
+  }
+
+  /**
+   * Returns the number of contracts whose effect is completed, e.g. the number of times the light was turned on.
+   *
+   * @return the number of completed contracts
+   */
+  public int getCompletedContracts() {
+    return completedContracts;
+  }
+
   /**
    * <p>An OfferProposalsServer is a JADE behavior that implements part of the
    * <a href="http://www.fipa.org/specs/fipa00029/SC00029H.html">FIPA Contract Net Interaction Protocol</a>
    * for the role of the Participant.</p>
    * <p>The behavior enables the agent to continuously receive calls for proposals (CFPs) to execute a task,
    * i.g. to increase the illuminance by raising the blinds or by turning on the light.</p>
+   * <p>The agent only proposes if its device has headroom and if it has capacity for another contract
+   * (see {@link ActuatorState}), and prices the offer accordingly. Otherwise, it refuses. The proposal reserves
+   * the capacity until it is accepted or rejected.</p>
+   * <p>Besides the price, the proposal carries the attributes of the offer, i.e. the expected lux gain, the
+   * energy cost and the actuation latency (see {@link Bid}).</p>
    * <p>The class extends {@link CyclicBehaviour}, i.e. the behavior is executed continuously.</p>
    */
   protected class OfferProposalsServer extends CyclicBehaviour {
@@ -42,9 +265,21 @@ public abstract class CNPParticipant extends BaseAgent {
     // The offer that is proposed
     private final String offer;
 
+    // The attributes of the offer, i.e. the expected lux gain, the energy cost and the latency in ms
+    private final int luxGain;
+    private final int energyCost;
+    private final int latency;
+
     public OfferProposalsServer(String serviceType, String offer) {
+      this(serviceType, offer, 0, 0, 0);
+    }
+
+    public OfferProposalsServer(String serviceType, String offer, int luxGain, int energyCost, int latency) {
       this.serviceType = serviceType;
       this.offer = offer;
+      this.luxGain = luxGain;
+      this.energyCost = energyCost;
+      this.latency = latency;
     }
 
     public void action() {
@@ -56,20 +291,25 @@ public abstract class CNPParticipant extends BaseAgent {
         // CFP message received
         String serviceType = msg.getContent();
         ACLMessage reply = msg.createReply();
+        prepareProposal(msg, this.serviceType);
 
-        // The agent PROPOSES only if the call is for its serviceType
-        if (this.serviceType.equals(serviceType)) {
+        // The agent PROPOSES only if the call is for its serviceType, and if it can commit to a contract
+        if (this.serviceType.equals(serviceType) && actuator.canCommit()) {
+          Bid bid = new Bid(getAID(), offer, actuator.getPrice(), luxGain, energyCost, latency);
+          actuator.reserve();
+          reserve(msg, actuator::cancelReservation);
           reply.setPerformative(ACLMessage.PROPOSE);
-          reply.setContent(offer);
-          LOGGER.info("PROPOSE " + serviceType + " with " + offer);
+          bid.write(reply);
+          LOGGER.info("PROPOSE " + serviceType + " with " + bid);
         } else {
           reply.setPerformative(ACLMessage.REFUSE);
-          reply.setContent("not-available");
-          LOGGER.info("REFUSE " + serviceType);
+          reply.setContent(this.serviceType.equals(serviceType) ? (actuator.getHeadroom() > 0 ? "busy" : "no-headroom")
+                  : "not-available");
+          LOGGER.info("REFUSE " + serviceType + ": " + reply.getContent() + " (" + actuator + ")");
         }
 
         // Send the message
-        myAgent.send(reply);
+        sendMessage(reply);
       } else {
         // Block the behavior until a new message that matches the template is received
         block();
@@ -84,6 +324,10 @@ public abstract class CNPParticipant extends BaseAgent {
    * for the role of the Participant.</p>
    * <p>The behavior enables the agent to continuously receive acceptance messages to satisfy offers
    * (e.g. to control the blinds or the light), and then behave to satisfy the offer.</p>
+   * <p>Each accepted contract takes the reservation of its proposal, is committed to in the {@link ActuatorState}
+   * of the agent and runs a new instance of the effect. The level of the device is raised once the effect is
+   * completed, and released again when the initiator cancels the contract. A duplicate of an ACCEPT PROPOSAL is
+   * informed again without committing again.</p>
    * <p>The class extends {@link CyclicBehaviour}, i.e. the behavior is executed continuously.</p>
    */
   protected class SatisfyOffersServer extends CyclicBehaviour {
@@ -91,10 +335,15 @@ public abstract class CNPParticipant extends BaseAgent {
     // The offer that will be satisfied
     private final String offer;
 
-    // The effect of satisfying the offer, i.e. the behavior that is needed to satisfy the offer
-    private final Behaviour effect;
+    // The effect of satisfying the offer, i.e. a factory of the behavior that is needed to satisfy the offer
+    // of an ACCEPT PROPOSAL message
+    private final Function<ACLMessage, Behaviour> effect;
+
+    public SatisfyOffersServer(String offer, Supplier<Behaviour> effect) {
+      this(offer, accept -> effect.get());
+    }
 
-    public SatisfyOffersServer(String offer, Behaviour effect) {
+    public SatisfyOffersServer(String offer, Function<ACLMessage, Behaviour> effect) {
       this.offer = offer;
       this.effect = effect;
     }
@@ -107,15 +356,38 @@ public abstract class CNPParticipant extends BaseAgent {
         // Accept Proposal message received
         String offer = msg.getContent();
         ACLMessage reply = msg.createReply();
+        Runnable reservation = takeReservation(msg);
+        if (reservation != null) {
+          // The reserved capacity is committed to below
+          reservation.run();
+        }
 
-        // The agent INFORMS that the offer is realized only if it successfully satisfies the offer
-        if (this.offer.equals(offer)) {
+        // The agent INFORMS that the offer is realized only if it successfully satisfies the offer,
+        // i.e. if it can still commit to the contract
+        if (this.offer.equals(offer) && isContractOpen(msg)) {
+          reply.setPerformative(ACLMessage.INFORM);
+          reply.setContent("inform-done");
+          LOGGER.info("INFORM " + offer + " done again");
+        } else if (this.offer.equals(offer) && actuator.commit()) {
+          openContract(msg);
 
           // Behaves to satisfy the offer
           // E.g. this behavior is used to simulate how the environment is affected by controlling the blinds.
           // E.g. if the blinds are raised (offer), the agent offering the service set-illuminance is contacted to
           // set illuminance to high.
-          myAgent.addBehaviour(effect);
+          SequentialBehaviour contract = new SequentialBehaviour(myAgent);
+          contract.addSubBehaviour(effect.apply(msg));
+          contract.addSubBehaviour(new OneShotBehaviour(myAgent) {
+            public void action() {
+              actuator.complete();
+              completedContracts++;
+              completeContract(msg, () -> {
+                actuator.release();
+                LOGGER.info("RELEASE " + SatisfyOffersServer.this.offer + " (" + actuator + ")");
+              });
+            }
+          });
+          myAgent.addBehaviour(contract);
 
           reply.setPerformative(ACLMessage.INFORM);
           reply.setContent("inform-done");
@@ -127,32 +399,107 @@ public abstract class CNPParticipant extends BaseAgent {
         }
 
         // Send the message
-        myAgent.send(reply);
+        sendMessage(reply);
       } else {
         block();
       }
     }
   } // End of inner class SatisfyOffersServer
 
+  /**
+   * <p>A ReleaseCommitmentsServer is a JADE behavior that implements part of the
+   * <a href="http://www.fipa.org/specs/fipa00029/SC00029H.html">FIPA Contract Net Interaction Protocol</a>
+   * for the role of the Participant.</p>
+   * <p>The behavior enables the agent to continuously receive REJECT PROPOSAL messages, which release the
+   * reservations of the rejected proposals, and CANCEL messages, with which initiators end the conversations of
+   * their contracts, which release the levels of the contracts (see {@link #releaseEndedCommitments()}).</p>
+   * <p>The class extends {@link CyclicBehaviour}, i.e. the behavior is executed continuously.</p>
+   */
+  protected class ReleaseCommitmentsServer extends CyclicBehaviour {
+
+    public void action() {
+      if (!releaseEndedCommitments()) {
+        block();
+      }
+    }
+  } // End of inner class ReleaseCommitmentsServer
+
+  /**
+   * <p>A Reservation is a JADE behavior that releases the capacity that a proposal reserved if the proposal is
+   * neither accepted nor rejected within the reservation timeout.</p>
+   * <p>The class extends {@link WakerBehaviour}, i.e. the behavior is executed once after the timeout.</p>
+   */
+  private class Reservation extends WakerBehaviour {
+
+    // The initiator and the room of the proposal, the reply-with of the CFP, and the action that releases the
+    // reserved capacity
+    private final String key;
+    private final String cfp;
+    private final Runnable cancellation;
+
+    Reservation(String key, String cfp, Runnable cancellation) {
+      super(CNPParticipant.this, reservationTimeout);
+      this.key = key;
+      this.cfp = cfp;
+      this.cancellation = cancellation;
+    }
+
+    @Override
+    protected void onWake() {
+      if (reservations.remove(key) == this) {
+        cancellation.run();
+        LOGGER.info("EXPIRED reservation of " + key + " (" + actuator + ")");
+      }
+    }
+  } // End of inner class Reservation
+
+  /**
+   * <p>A Contract is an accepted proposal that was not ended by its initiator yet.</p>
+   */
+  private static class Contract {
+
+    // The reply-with of the ACCEPT PROPOSAL, and the action that releases the level of the device, which is null
+    // while the effect of the contract is in flight
+    private final String accept;
+    private Runnable release;
+
+    Contract(String accept) {
+      this.accept = accept;
+    }
+  } // End of inner class Contract
+
   /**
    * <p>A RequestSetIlluminance is a JADE behavior that implements part of the
    * <a href="hhttp://www.fipa.org/specs/fipa00026/XC00026F.html">FIPA Request Interaction Protocol</a>
    * for the role of the Initiator.</p>
    * <p>The behavior enables the agent to simulate how controlling the blinds or the light changes
    * the illuminance of the room, e.g. to high or low.</p>
-   * <p>The class extends {@link OneShotBehaviour}, i.e. the behavior is executed only once.</p>
+   * <p>The request carries a request id, and, if known, the illuminance version that the initiator of the
+   * contract perceived. If the environment does not reply in time, the request is sent again with the same id,
+   * which the environment acknowledges without applying it again. If the environment rejects the request since
+   * another request changed the illuminance after the expected version, the request is sent again as a new
+   * request that expects the current version. Lux readings and changes of the weather do not change the
+   * illuminance version, so they do not make requests stale.</p>
+   * <p>The class extends the generic {@link Behaviour}.</p>
    */
-  protected class RequestSetIlluminance extends OneShotBehaviour {
+  protected class RequestSetIlluminance extends Behaviour {
 
     // The target value of illuminance
     private final String illuminanceValue;
 
+    // The room whose illuminance is set, or null for the room of the environment agent
+    private final String room;
+
+    // The illuminance version that the request expects, or -1 if the request is applied unconditionally
+    private long expectedVersion;
+
     // The service type is used to identify the agents that will be contacted
     private final String serviceType = "set-illuminance";
 
-    // The agent that provides the service of serviceType. In this Request protocol,
-    // at most one participant is required.
-    private AID participant;
+    // The request that was sent, the time when it was sent, and the number of retries
+    private ACLMessage request;
+    private long sentAt;
+    private int retries = 0;
 
     // The template to receive messages
     // The template is used to filter incoming messages e.g. based on the conversation id,
@@ -161,12 +508,22 @@ public abstract class CNPParticipant extends BaseAgent {
 
     // The step that indicates the phase of the protocol
     // Step 0: send REQUEST messages
-    // Step 1: receive INFORM or REFUSE messages
+    // Step 1: receive INFORM or FAILURE messages
     // Step 2: terminate
     private int step = 0;
 
     public RequestSetIlluminance(String illuminanceValue) {
+      this(illuminanceValue, null);
+    }
+
+    public RequestSetIlluminance(String illuminanceValue, String room) {
+      this(illuminanceValue, room, -1);
+    }
+
+    public RequestSetIlluminance(String illuminanceValue, String room, long expectedVersion) {
       this.illuminanceValue = illuminanceValue;
+      this.room = room;
+      this.expectedVersion = expectedVersion;
     }
 
     public void action() {
@@ -174,7 +531,7 @@ public abstract class CNPParticipant extends BaseAgent {
         case 0:
           LOGGER.info("Initiating Request protocol");
           // Terminate behavior if there is not at most one agent providing the service read-illuminance
-          if (!serviceProviders.containsKey(serviceType) || serviceProviders.get(serviceType).size() > 1) {
+          if (!serviceProviders.containsKey(serviceType) || serviceProviders.get(serviceType).size() != 1) {
             LOGGER.info("No appropriate service provider found");
             // Update protocol phase to terminate the protocol
             step = 2;
@@ -189,14 +546,24 @@ public abstract class CNPParticipant extends BaseAgent {
 
             // Set the content, i.e. the serviceType
             msg.setContent(illuminanceValue);
+            if (room != null) {
+              msg.addUserDefinedParameter(ROOM_PARAMETER, room);
+            }
+            if (expectedVersion >= 0) {
+              msg.addUserDefinedParameter(VERSION_PARAMETER, String.valueOf(expectedVersion));
+            }
 
             // Set additional message meta-data, that are used to identify the incoming messages
-            // of the conversation
+            // of the conversation, and the id that the retries of the request keep
+            String requestId = requestIdPrefix + (++requests);
             msg.setConversationId("request-" + serviceType);
-            msg.setReplyWith("request-" + System.currentTimeMillis()); // Unique value
+            msg.setReplyWith("request-" + requestId); // Unique value, also for requests sent in the same ms
+            msg.addUserDefinedParameter(REQUEST_ID_PARAMETER, requestId);
 
             // Send the message
-            myAgent.send(msg);
+            sendMessage(msg);
+            request = msg;
+            sentAt = System.currentTimeMillis();
             LOGGER.info("REQUEST " + serviceType + " " + illuminanceValue);
 
             // Prepare the template to get responses to the request
@@ -213,17 +580,49 @@ public abstract class CNPParticipant extends BaseAgent {
 
           if (msg != null) {
             // Message received
-            // Update protocol phase
-            step = 2;
+            String version = msg.getUserDefinedParameter(VERSION_PARAMETER);
+            if (msg.getPerformative() == ACLMessage.FAILURE && STALE_VERSION.equals(msg.getContent())
+                    && version != null && retries < requestRetries) {
+              // Another request changed the illuminance since the expected version (e.g. it was raised and lowered
+              // again), so the agent requests again for the current version
+              retries++;
+              expectedVersion = Long.parseLong(version);
+              closeConversation(request);
+              step = 0;
+            } else {
+              // Update protocol phase
+              step = 2;
+            }
+          } else if (System.currentTimeMillis() - sentAt >= requestTimeout) {
+            if (retries < requestRetries) {
+              // The request or its reply may have been lost, so the same request is sent again
+              retries++;
+              sendMessage(request);
+              sentAt = System.currentTimeMillis();
+              LOGGER.info("RETRY " + serviceType + " " + illuminanceValue);
+            } else {
+              LOGGER.warning("No reply to " + serviceType + " " + illuminanceValue + " after " + retries + " retries");
+              step = 2;
+            }
           } else {
-            // Block the behavior until a new message that matches the template is received
-            block();
+            // Block the behavior until a new message that matches the template is received, or until the timeout
+            block(requestTimeout - (System.currentTimeMillis() - sentAt));
           }
           break;
-        case 2:
-          // The behavior terminates if the protocol reached phase 2
-          LOGGER.info("Request protocol terminated");
       }
     }
+
+    // The behavior terminates if the protocol reached phase 2, and late replies to the request are swept
+    @Override
+    public boolean done() {
+      if (step == 2) {
+        if (request != null) {
+          closeConversation(request);
+        }
+        LOGGER.info("Request protocol terminated");
+        return true;
+      }
+      return false;
+    }
   } // End of inner class RequestSetIlluminance
 }
@@ -0,0 +1,80 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common;
+
+import jade.lang.acl.ACLMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>A DeadLetterBuffer keeps the most recent messages that were swept from the mailbox of a {@link BaseAgent},
+ * i.e. messages that no behavior received within the TTL of their mailbox lane, or that belong to conversations
+ * that the agent closed (e.g. a late REFUSE after a Contract Net protocol ended).</p>
+ * <p>The buffer is a ring of a fixed capacity, so that the oldest dead letters are overwritten. The swept messages
+ * are counted per reason, so that the counts keep growing even if the messages themselves are overwritten.</p>
+ * <p>The buffer is accessed by the agent thread and can be read by other threads (e.g. for monitoring), so all
+ * methods are synchronized.</p>
+ */
+public class DeadLetterBuffer {
+
+  private final ACLMessage[] letters;
+  private int next = 0;
+  private int size = 0;
+
+  // The counters of swept messages per reason
+  private long expired = 0;
+  private long closed = 0;
+
+  public DeadLetterBuffer(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Invalid dead letter capacity: " + capacity);
+    }
+    letters = new ACLMessage[capacity];
+  }
+
+  /**
+   * Adds a message that was swept because no behavior received it within the TTL of its mailbox lane.
+   *
+   * @param msg the swept message
+   */
+  public synchronized void addExpired(ACLMessage msg) {
+    expired++;
+    add(msg);
+  }
+
+  /**
+   * Adds a message that was swept because it belongs to a closed conversation.
+   *
+   * @param msg the swept message
+   */
+  public synchronized void addClosed(ACLMessage msg) {
+    closed++;
+    add(msg);
+  }
+
+  private void add(ACLMessage msg) {
+    letters[next] = msg;
+    next = (next + 1) % letters.length;
+    size = Math.min(size + 1, letters.length);
+  }
+
+  public synchronized long getExpired() {
+    return expired;
+  }
+
+  public synchronized long getClosed() {
+    return closed;
+  }
+
+  /**
+   * Returns the dead letters that are still kept, the oldest first.
+   *
+   * @return the kept dead letters
+   */
+  public synchronized List<ACLMessage> getLetters() {
+    List<ACLMessage> kept = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      kept.add(letters[(next - size + i + letters.length) % letters.length]);
+    }
+    return kept;
+  }
+}
@@ -0,0 +1,379 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common;
+
+import jade.lang.acl.ACLMessage;
+import jade.util.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * <p>A FaultInjector injects faults into the traffic of a {@link BaseAgent}, so that the behavior of the
+ * interaction protocols under faults can be measured in a local JVM: messages are dropped, duplicated, delayed
+ * or reordered, and agents crash when they send or receive a message.</p>
+ * <p>The faults are declared per direction, performative and conversation type in a fault file, which is given
+ * with the agent argument faults=file (and fault-seed=N for a reproducible run):</p>
+ * <pre>
+ * # fault &lt;in|out|both&gt; &lt;performative|*&gt; &lt;conversation prefix|*&gt; [drop=p] [duplicate=p] [reorder=p]
+ * #       [crash=p] [delay=ms|min-max]
+ * fault in PROPOSE cfp- drop=0.1
+ * fault out ACCEPT_PROPOSAL * delay=50-500
+ * fault in ACCEPT_PROPOSAL * crash=0.05
+ * </pre>
+ * <p>The probabilities are between 0 and 1, and the first fault that matches a message applies. A reordered
+ * message is held until the next message in the same direction arrives at the injector, or at most for the
+ * delay of its fault (100 ms if no delay is declared). Outgoing messages are intercepted in {@link BaseAgent#sendMessage}, and
+ * incoming messages in the mailbox. Messages that are delivered later are sent, or posted to the agent, by a
+ * timer thread of the injector.</p>
+ */
+public class FaultInjector {
+
+  private final static Logger LOGGER = Logger.getJADELogger(FaultInjector.class.getName());
+
+  // The time (in ms) that a reordered message is held at most, if its fault declares no delay
+  private final static long DEFAULT_HOLD = 100;
+
+  private static final int IN = 0;
+  private static final int OUT = 1;
+
+  /**
+   * <p>A Fault is a declaration of the fault file, i.e. the messages that it matches and the probabilities
+   * of the faults.</p>
+   */
+  public static final class Fault {
+    private final boolean in;
+    private final boolean out;
+    // The performative, or -1 for any performative
+    private final int performative;
+    // The prefix of the conversation id, or null for any conversation
+    private final String conversationPrefix;
+    private final double drop;
+    private final double duplicate;
+    private final double reorder;
+    private final double crash;
+    private final long minDelay;
+    private final long maxDelay;
+
+    Fault(boolean in, boolean out, int performative, String conversationPrefix, double drop, double duplicate,
+          double reorder, double crash, long minDelay, long maxDelay) {
+      this.in = in;
+      this.out = out;
+      this.performative = performative;
+      this.conversationPrefix = conversationPrefix;
+      this.drop = drop;
+      this.duplicate = duplicate;
+      this.reorder = reorder;
+      this.crash = crash;
+      this.minDelay = minDelay;
+      this.maxDelay = maxDelay;
+    }
+
+    private boolean matches(int direction, ACLMessage msg) {
+      String conversationId = msg.getConversationId();
+      return (direction == IN ? in : out)
+              && (performative < 0 || performative == msg.getPerformative())
+              && (conversationPrefix == null
+              || (conversationId != null && conversationId.startsWith(conversationPrefix)));
+    }
+  }
+
+  private final List<Fault> faults;
+  private final Random random;
+  private final String agentName;
+
+  // Deliver the messages that are released later: incoming messages are posted to the agent, outgoing messages
+  // are sent. The agent is deleted on a crash.
+  private Consumer<ACLMessage> inbound;
+  private Consumer<ACLMessage> outbound;
+  private Runnable crash;
+
+  // The incoming messages that were released by the injector, which pass the mailbox without faults
+  private final Set<ACLMessage> released = Collections.newSetFromMap(new IdentityHashMap<>());
+
+  // The message that is held for reordering per direction, or null
+  private final ACLMessage[] held = new ACLMessage[2];
+
+  // The thread that delivers delayed, duplicated and reordered messages, which is started on demand
+  private ScheduledExecutorService timer;
+
+  // The counters of injected faults
+  private long dropped = 0;
+  private long duplicated = 0;
+  private long delayed = 0;
+  private long reordered = 0;
+  private long crashed = 0;
+
+  public FaultInjector(List<Fault> faults, long seed, String agentName) {
+    this.faults = new ArrayList<>(faults);
+    this.random = new Random(seed);
+    this.agentName = agentName;
+  }
+
+  /**
+   * Connects the injector to its agent.
+   *
+   * @param inbound  posts a released incoming message to the agent
+   * @param outbound sends a released outgoing message
+   * @param crash    crashes the agent
+   */
+  void connect(Consumer<ACLMessage> inbound, Consumer<ACLMessage> outbound, Runnable crash) {
+    this.inbound = inbound;
+    this.outbound = outbound;
+    this.crash = crash;
+  }
+
+  /**
+   * Intercepts an incoming message before it is added to the mailbox.
+   *
+   * @param msg the incoming message
+   * @return true if the message is taken by the injector, false if the message is added to the mailbox
+   */
+  public synchronized boolean interceptIncoming(ACLMessage msg) {
+    if (released.remove(msg)) {
+      return false;
+    }
+    return intercept(IN, msg);
+  }
+
+  /**
+   * Intercepts an outgoing message before it is sent.
+   *
+   * @param msg the outgoing message
+   * @return true if the message is taken by the injector, false if the message is sent
+   */
+  public synchronized boolean interceptOutgoing(ACLMessage msg) {
+    return intercept(OUT, msg);
+  }
+
+  private boolean intercept(int direction, ACLMessage msg) {
+    Fault fault = null;
+    for (Fault candidate : faults) {
+      if (candidate.matches(direction, msg)) {
+        fault = candidate;
+        break;
+      }
+    }
+
+    boolean taken = false;
+    if (fault != null) {
+      // An outgoing message may be changed by its sender once it is sent, so a copy is delivered later
+      ACLMessage later = direction == OUT ? (ACLMessage) msg.clone() : msg;
+      if (random.nextDouble() < fault.crash) {
+        crashed++;
+        LOGGER.warning("Injected crash of " + agentName + " on " + describe(direction, msg));
+        schedule(0, crash);
+        taken = true;
+      } else if (random.nextDouble() < fault.drop) {
+        dropped++;
+        taken = true;
+      } else if (held[direction] == null && fault.reorder > 0 && random.nextDouble() < fault.reorder) {
+        reordered++;
+        held[direction] = later;
+        long hold = fault.maxDelay > 0 ? fault.maxDelay : DEFAULT_HOLD;
+        schedule(hold, () -> releaseHeld(direction, later));
+        // The held message is returned here, so that the message itself does not release it
+        return true;
+      } else if (fault.maxDelay > 0) {
+        delayed++;
+        long delay = fault.minDelay + (long) (random.nextDouble() * (fault.maxDelay - fault.minDelay));
+        release(direction, later, delay);
+        taken = true;
+      }
+      if (!taken && random.nextDouble() < fault.duplicate) {
+        duplicated++;
+        release(direction, (ACLMessage) msg.clone(), 0);
+      }
+    }
+
+    // A held message is released after the next message in the same direction
+    ACLMessage previous = held[direction];
+    if (previous != null && previous != msg) {
+      held[direction] = null;
+      release(direction, previous, 0);
+    }
+    return taken;
+  }
+
+  private void releaseHeld(int direction, ACLMessage msg) {
+    synchronized (this) {
+      if (held[direction] != msg) {
+        return;
+      }
+      held[direction] = null;
+    }
+    deliver(direction, msg);
+  }
+
+  private void release(int direction, ACLMessage msg, long delay) {
+    schedule(delay, () -> deliver(direction, msg));
+  }
+
+  // Called by the timer thread without the lock of the injector, since posting a message locks the mailbox,
+  // which in turn intercepts the message
+  private void deliver(int direction, ACLMessage msg) {
+    if (direction == IN) {
+      synchronized (this) {
+        released.add(msg);
+      }
+      inbound.accept(msg);
+    } else {
+      outbound.accept(msg);
+    }
+  }
+
+  private void schedule(long delay, Runnable task) {
+    if (timer == null) {
+      timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "faults-" + agentName);
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    if (!timer.isShutdown()) {
+      timer.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static String describe(int direction, ACLMessage msg) {
+    return (direction == IN ? "receiving " : "sending ") + ACLMessage.getPerformative(msg.getPerformative())
+            + " of conversation " + msg.getConversationId();
+  }
+
+  /**
+   * Stops the delivery of delayed and held messages.
+   */
+  public synchronized void close() {
+    if (timer != null) {
+      timer.shutdownNow();
+    }
+  }
+
+  public synchronized long getDropped() {
+    return dropped;
+  }
+
+  public synchronized long getDuplicated() {
+    return duplicated;
+  }
+
+  public synchronized long getDelayed() {
+    return delayed;
+  }
+
+  public synchronized long getReordered() {
+    return reordered;
+  }
+
+  public synchronized long getCrashed() {
+    return crashed;
+  }
+
+  /**
+   * Reads a fault file.
+   *
+   * @param reader    the reader of the file
+   * @param seed      the seed of the random decisions
+   * @param agentName the name of the agent, for logging
+   * @return the injector
+   * @throws IOException              if the file cannot be read
+   * @throws IllegalArgumentException if the file is malformed, with the number of the malformed line
+   */
+  public static FaultInjector read(Reader reader, long seed, String agentName) throws IOException {
+    BufferedReader lines = new BufferedReader(reader);
+    List<Fault> faults = new ArrayList<>();
+    String line;
+    int lineNumber = 0;
+    while ((line = lines.readLine()) != null) {
+      lineNumber++;
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      try {
+        faults.add(parseFault(line.split("\\s+")));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("line " + lineNumber + ": " + e.getMessage(), e);
+      }
+    }
+    return new FaultInjector(faults, seed, agentName);
+  }
+
+  private static Fault parseFault(String[] words) {
+    if (words.length < 4 || !"fault".equals(words[0])) {
+      throw new IllegalArgumentException("expected fault <in|out|both> <performative> <conversation prefix>");
+    }
+    boolean in = "in".equals(words[1]) || "both".equals(words[1]);
+    boolean out = "out".equals(words[1]) || "both".equals(words[1]);
+    if (!in && !out) {
+      throw new IllegalArgumentException("unknown direction " + words[1]);
+    }
+    int performative = -1;
+    if (!"*".equals(words[2])) {
+      // Both ACCEPT_PROPOSAL and the FIPA name ACCEPT-PROPOSAL are accepted
+      performative = ACLMessage.getInteger(words[2].replace('_', '-'));
+      if (performative < 0) {
+        throw new IllegalArgumentException("unknown performative " + words[2]);
+      }
+    }
+    String conversationPrefix = "*".equals(words[3]) ? null : words[3];
+
+    double drop = 0;
+    double duplicate = 0;
+    double reorder = 0;
+    double crash = 0;
+    long minDelay = 0;
+    long maxDelay = 0;
+    for (int i = 4; i < words.length; i++) {
+      int equals = words[i].indexOf('=');
+      if (equals < 0) {
+        throw new IllegalArgumentException("expected <option>=<value> instead of " + words[i]);
+      }
+      String name = words[i].substring(0, equals);
+      String value = words[i].substring(equals + 1);
+      switch (name) {
+        case "drop":
+          drop = parseProbability(value);
+          break;
+        case "duplicate":
+          duplicate = parseProbability(value);
+          break;
+        case "reorder":
+          reorder = parseProbability(value);
+          break;
+        case "crash":
+          crash = parseProbability(value);
+          break;
+        case "delay":
+          int dash = value.indexOf('-');
+          minDelay = Long.parseLong(dash < 0 ? value : value.substring(0, dash));
+          maxDelay = dash < 0 ? minDelay : Long.parseLong(value.substring(dash + 1));
+          if (minDelay < 0 || maxDelay < minDelay) {
+            throw new IllegalArgumentException("invalid delay " + value);
+          }
+          break;
+        default:
+          throw new IllegalArgumentException("unknown option " + name);
+      }
+    }
+    return new Fault(in, out, performative, conversationPrefix, drop, duplicate, reorder, crash, minDelay,
+            maxDelay);
+  }
+
+  private static double parseProbability(String value) {
+    double probability = Double.parseDouble(value);
+    if (probability < 0 || probability > 1) {
+      throw new IllegalArgumentException("probability " + value + " is not between 0 and 1");
+    }
+    return probability;
+  }
+}
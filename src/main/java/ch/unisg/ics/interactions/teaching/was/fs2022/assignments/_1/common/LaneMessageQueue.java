@@ -0,0 +1,280 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common;
+
+import jade.core.MessageQueue;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+import jade.util.Logger;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * <p>A LaneMessageQueue is the mailbox of a {@link BaseAgent}. The mailbox is split into two lanes:</p>
+ * <ul>
+ * <li>the control lane: holds the messages of the FIPA interaction protocols (e.g. CFP, PROPOSE, ACCEPT PROPOSAL,
+ * the INFORM that follows an ACCEPT PROPOSAL, REQUEST, SUBSCRIBE). The control lane is always scanned first.
+ * <li>the telemetry lane: holds the notifications of the
+ * <a href="http://www.fipa.org/specs/fipa00035/SC00035H.html">FIPA Subscribe Interaction Protocol</a>,
+ * i.e. INFORM messages within "subscribe-*" conversations. The telemetry lane is bounded.
+ * </ul>
+ * <p>Hence, a backlog of notifications neither delays the messages of a Contract Net protocol nor grows the
+ * mailbox without bounds. The lanes are bounded according to a {@link MailboxPolicy}, and the dropped messages
+ * are counted.</p>
+ * <p>Messages that no behavior will receive anymore are swept to a {@link DeadLetterBuffer} by
+ * {@link #sweep(long, long, Set, DeadLetterBuffer)}, so that they do not slow down every later scan of the mailbox.</p>
+ * <p>JADE synchronizes all accesses to the mailbox on the queue itself. The counters are read under the same
+ * lock, so that they can be read by other threads (e.g. for monitoring).</p>
+ */
+public class LaneMessageQueue implements MessageQueue {
+
+  private final static Logger LOGGER = Logger.getJADELogger(LaneMessageQueue.class.getName());
+
+  // The prefix of the conversations of the FIPA Subscribe Interaction Protocol
+  private final static String SUBSCRIBE_CONVERSATION_PREFIX = "subscribe-";
+
+  private final LinkedList<ACLMessage> controlLane = new LinkedList<>();
+  private final LinkedList<ACLMessage> telemetryLane = new LinkedList<>();
+  private final MailboxPolicy policy;
+
+  // The maximum number of control messages, which is updated by JADE through setMaxSize()
+  private int controlCapacity;
+
+  // The counters of dropped messages per lane
+  private long droppedControl = 0;
+  private long droppedTelemetry = 0;
+
+  // The counter of notifications that were replaced by a more recent notification of the same conversation
+  private long conflatedTelemetry = 0;
+
+  // The recorder of received messages, or null if the traffic of the agent is not recorded
+  private TrafficRecorder recorder;
+
+  // The injector of faults into received messages, or null if no faults are injected
+  private FaultInjector faults;
+
+  public LaneMessageQueue(MailboxPolicy policy) {
+    this.policy = policy;
+    this.controlCapacity = policy.getControlCapacity();
+  }
+
+  /**
+   * Checks whether a message is a notification of the FIPA Subscribe Interaction Protocol.
+   *
+   * @param msg the message to classify
+   * @return true if the message belongs to the telemetry lane
+   */
+  public static boolean isTelemetry(ACLMessage msg) {
+    String conversationId = msg.getConversationId();
+    return msg.getPerformative() == ACLMessage.INFORM && conversationId != null
+            && conversationId.startsWith(SUBSCRIBE_CONVERSATION_PREFIX);
+  }
+
+  @Override
+  public synchronized void addFirst(ACLMessage msg) {
+    // Messages are put back at the head of the mailbox e.g. when a behavior uses putBack()
+    if (isTelemetry(msg)) {
+      telemetryLane.addFirst(msg);
+      trimTelemetry();
+    } else {
+      controlLane.addFirst(msg);
+      trimControl();
+    }
+  }
+
+  @Override
+  public synchronized void addLast(ACLMessage msg) {
+    if (faults != null && faults.interceptIncoming(msg)) {
+      // The message is dropped, or posted again later by the injector
+      return;
+    }
+    if (recorder != null) {
+      recorder.record(TrafficRecorder.RECEIVED, msg, System.currentTimeMillis());
+    }
+    if (!isTelemetry(msg)) {
+      controlLane.addLast(msg);
+      trimControl();
+      return;
+    }
+
+    if (policy.getTelemetryOverflow() == MailboxPolicy.TelemetryOverflow.LATEST_PER_CONVERSATION) {
+      // Replace the pending notification of the same sender, conversation and topic, if any. The notifications
+      // of a topic pattern share the conversation of the pattern, but each topic keeps its latest value.
+      String topic = msg.getUserDefinedParameter(BaseAgent.TOPIC_PARAMETER);
+      Iterator<ACLMessage> it = telemetryLane.iterator();
+      while (it.hasNext()) {
+        ACLMessage pending = it.next();
+        if (msg.getConversationId().equals(pending.getConversationId())
+                && msg.getSender() != null && msg.getSender().equals(pending.getSender())
+                && Objects.equals(topic, pending.getUserDefinedParameter(BaseAgent.TOPIC_PARAMETER))) {
+          it.remove();
+          conflatedTelemetry++;
+          break;
+        }
+      }
+    }
+    telemetryLane.addLast(msg);
+    trimTelemetry();
+  }
+
+  private void trimControl() {
+    while (controlCapacity > 0 && controlLane.size() > controlCapacity) {
+      ACLMessage dropped = controlLane.removeFirst();
+      droppedControl++;
+      LOGGER.warning("Mailbox full, dropping " + ACLMessage.getPerformative(dropped.getPerformative())
+              + " of conversation " + dropped.getConversationId());
+    }
+  }
+
+  private void trimTelemetry() {
+    while (telemetryLane.size() > policy.getTelemetryCapacity()) {
+      telemetryLane.removeFirst();
+      droppedTelemetry++;
+    }
+  }
+
+  @Override
+  public synchronized ACLMessage receive(MessageTemplate template) {
+    // The control lane is scanned first, so that protocol replies are not delayed by notifications
+    ACLMessage msg = receive(controlLane, template);
+    return msg != null ? msg : receive(telemetryLane, template);
+  }
+
+  private ACLMessage receive(LinkedList<ACLMessage> lane, MessageTemplate template) {
+    Iterator<ACLMessage> it = lane.iterator();
+    while (it.hasNext()) {
+      ACLMessage msg = it.next();
+      if (template == null || template.match(msg)) {
+        it.remove();
+        return msg;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Sweeps the messages that were posted before the expiry time of their lane, or that reply to a closed
+   * conversation, from both lanes to a dead letter buffer.
+   *
+   * @param controlExpiredBefore   the time (in ms) before which messages of the control lane are expired
+   * @param telemetryExpiredBefore the time (in ms) before which messages of the telemetry lane are expired
+   * @param closedConversations    the reply-with values of the messages that opened the closed conversations
+   * @param deadLetters            the buffer for the swept messages
+   * @return the number of swept messages
+   */
+  public synchronized int sweep(long controlExpiredBefore, long telemetryExpiredBefore,
+                                Set<String> closedConversations, DeadLetterBuffer deadLetters) {
+    return sweep(controlLane, controlExpiredBefore, closedConversations, deadLetters)
+            + sweep(telemetryLane, telemetryExpiredBefore, closedConversations, deadLetters);
+  }
+
+  private int sweep(LinkedList<ACLMessage> lane, long expiredBefore, Set<String> closedConversations,
+                    DeadLetterBuffer deadLetters) {
+    int swept = 0;
+    Iterator<ACLMessage> it = lane.iterator();
+    while (it.hasNext()) {
+      ACLMessage msg = it.next();
+      if (msg.getInReplyTo() != null && closedConversations.contains(msg.getInReplyTo())) {
+        it.remove();
+        deadLetters.addClosed(msg);
+        swept++;
+      } else if (msg.getPostTimeStamp() > 0 && msg.getPostTimeStamp() < expiredBefore) {
+        it.remove();
+        deadLetters.addExpired(msg);
+        swept++;
+      }
+    }
+    return swept;
+  }
+
+  @Override
+  public synchronized int getMaxSize() {
+    return controlCapacity;
+  }
+
+  @Override
+  public synchronized void setMaxSize(int newSize) throws IllegalArgumentException {
+    if (newSize < 0) {
+      throw new IllegalArgumentException("Invalid mailbox size: " + newSize);
+    }
+    // JADE sets the size configured for the agent (0 by default). The policy of the agent applies
+    // unless a size is explicitly configured.
+    if (newSize > 0) {
+      controlCapacity = newSize;
+      trimControl();
+    }
+  }
+
+  @Override
+  public synchronized boolean isEmpty() {
+    return controlLane.isEmpty() && telemetryLane.isEmpty();
+  }
+
+  @Override
+  public synchronized void copyTo(jade.util.leap.List messages) {
+    for (ACLMessage msg : controlLane) {
+      messages.add(msg);
+    }
+    for (ACLMessage msg : telemetryLane) {
+      messages.add(msg);
+    }
+  }
+
+  @Override
+  public synchronized int size() {
+    return controlLane.size() + telemetryLane.size();
+  }
+
+  /**
+   * Returns the most urgent {@link PriorityClass} of the queued messages, so that less urgent behaviors can
+   * yield to the behaviors that serve them (see {@link PriorityScheduler}).
+   *
+   * @return the most urgent class, or null if the mailbox is empty
+   */
+  public synchronized PriorityClass getPendingPriority() {
+    PriorityClass pending = telemetryLane.isEmpty() ? null : PriorityClass.TELEMETRY;
+    for (ACLMessage msg : controlLane) {
+      PriorityClass priority = PriorityClass.of(msg);
+      if (priority == PriorityClass.CONTROL) {
+        return priority;
+      }
+      if (pending == null || priority.isAbove(pending)) {
+        pending = priority;
+      }
+    }
+    return pending;
+  }
+
+  public synchronized int getControlSize() {
+    return controlLane.size();
+  }
+
+  public synchronized int getTelemetrySize() {
+    return telemetryLane.size();
+  }
+
+  public synchronized long getDroppedControl() {
+    return droppedControl;
+  }
+
+  public synchronized long getDroppedTelemetry() {
+    return droppedTelemetry;
+  }
+
+  public synchronized long getConflatedTelemetry() {
+    return conflatedTelemetry;
+  }
+
+  public synchronized void setRecorder(TrafficRecorder recorder) {
+    this.recorder = recorder;
+  }
+
+  public synchronized void setFaultInjector(FaultInjector faults) {
+    this.faults = faults;
+  }
+
+  public MailboxPolicy getPolicy() {
+    return policy;
+  }
+}
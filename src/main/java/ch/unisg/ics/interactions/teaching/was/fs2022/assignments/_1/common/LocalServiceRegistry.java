@@ -0,0 +1,181 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common;
+
+import jade.core.AID;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * <p>A LocalServiceRegistry is a directory of the services of the agents of a platform that run in the same JVM,
+ * i.e. an alternative to the Directory Facilitator (DF) without an ACL round trip per registration and search.
+ * The registry is an index from service types to the agents that provide them, and the properties with which
+ * they registered, so that concurrent registrations and searches of different types do not contend.</p>
+ * <p>Listeners of a service type are called with the current providers of the type on every registration and
+ * deregistration of the type, like the notifications of a DF subscription. Listeners are called by the thread
+ * that changes the registry, in the order of the changes, so they must not block (e.g. a {@link BaseAgent}
+ * only updates its providers and restarts its search, see {@link BaseAgent.SearchServiceBehavior}).</p>
+ * <p>There is one registry per platform and JVM (see {@link #forPlatform(String)}). The registry does not know
+ * the agents of other JVMs, so agents that must be found from remote containers also register with the DF (see
+ * the agent argument directory of {@link BaseAgent}).</p>
+ */
+public final class LocalServiceRegistry {
+
+  /**
+   * <p>A Listener is notified of the current providers of a service type whenever they change.</p>
+   */
+  public interface Listener {
+
+    /**
+     * Called with the providers of a service type after a registration or deregistration of the type.
+     *
+     * @param serviceType the service type
+     * @param providers   the agents that provide the service type, which the registry does not change later
+     */
+    void providersChanged(String serviceType, Set<AID> providers);
+  }
+
+  // The registries by platform name
+  private static final Map<String, LocalServiceRegistry> REGISTRIES = new ConcurrentHashMap<>();
+
+  // The providers of each service type with the properties of their registration. Searches read the providers
+  // without locking, while changes of a type are made, and notified to its listeners, holding the lock of its
+  // providers.
+  private final Map<String, Map<AID, Map<String, String>>> providers = new ConcurrentHashMap<>();
+
+  // The service types that each agent registered, for deregistering all services of an agent at once
+  private final Map<AID, Set<String>> serviceTypes = new ConcurrentHashMap<>();
+
+  // The listeners of each service type
+  private final Map<String, List<Listener>> listeners = new ConcurrentHashMap<>();
+
+  private LocalServiceRegistry() {
+  }
+
+  /**
+   * Returns the registry of a platform, i.e. of all containers of the platform in this JVM.
+   *
+   * @param platform the name of the platform, e.g. {@link jade.core.Agent#getHap()}
+   * @return the registry of the platform
+   */
+  public static LocalServiceRegistry forPlatform(String platform) {
+    return REGISTRIES.computeIfAbsent(platform, name -> new LocalServiceRegistry());
+  }
+
+  /**
+   * Registers an agent as a provider of a service type, or replaces the properties of its registration.
+   *
+   * @param agent       the agent that provides the service
+   * @param serviceType the service type
+   * @param properties  the properties of the service, e.g. for searching providers of a room
+   */
+  public void register(AID agent, String serviceType, Map<String, String> properties) {
+    serviceTypes.computeIfAbsent(agent, name -> ConcurrentHashMap.newKeySet()).add(serviceType);
+    Map<AID, Map<String, String>> providersOfType = providers.computeIfAbsent(serviceType,
+            type -> new ConcurrentHashMap<>());
+    synchronized (providersOfType) {
+      providersOfType.put(agent, Collections.unmodifiableMap(new HashMap<>(properties)));
+      notifyListeners(serviceType, providersOfType);
+    }
+  }
+
+  /**
+   * Deregisters all services of an agent.
+   *
+   * @param agent the agent
+   */
+  public void deregister(AID agent) {
+    Set<String> types = serviceTypes.remove(agent);
+    if (types == null) {
+      return;
+    }
+    for (String serviceType : types) {
+      Map<AID, Map<String, String>> providersOfType = providers.get(serviceType);
+      synchronized (providersOfType) {
+        if (providersOfType.remove(agent) != null) {
+          notifyListeners(serviceType, providersOfType);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the providers of a service type.
+   *
+   * @param serviceType the service type
+   * @return the agents that provide the service type
+   */
+  public Set<AID> search(String serviceType) {
+    return search(serviceType, Collections.emptyMap());
+  }
+
+  /**
+   * Returns the providers of a service type that registered with the given properties.
+   *
+   * @param serviceType the service type
+   * @param properties  the properties that a registration must have, i.e. each property with the same value
+   * @return the agents that provide the service type with the properties
+   */
+  public Set<AID> search(String serviceType, Map<String, String> properties) {
+    Map<AID, Map<String, String>> providersOfType = providers.get(serviceType);
+    if (providersOfType == null) {
+      return Collections.emptySet();
+    }
+    if (properties.isEmpty()) {
+      return new HashSet<>(providersOfType.keySet());
+    }
+    Set<AID> found = new HashSet<>();
+    for (Map.Entry<AID, Map<String, String>> provider : providersOfType.entrySet()) {
+      if (provider.getValue().entrySet().containsAll(properties.entrySet())) {
+        found.add(provider.getKey());
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Adds a listener of a service type and returns the current providers of the type, so that the listener
+   * misses no change after the returned providers.
+   *
+   * @param serviceType the service type
+   * @param listener    the listener
+   * @return the agents that provide the service type
+   */
+  public Set<AID> subscribe(String serviceType, Listener listener) {
+    Map<AID, Map<String, String>> providersOfType = providers.computeIfAbsent(serviceType,
+            type -> new ConcurrentHashMap<>());
+    synchronized (providersOfType) {
+      listeners.computeIfAbsent(serviceType, type -> new CopyOnWriteArrayList<>()).add(listener);
+      return new HashSet<>(providersOfType.keySet());
+    }
+  }
+
+  /**
+   * Removes a listener of a service type.
+   *
+   * @param serviceType the service type
+   * @param listener    the listener
+   */
+  public void unsubscribe(String serviceType, Listener listener) {
+    List<Listener> listenersOfType = listeners.get(serviceType);
+    if (listenersOfType != null) {
+      listenersOfType.remove(listener);
+    }
+  }
+
+  private void notifyListeners(String serviceType, Map<AID, Map<String, String>> providersOfType) {
+    List<Listener> listenersOfType = listeners.get(serviceType);
+    if (listenersOfType == null || listenersOfType.isEmpty()) {
+      return;
+    }
+    Set<AID> current = Collections.unmodifiableSet(new HashSet<>(providersOfType.keySet()));
+    for (Listener listener : listenersOfType) {
+      listener.providersChanged(serviceType, current);
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common;
+
+/**
+ * <p>A MailboxPolicy specifies how the mailbox of a {@link BaseAgent} (see {@link LaneMessageQueue}) is bounded:</p>
+ * <ul>
+ * <li>controlCapacity: the maximum number of protocol-control messages (e.g. CFP, PROPOSE, REQUEST) that are
+ * kept in the mailbox. If the capacity is exceeded, the oldest control message is dropped. A value of 0 means that
+ * the control lane is unbounded.
+ * <li>telemetryCapacity: the maximum number of notifications (i.e. INFORM messages within "subscribe-*"
+ * conversations) that are kept in the mailbox.
+ * <li>telemetryOverflow: the strategy for keeping the telemetry lane within its capacity.
+ * </ul>
+ */
+public class MailboxPolicy {
+
+  /**
+   * The strategies for keeping the telemetry lane of the mailbox within its capacity:
+   * <ul>
+   * <li>DROP_OLDEST: the oldest notification is dropped when a new notification does not fit in the lane
+   * <li>LATEST_PER_CONVERSATION: a new notification replaces any pending notification of the same sender,
+   * conversation and topic, i.e. only the latest value of each conversation and topic is kept
+   * </ul>
+   */
+  public enum TelemetryOverflow {
+    DROP_OLDEST,
+    LATEST_PER_CONVERSATION
+  }
+
+  // The policy that is used if an agent does not specify a policy in its arguments
+  public static final MailboxPolicy DEFAULT = new MailboxPolicy(0, 64, TelemetryOverflow.LATEST_PER_CONVERSATION);
+
+  private final int controlCapacity;
+  private final int telemetryCapacity;
+  private final TelemetryOverflow telemetryOverflow;
+
+  public MailboxPolicy(int controlCapacity, int telemetryCapacity, TelemetryOverflow telemetryOverflow) {
+    if (controlCapacity < 0 || telemetryCapacity < 1) {
+      throw new IllegalArgumentException("Invalid mailbox capacity: control=" + controlCapacity
+              + ", telemetry=" + telemetryCapacity);
+    }
+    this.controlCapacity = controlCapacity;
+    this.telemetryCapacity = telemetryCapacity;
+    this.telemetryOverflow = telemetryOverflow;
+  }
+
+  public int getControlCapacity() {
+    return controlCapacity;
+  }
+
+  public int getTelemetryCapacity() {
+    return telemetryCapacity;
+  }
+
+  public TelemetryOverflow getTelemetryOverflow() {
+    return telemetryOverflow;
+  }
+
+  @Override
+  public String toString() {
+    return "control=" + controlCapacity + ", telemetry=" + telemetryCapacity + ", overflow=" + telemetryOverflow;
+  }
+}
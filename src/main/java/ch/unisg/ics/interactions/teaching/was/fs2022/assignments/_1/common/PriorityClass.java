@@ -0,0 +1,66 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common;
+
+import jade.lang.acl.ACLMessage;
+
+/**
+ * <p>A PriorityClass is the class of work that a behavior of a {@link BaseAgent} does, from the most urgent to
+ * the least urgent:</p>
+ * <ul>
+ * <li>CONTROL: actuation, e.g. serving REQUEST and ACCEPT PROPOSAL messages
+ * <li>PROTOCOL: the other steps of the FIPA interaction protocols, e.g. CFP, PROPOSE or SUBSCRIBE
+ * <li>TELEMETRY: notifications and sensor readings
+ * <li>HOUSEKEEPING: logging, sweeping and other periodic maintenance
+ * </ul>
+ * <p>The weight of a class is its share of the turns of the agent while more urgent work is pending
+ * (see {@link PriorityScheduler}).</p>
+ */
+public enum PriorityClass {
+  CONTROL(8),
+  PROTOCOL(4),
+  TELEMETRY(2),
+  HOUSEKEEPING(1);
+
+  private final int weight;
+
+  PriorityClass(int weight) {
+    this.weight = weight;
+  }
+
+  public int getWeight() {
+    return weight;
+  }
+
+  /**
+   * Checks whether this class is more urgent than another class.
+   *
+   * @param other the other class
+   * @return true if this class is more urgent
+   */
+  public boolean isAbove(PriorityClass other) {
+    return ordinal() < other.ordinal();
+  }
+
+  /**
+   * Classifies the work that a received message causes.
+   *
+   * @param msg the received message
+   * @return the class of the work
+   */
+  public static PriorityClass of(ACLMessage msg) {
+    if (LaneMessageQueue.isTelemetry(msg)) {
+      return TELEMETRY;
+    }
+    switch (msg.getPerformative()) {
+      case ACLMessage.REQUEST:
+      case ACLMessage.ACCEPT_PROPOSAL:
+        return CONTROL;
+      case ACLMessage.FAILURE:
+      case ACLMessage.CONFIRM:
+        // The outcome of notifications (see the delivery health of the environment) is telemetry as well
+        String conversationId = msg.getConversationId();
+        return conversationId != null && conversationId.startsWith("subscribe-") ? TELEMETRY : PROTOCOL;
+      default:
+        return PROTOCOL;
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common;
+
+/**
+ * <p>A PriorityScheduler lets the behaviors of a {@link BaseAgent} yield to more urgent work. JADE runs the
+ * behaviors of an agent in plain round-robin, and its scheduler cannot be replaced. Hence, the scheduling is
+ * cooperative: a behavior of a {@link PriorityClass} asks {@link #mayRun(PriorityClass)} at the start of its
+ * turn, and returns without doing its work if the mailbox holds a message of a more urgent class. The behavior
+ * that serves the message then runs first, in the same round of the agent.</p>
+ * <p>A class is deferred at most <code>starvation-limit / weight</code> times in a row, i.e. while urgent work
+ * keeps arriving, the classes still run in proportion to their weights (with the default limit of 8, every
+ * 3rd turn of PROTOCOL, every 5th turn of TELEMETRY and every 9th turn of HOUSEKEEPING behaviors). A limit of
+ * 0 disables the scheduling, i.e. all behaviors run in plain round-robin.</p>
+ * <p>A cyclic behavior that yields its turn is blocked for the backoff (see {@link #getBackoff()}), so that it
+ * does not spin on the agent thread while the urgent messages wait to be served. JADE restarts the behavior
+ * earlier if a new message arrives.</p>
+ * <p>The scheduler must only be used by the behaviors of the agent.</p>
+ */
+public class PriorityScheduler {
+
+  private static final PriorityClass[] CLASSES = PriorityClass.values();
+
+  private final LaneMessageQueue mailbox;
+  private final int starvationLimit;
+  private final long backoff;
+
+  // The number of times in a row that each class was deferred
+  private final int[] streaks = new int[CLASSES.length];
+
+  // The counters of deferred turns and of turns that ran despite urgent work, per class
+  private final long[] deferred = new long[CLASSES.length];
+  private final long[] forced = new long[CLASSES.length];
+
+  public PriorityScheduler(LaneMessageQueue mailbox, int starvationLimit, long backoff) {
+    this.mailbox = mailbox;
+    this.starvationLimit = starvationLimit;
+    this.backoff = Math.max(1, backoff);
+  }
+
+  /**
+   * Decides whether a behavior of a class may do its work in its current turn.
+   *
+   * @param priority the class of the behavior
+   * @return true if the behavior may run, false if it should yield its turn
+   */
+  public boolean mayRun(PriorityClass priority) {
+    if (starvationLimit <= 0 || priority == PriorityClass.CONTROL) {
+      return true;
+    }
+    PriorityClass pending = mailbox.getPendingPriority();
+    int index = priority.ordinal();
+    if (pending == null || !pending.isAbove(priority)) {
+      streaks[index] = 0;
+      return true;
+    }
+    if (streaks[index] >= Math.max(1, starvationLimit / priority.getWeight())) {
+      // Starvation protection: the behavior runs despite the urgent work
+      streaks[index] = 0;
+      forced[index]++;
+      return true;
+    }
+    streaks[index]++;
+    deferred[index]++;
+    return false;
+  }
+
+  public int getStarvationLimit() {
+    return starvationLimit;
+  }
+
+  /**
+   * Returns the time for which a cyclic behavior that yields its turn is blocked.
+   *
+   * @return the backoff in ms
+   */
+  public long getBackoff() {
+    return backoff;
+  }
+
+  public long getDeferred(PriorityClass priority) {
+    return deferred[priority.ordinal()];
+  }
+
+  public long getForced(PriorityClass priority) {
+    return forced[priority.ordinal()];
+  }
+}
@@ -0,0 +1,295 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common;
+
+import jade.core.AID;
+import jade.lang.acl.ACLMessage;
+import jade.util.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * <p>A TrafficRecorder appends the ACL messages that an agent sends and receives to a binary log, so that
+ * the traffic can later be replayed with a {@link TrafficReplayer}.</p>
+ * <p>The log starts with the magic number {@link #MAGIC} and a version byte, followed by one record per
+ * message: the record length (4 bytes), the timestamp in ms (8 bytes), the direction (1 byte), the
+ * performative (1 byte), the sender, the receivers, the conversation id, reply-with, in-reply-to, language,
+ * the content and the user-defined parameters. Strings are written as length-prefixed UTF-8, where the length
+ * -1 stands for null.</p>
+ * <p>Recording a message only encodes it into an in-memory chunk, so that the threads that send and receive
+ * messages (e.g. within the synchronized mailbox) never wait for the file. A writer thread of the recorder writes
+ * full chunks right away, and the current chunk at most one second after a message was recorded, and when the
+ * recorder is flushed or closed.</p>
+ */
+public class TrafficRecorder implements Closeable {
+
+  private final static Logger LOGGER = Logger.getJADELogger(TrafficRecorder.class.getName());
+
+  public static final int MAGIC = 0x41434C52; // "ACLR"
+  public static final byte VERSION = 1;
+
+  // The direction of a recorded message
+  public static final byte SENT = 0;
+  public static final byte RECEIVED = 1;
+
+  // The kinds of content of a recorded message
+  static final byte NO_CONTENT = 0;
+  static final byte STRING_CONTENT = 1;
+  static final byte BYTE_CONTENT = 2;
+
+  private static final long FLUSH_INTERVAL = 1000;
+
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  // The number of written chunks that are kept for reuse
+  private static final int SPARE_CHUNKS = 4;
+
+  private final FileChannel channel;
+  private final Thread writer;
+
+  // The chunk to which records are appended, the chunks that are ready to be written, and the written chunks
+  // that are reused. They are guarded by the recorder, while the channel is only used by the writer.
+  private ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+  private final ArrayDeque<ByteBuffer> filled = new ArrayDeque<>();
+  private final ArrayDeque<ByteBuffer> spare = new ArrayDeque<>();
+
+  // The buffer in which a single record is encoded before it is appended to the log
+  private ByteBuffer record = ByteBuffer.allocate(1024);
+
+  // The time at which the oldest record of the current chunk was recorded, or 0 if the chunk is empty
+  private long chunkSince = 0;
+
+  // The number of requested and of completed writes of the current chunk, i.e. of flushes
+  private long flushesRequested = 0;
+  private long flushesCompleted = 0;
+
+  private long recordedMessages = 0;
+  private boolean closed = false;
+  private IOException failure;
+
+  public TrafficRecorder(Path path) throws IOException {
+    this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    chunk.putInt(MAGIC).put(VERSION);
+    chunkSince = System.currentTimeMillis();
+    writer = new Thread(this::writeChunks, "traffic-recorder-" + path.getFileName());
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Appends a message to the log.
+   *
+   * @param direction {@link #SENT} or {@link #RECEIVED}
+   * @param msg       the message
+   * @param timestamp the time at which the message was sent or received
+   */
+  public synchronized void record(byte direction, ACLMessage msg, long timestamp) {
+    if (closed) {
+      return;
+    }
+    record.clear();
+    record.putLong(timestamp).put(direction).put((byte) msg.getPerformative());
+    putString(msg.getSender() == null ? null : msg.getSender().getName());
+    Iterator<?> receivers = msg.getAllReceiver();
+    int count = 0;
+    while (receivers.hasNext()) {
+      receivers.next();
+      count++;
+    }
+    putShort(count);
+    receivers = msg.getAllReceiver();
+    while (receivers.hasNext()) {
+      putString(((AID) receivers.next()).getName());
+    }
+    putString(msg.getConversationId());
+    putString(msg.getReplyWith());
+    putString(msg.getInReplyTo());
+    putString(msg.getLanguage());
+    if (msg.hasByteSequenceContent()) {
+      putBytes(BYTE_CONTENT, msg.getByteSequenceContent());
+    } else if (msg.getContent() != null) {
+      putBytes(STRING_CONTENT, msg.getContent().getBytes(StandardCharsets.UTF_8));
+    } else {
+      ensureCapacity(1);
+      record.put(NO_CONTENT);
+    }
+    putShort(msg.getAllUserDefinedParameters().size());
+    for (Map.Entry<Object, Object> parameter : msg.getAllUserDefinedParameters().entrySet()) {
+      putString(String.valueOf(parameter.getKey()));
+      putString(String.valueOf(parameter.getValue()));
+    }
+    record.flip();
+
+    if (chunk.remaining() < 4 + record.remaining()) {
+      // The chunk is handed to the writer, and the record goes to a fresh chunk that is large enough
+      handOver();
+      if (chunk.capacity() < 4 + record.remaining()) {
+        chunk = ByteBuffer.allocate(4 + record.remaining());
+      }
+    }
+    if (chunkSince == 0) {
+      chunkSince = System.currentTimeMillis();
+    }
+    chunk.putInt(record.remaining()).put(record);
+    recordedMessages++;
+  }
+
+  // Queues the current chunk for writing, and continues with a spare chunk. The caller holds the lock.
+  private void handOver() {
+    if (chunk.position() > 0) {
+      chunk.flip();
+      filled.add(chunk);
+      ByteBuffer next = spare.poll();
+      chunk = next == null ? ByteBuffer.allocate(CHUNK_SIZE) : next;
+      chunkSince = 0;
+      notifyAll();
+    }
+  }
+
+  // The loop of the writer thread, which writes the queued chunks outside the lock
+  private void writeChunks() {
+    ArrayDeque<ByteBuffer> writing = new ArrayDeque<>();
+    while (true) {
+      long flushes;
+      synchronized (this) {
+        while (filled.isEmpty() && !closed && flushesRequested == flushesCompleted) {
+          long now = System.currentTimeMillis();
+          if (chunkSince > 0 && now - chunkSince >= FLUSH_INTERVAL) {
+            handOver();
+          } else {
+            try {
+              wait(chunkSince > 0 ? FLUSH_INTERVAL - (now - chunkSince) : FLUSH_INTERVAL);
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+        }
+        if (closed || flushesRequested != flushesCompleted) {
+          handOver();
+        }
+        writing.addAll(filled);
+        filled.clear();
+        flushes = flushesRequested;
+      }
+
+      IOException error = null;
+      for (ByteBuffer written : writing) {
+        try {
+          write(written);
+        } catch (IOException e) {
+          error = e;
+        }
+      }
+
+      synchronized (this) {
+        if (error != null) {
+          LOGGER.warning("Cannot record messages: " + error.getMessage());
+          failure = error;
+        }
+        for (ByteBuffer written : writing) {
+          if (written.capacity() == CHUNK_SIZE && spare.size() < SPARE_CHUNKS) {
+            written.clear();
+            spare.add(written);
+          }
+        }
+        writing.clear();
+        flushesCompleted = flushes;
+        notifyAll();
+        if (closed && filled.isEmpty()) {
+          return;
+        }
+      }
+    }
+  }
+
+  private void putString(String value) {
+    if (value == null) {
+      ensureCapacity(4);
+      record.putInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    ensureCapacity(4 + bytes.length);
+    record.putInt(bytes.length).put(bytes);
+  }
+
+  private void putShort(int value) {
+    ensureCapacity(2);
+    record.putShort((short) value);
+  }
+
+  private void putBytes(byte kind, byte[] bytes) {
+    ensureCapacity(5 + bytes.length);
+    record.put(kind).putInt(bytes.length).put(bytes);
+  }
+
+  private void ensureCapacity(int size) {
+    if (record.remaining() < size) {
+      ByteBuffer larger = ByteBuffer.allocate(Math.max(record.capacity() * 2, record.position() + size));
+      record.flip();
+      larger.put(record);
+      record = larger;
+    }
+  }
+
+  private void write(ByteBuffer source) throws IOException {
+    while (source.hasRemaining()) {
+      channel.write(source);
+    }
+  }
+
+  /**
+   * Writes the recorded messages to the log, and waits until they are written.
+   *
+   * @throws IOException if the log cannot be written
+   */
+  public synchronized void flush() throws IOException {
+    long flush = ++flushesRequested;
+    notifyAll();
+    try {
+      while (flushesCompleted < flush && writer.isAlive()) {
+        wait(FLUSH_INTERVAL);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while flushing");
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  public synchronized long getRecordedMessages() {
+    return recordedMessages;
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      notifyAll();
+    }
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    channel.close();
+    synchronized (this) {
+      if (failure != null) {
+        throw failure;
+      }
+    }
+  }
+}
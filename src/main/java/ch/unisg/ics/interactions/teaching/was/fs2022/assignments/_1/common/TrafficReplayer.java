@@ -0,0 +1,253 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.SimpleBehaviour;
+import jade.lang.acl.ACLMessage;
+import jade.util.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <p>A TrafficReplayer is a JADE behavior that feeds the messages that an agent received in a recorded session
+ * (see {@link TrafficRecorder}) back into the mailbox of a fresh agent.</p>
+ * <p>Messages are posted at the pace at which they were recorded, accelerated by the speed factor
+ * (e.g. 1 for the recorded pace, 10 for ten times faster, 0 for as fast as possible). When the log is replayed,
+ * the behavior reports the number of replayed messages, the throughput, and the maximum lag behind the schedule,
+ * so that recorded traffic can be used as a repeatable benchmark.</p>
+ * <p>At most {@link #BATCH} messages are posted per execution of the behavior, so that the other behaviors of
+ * the agent handle the replayed messages in between, even if the log is replayed as fast as possible.</p>
+ * <p>The class extends {@link SimpleBehaviour}, i.e. the behavior is executed until {@link #done()} returns
+ * true.</p>
+ */
+public class TrafficReplayer extends SimpleBehaviour {
+
+  private final static Logger LOGGER = Logger.getJADELogger(TrafficReplayer.class.getName());
+
+  // The maximum number of messages that are posted per execution of the behavior
+  public static final int BATCH = 256;
+
+  private final Path path;
+  private final double speed;
+
+  private Reader reader;
+
+  // The next message to replay, and the time at which it was recorded
+  private ACLMessage next;
+  private long nextTimestamp;
+
+  // The times at which the recorded session and the replay started
+  private long firstTimestamp = -1;
+  private long replayStart;
+
+  private long replayedMessages = 0;
+  private long maxLag = 0;
+  private boolean finished = false;
+
+  public TrafficReplayer(Agent agent, Path path, double speed) {
+    super(agent);
+    this.path = path;
+    this.speed = speed;
+  }
+
+  @Override
+  public void action() {
+    try {
+      if (reader == null) {
+        reader = new Reader(path);
+        replayStart = System.currentTimeMillis();
+        LOGGER.info("Replaying " + path + " at speed " + speed);
+      }
+      for (int posted = 0; posted < BATCH; posted++) {
+        if (next == null && !readNextReceived()) {
+          finish();
+          return;
+        }
+        long due = replayStart + (speed <= 0 ? 0 : (long) ((nextTimestamp - firstTimestamp) / speed));
+        long now = System.currentTimeMillis();
+        if (now < due) {
+          // Wait until the next message is due
+          block(due - now);
+          return;
+        }
+        maxLag = Math.max(maxLag, now - due);
+        myAgent.postMessage(next);
+        replayedMessages++;
+        next = null;
+      }
+      // The behavior is executed again after the other behaviors of the agent had their turn
+    } catch (IOException e) {
+      LOGGER.warning("Cannot replay " + path + ": " + e.getMessage());
+      finish();
+    }
+  }
+
+  private boolean readNextReceived() throws IOException {
+    Reader.Entry entry;
+    do {
+      entry = reader.next();
+      if (entry == null) {
+        return false;
+      }
+    } while (entry.direction != TrafficRecorder.RECEIVED);
+    if (firstTimestamp < 0) {
+      firstTimestamp = entry.timestamp;
+    }
+    next = entry.message;
+    nextTimestamp = entry.timestamp;
+    return true;
+  }
+
+  private void finish() {
+    finished = true;
+    long elapsed = Math.max(1, System.currentTimeMillis() - replayStart);
+    LOGGER.info("Replayed " + replayedMessages + " messages in " + elapsed + " ms ("
+            + (replayedMessages * 1000 / elapsed) + " msg/s, max lag " + maxLag + " ms)");
+    try {
+      if (reader != null) {
+        reader.close();
+      }
+    } catch (IOException e) {
+      LOGGER.warning("Cannot close " + path + ": " + e.getMessage());
+    }
+  }
+
+  @Override
+  public boolean done() {
+    return finished;
+  }
+
+  public long getReplayedMessages() {
+    return replayedMessages;
+  }
+
+  public long getMaxLag() {
+    return maxLag;
+  }
+
+  /**
+   * <p>A Reader reads the records of a log written by a {@link TrafficRecorder} through a buffered file
+   * channel, i.e. without loading the whole log into memory.</p>
+   */
+  public static class Reader implements Closeable {
+
+    /**
+     * <p>An Entry is a recorded message with the time at which it was recorded and its direction.</p>
+     */
+    public static class Entry {
+      public final long timestamp;
+      public final byte direction;
+      public final ACLMessage message;
+
+      Entry(long timestamp, byte direction, ACLMessage message) {
+        this.timestamp = timestamp;
+        this.direction = direction;
+        this.message = message;
+      }
+    }
+
+    private final FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+    private boolean endOfFile = false;
+
+    public Reader(Path path) throws IOException {
+      this.channel = FileChannel.open(path, StandardOpenOption.READ);
+      buffer.flip();
+      if (!fill(5) || buffer.getInt() != TrafficRecorder.MAGIC || buffer.get() != TrafficRecorder.VERSION) {
+        channel.close();
+        throw new IOException("Not a traffic log of version " + TrafficRecorder.VERSION + ": " + path);
+      }
+    }
+
+    /**
+     * Reads the next record of the log.
+     *
+     * @return the next entry, or null at the end of the log
+     * @throws IOException if the log cannot be read
+     */
+    public Entry next() throws IOException {
+      if (!fill(4)) {
+        return null;
+      }
+      int length = buffer.getInt();
+      if (!fill(length)) {
+        throw new IOException("Truncated record");
+      }
+      int end = buffer.position() + length;
+
+      long timestamp = buffer.getLong();
+      byte direction = buffer.get();
+      ACLMessage msg = new ACLMessage(buffer.get());
+      String sender = getString();
+      if (sender != null) {
+        msg.setSender(new AID(sender, AID.ISGUID));
+      }
+      int receivers = buffer.getShort();
+      for (int i = 0; i < receivers; i++) {
+        msg.addReceiver(new AID(getString(), AID.ISGUID));
+      }
+      msg.setConversationId(getString());
+      msg.setReplyWith(getString());
+      msg.setInReplyTo(getString());
+      msg.setLanguage(getString());
+      byte contentKind = buffer.get();
+      if (contentKind != TrafficRecorder.NO_CONTENT) {
+        byte[] content = new byte[buffer.getInt()];
+        buffer.get(content);
+        if (contentKind == TrafficRecorder.BYTE_CONTENT) {
+          msg.setByteSequenceContent(content);
+        } else {
+          msg.setContent(new String(content, StandardCharsets.UTF_8));
+        }
+      }
+      int parameters = buffer.getShort();
+      for (int i = 0; i < parameters; i++) {
+        msg.addUserDefinedParameter(getString(), getString());
+      }
+      buffer.position(end);
+      return new Entry(timestamp, direction, msg);
+    }
+
+    private String getString() {
+      int length = buffer.getInt();
+      if (length < 0) {
+        return null;
+      }
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Makes sure that at least size bytes are buffered, unless the end of the file is reached
+    private boolean fill(int size) throws IOException {
+      if (buffer.remaining() >= size) {
+        return true;
+      }
+      if (buffer.capacity() < size) {
+        ByteBuffer larger = ByteBuffer.allocateDirect(size);
+        larger.put(buffer);
+        buffer = larger;
+      } else {
+        buffer.compact();
+      }
+      while (!endOfFile && buffer.position() < size) {
+        if (channel.read(buffer) < 0) {
+          endOfFile = true;
+        }
+      }
+      buffer.flip();
+      return buffer.remaining() >= size;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+}
@@ -1,20 +1,33 @@
 package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.environment;
 
 import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common.BaseAgent;
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common.PriorityClass;
 import jade.core.AID;
 import jade.core.Agent;
 import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.SimpleBehaviour;
 import jade.core.behaviours.TickerBehaviour;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
 import jade.util.Logger;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.UnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * A Building Environment Agent (ENV) is a JADE agent that simulates a building environment.
@@ -23,24 +36,127 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * <li>read-weather: for reading the outdoors weather, i.e. sunny or cloudy
  * <li>read-illuminance: for reading the illuminance of the room, i.e. high or low
  * <li>set-illuminance: for setting the illuminance of the room, i.e. high or low
- * </ul><p>
+ * </ul>
+ * <p>The ENV tracks the delivery health of each subscriber (see {@link SubscriberHealth}): Delivery failures
+ * reported by the platform and, if the argument ack-timeout is given, missing acknowledgements are counted.
+ * Lagging subscribers only receive notifications when the value changed, and subscribers that exceed the
+ * suspend threshold are removed until they subscribe again.</p>
+ * <p>Besides the GUI and set-illuminance requests, the conditions can be driven by a recorded sensor trace
+ * (see {@link IngestSensorTrace}) given with the argument trace, and by local processes that write readings
+ * to a memory-mapped state file given with the argument shared-state (see {@link PollSharedState}).</p>
+ * <p>With the argument rooms=N, the ENV also simulates the rooms 1 to N of a building. Requests and trace
+ * readings with a room parameter apply to that room, and subscribers that subscribe with the room parameter
+ * {@link #ALL_ROOMS} receive the conditions of all rooms in one notification, with the content
+ * <code>1=high;2=low;...</code> (see {@link NotificationServer}).</p>
+ * <p>Besides the services read-illuminance and read-weather, agents can subscribe to hierarchical topics of the
+ * form <code>building/&lt;floor&gt;/&lt;room&gt;/illuminance</code>, <code>building/&lt;floor&gt;/&lt;room&gt;/weather</code>
+ * and <code>building/&lt;floor&gt;/&lt;room&gt;/occupancy</code> (occupied or empty, e.g. from a presence sensor), with the wildcards * and # (e.g. <code>building/3/&#42;/illuminance</code>), and cancel subscriptions with a
+ * CANCEL message. The rooms are numbered from 1, and the argument rooms-per-floor (default 10) assigns them to
+ * floors. Topic subscribers receive the current value of the matching topics, and then a notification whenever
+ * a value changes (see {@link TopicNotificationServer}).</p>
+ * <p>Subscribers to read-illuminance and read-weather also receive the current value right after the AGREE, i.e.
+ * they do not wait for the next period of the {@link NotificationServer}. The initial conditions can be given with
+ * the arguments illuminance=high|low and weather=sunny|cloudy, e.g. for headless start-up runs.</p>
+ * <p>Consumers in the same JVM can subscribe to the changes of the conditions with a {@link java.util.concurrent.Flow}
+ * subscriber instead of ACL messages (see {@link #getPublisher()}).<p>
  * NOTE: This class does not need to be changed for the purpose of this assignment.
  */
 public class BuildingEnvironmentAgent extends BaseAgent {
 
   private final static Logger LOGGER = Logger.getJADELogger(BuildingEnvironmentAgent.class.getName());
-  private final Map<String, List<AID>> subscribers = new HashMap<>();
+  // The pattern for extracting the receiver from the FAILURE messages that the AMS sends on delivery errors
+  private final static Pattern FAILED_RECEIVER = Pattern.compile("MTS-error\\s*\\(\\s*agent-identifier\\s+:name\\s+\"?([^\\s\")]+)");
+
+  // The subscribers per notification type and their delivery health
+  private final Map<String, Map<AID, SubscriberHealth>> subscribers = new HashMap<>();
   private final ReadWriteLock subscribersLock = new ReentrantReadWriteLock();
+
+  // The maximum number of subscribers per notification type
+  private int maxSubscribers;
+
+  // The subscriptions to hierarchical topics, and the number of rooms per floor in the topics
+  private final TopicTrie<TopicSubscription> topics = new TopicTrie<>();
+  private int roomsPerFloor;
+  private boolean topicNotificationServerStarted = false;
+
+  // The number of failed or unacknowledged notifications after which a subscriber is lagging or suspended
+  private int lagThreshold;
+  private int suspendThreshold;
+
+  // The time (in ms) within which subscribers must acknowledge notifications. A value of 0 disables acknowledgements.
+  private long ackTimeout;
+
+  // The lux below which the measured illuminance is low
+  private int lowLux;
+
+  // The state file through which local processes write readings, or null if no state file is given
+  private SharedStateChannel sharedState;
+
   private BuildingEnvironmentGUI environmentGUI;
-  private String illuminance = "high";
-  private String weather = "sunny";
+
+  // The conditions of the environment, which are read and written by the agent thread and the GUI thread
+  private final AtomicReference<EnvironmentState> state = new AtomicReference<>(EnvironmentState.INITIAL);
+
+  // The conditions of the rooms 1 to N, or null if the agent simulates a single room
+  private AtomicReferenceArray<EnvironmentState> roomStates;
+
+  // The version of the conditions of the rooms, which is increased whenever any room changes
+  private final AtomicLong roomsVersion = new AtomicLong();
+
+  // The descriptions of all rooms per notification type, which are only rebuilt if the rooms changed.
+  // They are only used by the agent thread.
+  private final Map<String, RoomsDescription> roomsDescriptions = new HashMap<>();
+
+  // The most recent changes of the conditions, and the maximum number of changes that are kept
+  private final AtomicReference<StateHistory> history = new AtomicReference<>(StateHistory.EMPTY);
+  private int historyCapacity = 32;
+
+  // The period (in ms) of the notifications to the subscribers of read-illuminance and read-weather
+  private long notifyPeriod = 2000;
+
+  // The local HTTP server that serves the conditions, or null if no HTTP port is given
+  private EnvironmentHttpServer httpServer;
+
+  // The publisher of the changes of the conditions to consumers in the same JVM
+  private final EnvironmentPublisher publisher = new EnvironmentPublisher();
+
+  // The number of set-illuminance requests that were retries of a recent request, and that were stale
+  private final AtomicLong duplicateRequests = new AtomicLong();
+  private final AtomicLong staleRequests = new AtomicLong();
 
   protected void setup() {
+    super.setup();
 
     LOGGER.info("Hello world! Building environment agent " + getLocalName() + " is set up.");
 
-    this.environmentGUI = new BuildingEnvironmentGUI(this);
-    this.environmentGUI.showGui();
+    // The GUI can be disabled for headless runs, e.g. benchmarks
+    if (Boolean.parseBoolean(getArgument("gui", "true"))) {
+      this.environmentGUI = new BuildingEnvironmentGUI(this);
+      this.environmentGUI.showGui();
+    }
+
+    this.maxSubscribers = Integer.parseInt(getArgument("max-subscribers", "1024"));
+    this.lagThreshold = Integer.parseInt(getArgument("lag-threshold", "3"));
+    this.suspendThreshold = Integer.parseInt(getArgument("suspend-threshold", "10"));
+    this.ackTimeout = Long.parseLong(getArgument("ack-timeout", "0"));
+    this.lowLux = Integer.parseInt(getArgument("low-lux", "300"));
+    this.roomsPerFloor = Integer.parseInt(getArgument("rooms-per-floor", "10"));
+    this.historyCapacity = Math.max(1, Integer.parseInt(getArgument("http-history", "32")));
+    this.notifyPeriod = Long.parseLong(getArgument("notify-period", "2000"));
+
+    // The rooms are initially occupied unless the argument occupancy says otherwise
+    EnvironmentState initialRoom = EnvironmentState.INITIAL.withOccupancy(
+            getArgument("occupancy", EnvironmentState.INITIAL.getOccupancy()));
+    int rooms = Integer.parseInt(getArgument("rooms", "0"));
+    if (rooms > 0) {
+      roomStates = new AtomicReferenceArray<>(rooms);
+      for (int i = 0; i < rooms; i++) {
+        roomStates.set(i, initialRoom);
+      }
+    }
+    setConditions(getArgument("illuminance", EnvironmentState.INITIAL.getIlluminance()),
+            getArgument("weather", EnvironmentState.INITIAL.getWeather()));
+    setOccupancy(initialRoom.getOccupancy());
 
     // Add all provided services
     this.providedServices.add("read-illuminance");
@@ -53,8 +169,43 @@ public class BuildingEnvironmentAgent extends BaseAgent {
     // Receive subscription requests for reading illuminance and weather
     addBehaviour(new SubscriptionServer());
 
-    // Receive requests for setting illuminance to low or high
-    addBehaviour(new SetIlluminanceServer());
+    // Receive requests for setting illuminance to low or high, and keep the outcomes of the recent requests
+    addBehaviour(new SetIlluminanceServer(Integer.parseInt(getArgument("request-cache", "1024"))));
+
+    // Receive delivery failures and acknowledgements of notifications
+    addBehaviour(new DeliveryHealthServer());
+
+    // Apply the readings of a recorded sensor trace, if a trace is given
+    String trace = getArgument("trace", null);
+    if (trace != null) {
+      addBehaviour(new IngestSensorTrace(trace, Double.parseDouble(getArgument("trace-speed", "1")),
+              getArgument("trace-room", null)));
+    }
+
+    // Poll the readings that local processes write to the state file, if a state file is given
+    String sharedStatePath = getArgument("shared-state", null);
+    if (sharedStatePath != null) {
+      try {
+        sharedState = SharedStateChannel.open(Paths.get(sharedStatePath),
+                Integer.parseInt(getArgument("shared-rooms", "1")));
+        addBehaviour(new PollSharedState(this, Long.parseLong(getArgument("shared-poll", "50")),
+                Integer.parseInt(getArgument("shared-slot", "0"))));
+      } catch (IOException e) {
+        LOGGER.warning("Cannot open state file " + sharedStatePath + ": " + e.getMessage());
+      }
+    }
+
+    // Serve the conditions over a local HTTP API, if an HTTP port is given
+    String httpPort = getArgument("http-port", null);
+    if (httpPort != null) {
+      try {
+        httpServer = new EnvironmentHttpServer(this, Integer.parseInt(httpPort),
+                Integer.parseInt(getArgument("http-threads", "2")));
+        LOGGER.info("Serving the environment state on http://localhost:" + httpServer.getPort() + "/state");
+      } catch (IOException e) {
+        LOGGER.warning("Cannot start HTTP server on port " + httpPort + ": " + e.getMessage());
+      }
+    }
 
     // TODO Add a behavior, such that the agent periodically prints the illuminance and the weather on the environment (Task 1)
     // HINT: Use the method addBehaviour(). As input, provide an instance of the Behaviour class
@@ -62,6 +213,22 @@ public class BuildingEnvironmentAgent extends BaseAgent {
     addBehaviour(new PrintIlluminanceServer(this, 1000));
   }
 
+  @Override
+  protected void takeDown() {
+    super.takeDown();
+    if (sharedState != null) {
+      try {
+        sharedState.close();
+      } catch (IOException e) {
+        LOGGER.warning("Cannot close state file: " + e.getMessage());
+      }
+    }
+    if (httpServer != null) {
+      httpServer.close();
+    }
+    publisher.close();
+  }
+
   // TODO Implement a Behaviour for periodically printing the illuminance and the weather on the environment (Task 1)
   // HINT 1: Implement an inner class that extends TickerBehavior
   // (see https://jade.tilab.com/doc/api/jade/core/behaviours/TickerBehaviour.html).
@@ -69,19 +236,307 @@ public class BuildingEnvironmentAgent extends BaseAgent {
   // HINT 3: The inner class NotificationServer (see line 158) also extends TickerBehavior
 
   public String getIlluminance() {
-    return illuminance;
+    return state.get().getIlluminance();
   }
 
   public void setIlluminance(String illuminance) {
-    this.illuminance = illuminance;
+    update(current -> current.withIlluminance(illuminance));
   }
 
   public String getWeather() {
-    return weather;
+    return state.get().getWeather();
   }
 
   public void setWeather(String weather) {
-    this.weather = weather;
+    update(current -> current.withWeather(weather));
+  }
+
+  /**
+   * Returns a consistent snapshot of the conditions of the environment.
+   *
+   * @return the current snapshot
+   */
+  public EnvironmentState getEnvironmentState() {
+    return state.get();
+  }
+
+  /**
+   * Applies a sensor reading, i.e. the measured lux and the weather at once.
+   *
+   * @param lux     the measured illuminance in lux
+   * @param weather the weather, i.e. sunny or cloudy
+   */
+  public void setReading(int lux, String weather) {
+    String illuminance = lux < lowLux ? "low" : "high";
+    update(current -> current.with(illuminance, lux, weather));
+  }
+
+  /**
+   * Returns the number of simulated rooms.
+   *
+   * @return the number of rooms, or 0 if the agent simulates a single room
+   */
+  public int getRooms() {
+    return roomStates == null ? 0 : roomStates.length();
+  }
+
+  /**
+   * Returns a consistent snapshot of the conditions of a room.
+   *
+   * @param room the room, i.e. a number from 1 to the number of rooms
+   * @return the snapshot, or null if the agent does not simulate the room
+   */
+  public EnvironmentState getEnvironmentState(String room) {
+    int index = roomIndex(room);
+    return index < 0 ? null : roomStates.get(index);
+  }
+
+  /**
+   * Sets the illuminance of a room.
+   *
+   * @param room        the room, i.e. a number from 1 to the number of rooms
+   * @param illuminance the illuminance, i.e. high or low
+   * @return false if the agent does not simulate the room
+   */
+  public boolean setIlluminance(String room, String illuminance) {
+    int index = roomIndex(room);
+    if (index < 0) {
+      return false;
+    }
+    updateRoom(index, current -> current.withIlluminance(illuminance));
+    return true;
+  }
+
+  /**
+   * Applies a sensor reading to a room.
+   *
+   * @param room    the room, i.e. a number from 1 to the number of rooms
+   * @param lux     the measured illuminance in lux
+   * @param weather the weather, i.e. sunny or cloudy
+   * @return false if the agent does not simulate the room
+   */
+  public boolean setReading(String room, int lux, String weather) {
+    int index = roomIndex(room);
+    if (index < 0) {
+      return false;
+    }
+    String illuminance = lux < lowLux ? "low" : "high";
+    updateRoom(index, current -> current.with(illuminance, lux, weather));
+    return true;
+  }
+
+  /**
+   * Sets the illuminance of the environment or of a room only if its illuminance still has the expected version
+   * (see {@link EnvironmentState#getIlluminanceVersion()}), i.e. a compare-and-set of the snapshot that lux
+   * readings and changes of the weather do not make fail. A write that would not change the illuminance is
+   * merged, i.e. it leaves the snapshot and its version unchanged, regardless of the version.
+   *
+   * @param room            the room, i.e. a number from 1 to the number of rooms, or null for the environment
+   * @param illuminance     the illuminance, i.e. high or low
+   * @param expectedVersion the illuminance version that the writer perceived, or a negative value to write
+   *                        unconditionally
+   * @return the snapshot after the write, whose illuminance differs from the given illuminance if the write was
+   * stale, or null if the agent does not simulate the room
+   */
+  public EnvironmentState compareAndSetIlluminance(String room, String illuminance, long expectedVersion) {
+    UnaryOperator<EnvironmentState> change = current -> expectedVersion < 0 || current.getIlluminanceVersion() == expectedVersion
+            ? current.withIlluminance(illuminance) : current;
+    if (room == null) {
+      return update(change);
+    }
+    int index = roomIndex(room);
+    return index < 0 ? null : updateRoom(index, change);
+  }
+
+  // Publishes the next snapshot of the environment, and records it in the history if the conditions changed
+  private EnvironmentState update(UnaryOperator<EnvironmentState> change) {
+    EnvironmentState current;
+    EnvironmentState next;
+    do {
+      current = state.get();
+      next = change.apply(current);
+    } while (next != current && !state.compareAndSet(current, next));
+    if (next != current) {
+      recordChange(0, next);
+    }
+    return next;
+  }
+
+  // Publishes the next snapshot of a room, and records it in the history if the conditions changed
+  private EnvironmentState updateRoom(int index, UnaryOperator<EnvironmentState> change) {
+    EnvironmentState current;
+    EnvironmentState next;
+    do {
+      current = roomStates.get(index);
+      next = change.apply(current);
+    } while (next != current && !roomStates.compareAndSet(index, current, next));
+    if (next != current) {
+      roomsVersion.incrementAndGet();
+      recordChange(index + 1, next);
+    }
+    return next;
+  }
+
+  private void recordChange(int room, EnvironmentState next) {
+    StateHistory.Change change = new StateHistory.Change(System.currentTimeMillis(), room, next);
+    history.updateAndGet(current -> current.append(change, historyCapacity));
+    publisher.publish(change);
+  }
+
+  /**
+   * Returns the publisher of the changes of the conditions of the environment and its rooms, for consumers in the
+   * same JVM that do not subscribe with ACL messages.
+   *
+   * @return the publisher of the changes
+   */
+  public EnvironmentPublisher getPublisher() {
+    return publisher;
+  }
+
+  /**
+   * Returns the number of set-illuminance requests that were retries of a recent request, i.e. that were
+   * acknowledged without being applied again.
+   *
+   * @return the number of duplicate requests
+   */
+  public long getDuplicateRequests() {
+    return duplicateRequests.get();
+  }
+
+  /**
+   * Returns the number of set-illuminance requests that failed, since the conditions changed after the version
+   * that the request expected.
+   *
+   * @return the number of stale requests
+   */
+  public long getStaleRequests() {
+    return staleRequests.get();
+  }
+
+  /**
+   * Returns the most recent changes of the conditions of the environment and its rooms.
+   *
+   * @return the current history
+   */
+  public StateHistory getHistory() {
+    return history.get();
+  }
+
+  /**
+   * Returns the version of the conditions of the rooms, which is increased whenever any room changes.
+   *
+   * @return the version of the rooms
+   */
+  public long getRoomsVersion() {
+    return roomsVersion.get();
+  }
+
+  /**
+   * Returns the port of the local HTTP server.
+   *
+   * @return the port, or -1 if no HTTP server is running
+   */
+  public int getHttpPort() {
+    return httpServer == null ? -1 : httpServer.getPort();
+  }
+
+  private int roomIndex(String room) {
+    if (roomStates == null || room == null) {
+      return -1;
+    }
+    try {
+      int index = Integer.parseInt(room) - 1;
+      return index >= 0 && index < roomStates.length() ? index : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns the topic of a kind of condition of a room.
+   *
+   * @param room the room, i.e. a number from 1
+   * @param kind the kind of condition, i.e. illuminance, weather or occupancy
+   * @return the topic, e.g. building/1/3/illuminance
+   */
+  public String getTopic(int room, String kind) {
+    return "building" + TopicTrie.SEPARATOR + ((room - 1) / roomsPerFloor + 1) + TopicTrie.SEPARATOR + room
+            + TopicTrie.SEPARATOR + kind;
+  }
+
+  // Returns the conditions of a room, i.e. of the single room if the agent simulates a single room
+  EnvironmentState getRoomState(int room) {
+    return roomStates == null ? state.get() : roomStates.get(room - 1);
+  }
+
+  /**
+   * <p>A RoomsDescription is the description of a notification type for all rooms, together with the version of
+   * the rooms that it describes.</p>
+   */
+  private static final class RoomsDescription {
+    private final long version;
+    private final String text;
+
+    private RoomsDescription(long version, String text) {
+      this.version = version;
+      this.text = text;
+    }
+  }
+
+  // Describes a notification type for all rooms, e.g. 1=high;2=low for read-illuminance. The description is
+  // cached per version of the rooms. If a room changes while the description is built, the version that was read
+  // first is kept, so that the next call builds the description again.
+  private String describeRooms(String notificationType) {
+    long version = roomsVersion.get();
+    RoomsDescription cached = roomsDescriptions.get(notificationType);
+    if (cached != null && cached.version == version) {
+      return cached.text;
+    }
+    StringBuilder description = new StringBuilder(roomStates.length() * 8);
+    for (int i = 0; i < roomStates.length(); i++) {
+      if (i > 0) {
+        description.append(';');
+      }
+      description.append(i + 1).append('=').append(roomStates.get(i).getValue(notificationType));
+    }
+    String text = description.toString();
+    roomsDescriptions.put(notificationType, new RoomsDescription(version, text));
+    return text;
+  }
+
+  /**
+   * Sets the illuminance and the weather at once, so that readers never see only one of the values changed.
+   *
+   * @param illuminance the illuminance, i.e. high or low
+   * @param weather     the weather, i.e. sunny or cloudy
+   */
+  public void setConditions(String illuminance, String weather) {
+    update(current -> current.with(illuminance, weather));
+  }
+
+  /**
+   * Sets whether the room is occupied, e.g. from a presence sensor or the GUI.
+   *
+   * @param occupancy the occupancy, i.e. occupied or empty
+   */
+  public void setOccupancy(String occupancy) {
+    update(current -> current.withOccupancy(occupancy));
+  }
+
+  /**
+   * Sets whether a room is occupied.
+   *
+   * @param room      the room, i.e. a number from 1 to the number of rooms
+   * @param occupancy the occupancy, i.e. occupied or empty
+   * @return false if the agent does not simulate the room
+   */
+  public boolean setOccupancy(String room, String occupancy) {
+    int index = roomIndex(room);
+    if (index < 0) {
+      return false;
+    }
+    updateRoom(index, current -> current.withOccupancy(occupancy));
+    return true;
   }
 
   /**
@@ -95,14 +550,159 @@ public class BuildingEnvironmentAgent extends BaseAgent {
 
     @Override
     protected void onTick() {
-      String illuminance = getIlluminance();
-      String weather = getWeather();
+      if (!mayRun(PriorityClass.HOUSEKEEPING)) {
+        return;
+      }
+      EnvironmentState snapshot = getEnvironmentState();
 
-      LOGGER.info("ILLUMINANCE: " + illuminance);
-      LOGGER.info("WEATHER: " + weather);
+      LOGGER.info("ILLUMINANCE: " + snapshot.getIlluminance());
+      LOGGER.info("WEATHER: " + snapshot.getWeather());
     }
   }
 
+  /**
+   * <p>An IngestSensorTrace is a JADE behavior that streams the readings of a recorded sensor trace
+   * (see {@link SensorTraceReader}) into the conditions of the environment.</p>
+   * <p>The readings are applied at the pace at which they were recorded, accelerated by the speed factor
+   * (e.g. 3600 for replaying an hour per second, 0 for as fast as possible). If a room is given, only the
+   * readings of that room are applied. If the agent simulates many rooms, each reading is applied to its room.</p>
+   * <p>The class extends {@link SimpleBehaviour}, i.e. the behavior is executed until the trace is read.</p>
+   */
+  private class IngestSensorTrace extends SimpleBehaviour {
+
+    private final String trace;
+    private final double speed;
+    private final String room;
+
+    private SensorTraceReader reader;
+
+    // The next reading to apply
+    private SensorTraceReader.Reading next;
+
+    // The times at which the trace and the ingestion started
+    private long firstTimestamp = -1;
+    private long ingestionStart;
+
+    private long appliedReadings = 0;
+    private boolean finished = false;
+
+    public IngestSensorTrace(String trace, double speed, String room) {
+      this.trace = trace;
+      this.speed = speed;
+      this.room = room;
+    }
+
+    @Override
+    public void action() {
+      try {
+        if (reader == null) {
+          reader = new SensorTraceReader(Paths.get(trace));
+          ingestionStart = System.currentTimeMillis();
+          LOGGER.info("Ingesting sensor trace " + trace + " at speed " + speed);
+        }
+        if (!mayRun(PriorityClass.TELEMETRY, this)) {
+          return;
+        }
+        while (true) {
+          if (next == null) {
+            next = reader.next();
+            if (next == null) {
+              finish();
+              return;
+            }
+            if (room != null && !room.equals(next.room)) {
+              next = null;
+              continue;
+            }
+            if (firstTimestamp < 0) {
+              firstTimestamp = next.timestamp;
+            }
+          }
+          long due = ingestionStart + (speed <= 0 ? 0 : (long) ((next.timestamp - firstTimestamp) / speed));
+          long now = System.currentTimeMillis();
+          if (now < due) {
+            // Wait until the next reading is due. Other behaviors of the agent run meanwhile.
+            block(due - now);
+            return;
+          }
+          if (roomStates == null || room != null) {
+            setReading(next.lux, next.weather);
+          } else {
+            setReading(next.room, next.lux, next.weather);
+          }
+          appliedReadings++;
+          next = null;
+          if (speed <= 0 && appliedReadings % 1000 == 0) {
+            // Let other behaviors of the agent run when ingesting as fast as possible
+            return;
+          }
+        }
+      } catch (IOException e) {
+        LOGGER.warning("Cannot ingest sensor trace " + trace + ": " + e.getMessage());
+        finish();
+      }
+    }
+
+    private void finish() {
+      finished = true;
+      long elapsed = Math.max(1, System.currentTimeMillis() - ingestionStart);
+      LOGGER.info("Applied " + appliedReadings + " readings of " + trace + " in " + elapsed + " ms");
+      try {
+        if (reader != null) {
+          reader.close();
+        }
+      } catch (IOException e) {
+        LOGGER.warning("Cannot close sensor trace " + trace + ": " + e.getMessage());
+      }
+    }
+
+    @Override
+    public boolean done() {
+      return finished;
+    }
+  } // End of inner class IngestSensorTrace
+
+  /**
+   * <p>A PollSharedState is a JADE behavior that periodically polls the memory-mapped state file
+   * (see {@link SharedStateChannel}) and applies the latest reading of the agent's slot.</p>
+   * <p>Polling only reads the change counter of the file, and the slot is only read if its sequence number
+   * changed. Readings that are overwritten between two polls are skipped, i.e. the environment always applies
+   * the latest reading.</p>
+   * <p>The class extends {@link TickerBehaviour}, i.e. the behavior is executed periodically.</p>
+   */
+  private class PollSharedState extends TickerBehaviour {
+
+    private final int slot;
+
+    private long lastChanges = -1;
+    private long lastSequence = 0;
+
+    public PollSharedState(Agent a, long period, int slot) {
+      super(a, period);
+      this.slot = slot;
+    }
+
+    @Override
+    protected void onTick() {
+      if (!mayRun(PriorityClass.TELEMETRY)) {
+        return;
+      }
+      long changes = sharedState.getChanges();
+      if (changes == lastChanges) {
+        return;
+      }
+      lastChanges = changes;
+      if (sharedState.getSequence(slot) == lastSequence) {
+        return;
+      }
+      SharedStateChannel.Reading reading = sharedState.read(slot);
+      if (reading != null) {
+        lastSequence = reading.sequence;
+        setReading(reading.lux, reading.weather);
+      }
+    }
+  } // End of inner class PollSharedState
+
   /**
    * <p>A SubscriptionServer is a JADE behavior that implements part of the
    * <a href="http://www.fipa.org/specs/fipa00035/SC00035H.html">FIPA Subscribe Interaction Protocol</a>
@@ -114,44 +714,109 @@ public class BuildingEnvironmentAgent extends BaseAgent {
    */
   private class SubscriptionServer extends CyclicBehaviour {
 
-    private void addSubscriber(AID subscriber, String notificationType) {
+    private boolean addSubscriber(AID subscriber, String notificationType, boolean allRooms) {
 
       boolean startNotificationServer = false;
+      boolean added = true;
 
       subscribersLock.writeLock().lock();
       if (!subscribers.containsKey(notificationType)) {
-        subscribers.put(notificationType, new ArrayList<AID>());
+        subscribers.put(notificationType, new LinkedHashMap<>());
         startNotificationServer = true;
       }
-      if (!subscribers.get(notificationType).contains(subscriber)) {
-        subscribers.get(notificationType).add(subscriber);
+      Map<AID, SubscriberHealth> topicSubscribers = subscribers.get(notificationType);
+      if (topicSubscribers.containsKey(subscriber) || topicSubscribers.size() < maxSubscribers) {
+        // A new subscription also resets the health of a lagging subscriber
+        topicSubscribers.put(subscriber, new SubscriberHealth(allRooms));
+      } else {
+        added = false;
       }
       subscribersLock.writeLock().unlock();
 
       if (startNotificationServer) {
-        addBehaviour(new NotificationServer(notificationType, myAgent, 2000));
+        addBehaviour(new NotificationServer(notificationType, myAgent, notifyPeriod));
       }
+      return added;
+    }
+
+    private boolean addTopicSubscriber(AID subscriber, String pattern) {
+      boolean added = true;
+
+      subscribersLock.writeLock().lock();
+      Map<AID, SubscriberHealth> patternSubscribers = subscribers.computeIfAbsent(pattern, p -> new LinkedHashMap<>());
+      if (patternSubscribers.containsKey(subscriber)) {
+        patternSubscribers.put(subscriber, new SubscriberHealth(false));
+      } else if (patternSubscribers.size() < maxSubscribers) {
+        patternSubscribers.put(subscriber, new SubscriberHealth(false));
+        topics.add(pattern, new TopicSubscription(subscriber, pattern));
+      } else {
+        added = false;
+      }
+      subscribersLock.writeLock().unlock();
+
+      if (added && !topicNotificationServerStarted) {
+        topicNotificationServerStarted = true;
+        addBehaviour(new TopicNotificationServer(myAgent, Long.parseLong(getArgument("topic-period", "200"))));
+      }
+      return added;
+    }
+
+    private void removeSubscriber(AID subscriber, String notificationType) {
+      subscribersLock.writeLock().lock();
+      Map<AID, SubscriberHealth> typeSubscribers = subscribers.get(notificationType);
+      if (typeSubscribers != null && typeSubscribers.remove(subscriber) != null) {
+        topics.remove(notificationType, new TopicSubscription(subscriber, notificationType));
+        LOGGER.info("CANCEL " + notificationType + " by " + subscriber.getLocalName());
+      }
+      subscribersLock.writeLock().unlock();
     }
 
     public void action() {
-      // The agent continuously accepts SUBSCRIBE messages
-      MessageTemplate msgTemplate = MessageTemplate.MatchPerformative(ACLMessage.SUBSCRIBE);
+      // Subscriptions yield to actuation requests
+      if (!mayRun(PriorityClass.PROTOCOL, this)) {
+        return;
+      }
+
+      // The agent continuously accepts SUBSCRIBE and CANCEL messages
+      MessageTemplate msgTemplate = MessageTemplate.or(MessageTemplate.MatchPerformative(ACLMessage.SUBSCRIBE),
+              MessageTemplate.MatchPerformative(ACLMessage.CANCEL));
       ACLMessage msg = myAgent.receive(msgTemplate);
 
-      if (msg != null) {
+      if (msg != null && msg.getPerformative() == ACLMessage.CANCEL) {
+        // The subscriber cancels its subscription. No reply is sent, since a reply within the conversation of the
+        // subscription would be taken for a notification.
+        if (msg.getContent() != null) {
+          removeSubscriber(msg.getSender(), msg.getContent());
+        }
+      } else if (msg != null) {
         // Subscribe message received
         AID sender = msg.getSender();
         String serviceType = msg.getContent();
+        boolean allRooms = ALL_ROOMS.equals(msg.getUserDefinedParameter(ROOM_PARAMETER));
         ACLMessage reply = msg.createReply();
 
-        // The agent AGREES only if subscription is for reading illuminance or reading the weather
-        if ("read-illuminance".equals(serviceType) || "read-weather".equals(serviceType)) {
+        // The agent AGREES only if subscription is for reading illuminance or reading the weather,
+        // if the agent simulates many rooms for subscriptions to all rooms,
+        // and if the maximum number of subscribers is not reached
+        if (("read-illuminance".equals(serviceType) || "read-weather".equals(serviceType))
+                && (!allRooms || roomStates != null)
+                && addSubscriber(sender, serviceType, allRooms)) {
+          // The agent AGREES, and sends the current value right away
           reply.setPerformative(ACLMessage.AGREE);
           reply.setContent(serviceType);
+          sendMessage(reply);
           LOGGER.info("AGREE on " + serviceType);
-
-          // Add subscriber to the subscriber
-          addSubscriber(sender, serviceType);
+          sendCurrentValue(sender, serviceType, allRooms);
+          return;
+        } else if (serviceType != null && serviceType.startsWith("building" + TopicTrie.SEPARATOR)
+                && TopicTrie.isValid(serviceType) && addTopicSubscriber(sender, serviceType)) {
+          // The agent AGREES on subscriptions to topics, and sends the current values of the matching topics
+          reply.setPerformative(ACLMessage.AGREE);
+          reply.setContent(serviceType);
+          sendMessage(reply);
+          LOGGER.info("AGREE on topic " + serviceType);
+          sendCurrentValues(sender, serviceType);
+          return;
         } else {
           // The agent REFUSES subscription for other service types
           reply.setPerformative(ACLMessage.REFUSE);
@@ -159,7 +824,7 @@ public class BuildingEnvironmentAgent extends BaseAgent {
           LOGGER.info("REFUSE " + serviceType);
         }
         // Send the reply
-        myAgent.send(reply);
+        sendMessage(reply);
       } else {
         // Block the behavior until a new message that matches the template is received
         block();
@@ -167,11 +832,164 @@ public class BuildingEnvironmentAgent extends BaseAgent {
     }
   }  // End of inner class OfferSubscriptionServer
 
+  /**
+   * <p>A TopicSubscription is the subscription of an agent to a topic pattern, which is indexed in the
+   * {@link TopicTrie} of the agent.</p>
+   */
+  private static final class TopicSubscription {
+    private final AID subscriber;
+    private final String pattern;
+
+    private TopicSubscription(AID subscriber, String pattern) {
+      this.subscriber = subscriber;
+      this.pattern = pattern;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof TopicSubscription)) {
+        return false;
+      }
+      TopicSubscription other = (TopicSubscription) o;
+      return subscriber.equals(other.subscriber) && pattern.equals(other.pattern);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(subscriber, pattern);
+    }
+  }
+
+  // Creates a notification about a topic for the subscribers of a pattern
+  private ACLMessage createTopicNotification(String pattern, String topic, String value) {
+    ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+    msg.setContent(value);
+    msg.setConversationId("subscribe-" + pattern);
+    msg.addUserDefinedParameter(TOPIC_PARAMETER, topic);
+    return msg;
+  }
+
+  // Sends the current illuminance or weather to a new subscriber.
+  // The value is not acknowledged, i.e. the health of the subscriber is not affected.
+  private void sendCurrentValue(AID subscriber, String notificationType, boolean allRooms) {
+    EnvironmentState snapshot = getEnvironmentState();
+    String value = snapshot.getValue(notificationType);
+    ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+    if (allRooms) {
+      msg.setContent(describeRooms(notificationType));
+      msg.addUserDefinedParameter(ROOM_PARAMETER, ALL_ROOMS);
+    } else {
+      msg.setContent(value);
+    }
+    if (!allRooms && "read-illuminance".equals(notificationType) && snapshot.getLux() >= 0) {
+      msg.addUserDefinedParameter(LUX_PARAMETER, String.valueOf(snapshot.getLux()));
+    }
+    if (!allRooms) {
+      msg.addUserDefinedParameter(VERSION_PARAMETER, String.valueOf(snapshot.getIlluminanceVersion()));
+    }
+    msg.setConversationId("subscribe-" + notificationType);
+    msg.addReceiver(subscriber);
+    sendMessage(msg);
+  }
+
+  // Sends the current values of all topics that match a pattern to a new subscriber
+  private void sendCurrentValues(AID subscriber, String pattern) {
+    int rooms = roomStates == null ? 1 : roomStates.length();
+    for (int room = 1; room <= rooms; room++) {
+      EnvironmentState snapshot = getRoomState(room);
+      for (String kind : TopicNotificationServer.KINDS) {
+        String topic = getTopic(room, kind);
+        if (TopicTrie.matches(pattern, topic)) {
+          ACLMessage msg = createTopicNotification(pattern, topic, snapshot.getTopicValue(kind));
+          msg.addReceiver(subscriber);
+          sendMessage(msg);
+        }
+      }
+    }
+  }
+
+  /**
+   * <p>A TopicNotificationServer is a JADE behavior that publishes the changes of the conditions of the rooms
+   * to the subscribers of matching topics.</p>
+   * <p>The behavior periodically compares the version of each room with the last published version, and only
+   * publishes the values that changed. The subscribers of a topic are found by walking the {@link TopicTrie},
+   * and the subscribers of the same pattern receive one message together.</p>
+   * <p>The class extends {@link TickerBehaviour}, i.e. the behavior is executed periodically.</p>
+   */
+  private class TopicNotificationServer extends TickerBehaviour {
+
+    private static final String[] KINDS = {"illuminance", "weather", "occupancy"};
+
+    // The last published version of each room, and the last published value of each kind and room
+    private final long[] publishedVersions;
+    private final String[][] publishedValues;
+
+    public TopicNotificationServer(Agent a, long period) {
+      super(a, period);
+      int rooms = roomStates == null ? 1 : roomStates.length();
+      publishedVersions = new long[rooms];
+      publishedValues = new String[KINDS.length][rooms];
+      for (int i = 0; i < rooms; i++) {
+        EnvironmentState snapshot = getRoomState(i + 1);
+        publishedVersions[i] = snapshot.getVersion();
+        for (int k = 0; k < KINDS.length; k++) {
+          publishedValues[k][i] = snapshot.getTopicValue(KINDS[k]);
+        }
+      }
+    }
+
+    @Override
+    protected void onTick() {
+      for (int i = 0; i < publishedVersions.length; i++) {
+        EnvironmentState snapshot = getRoomState(i + 1);
+        if (snapshot.getVersion() == publishedVersions[i]) {
+          continue;
+        }
+        publishedVersions[i] = snapshot.getVersion();
+        for (int k = 0; k < KINDS.length; k++) {
+          String value = snapshot.getTopicValue(KINDS[k]);
+          if (!value.equals(publishedValues[k][i])) {
+            publishedValues[k][i] = value;
+            publish(getTopic(i + 1, KINDS[k]), value);
+          }
+        }
+      }
+    }
+
+    private void publish(String topic, String value) {
+      Map<String, ACLMessage> notifications = new HashMap<>(4);
+      List<TopicSubscription> suspended = new ArrayList<>(0);
+
+      subscribersLock.writeLock().lock();
+      topics.match(topic, subscription -> {
+        SubscriberHealth health = subscribers.get(subscription.pattern).get(subscription.subscriber);
+        if (health.isSuspended()) {
+          suspended.add(subscription);
+          return;
+        }
+        notifications.computeIfAbsent(subscription.pattern, pattern -> createTopicNotification(pattern, topic, value))
+                .addReceiver(subscription.subscriber);
+      });
+      for (TopicSubscription subscription : suspended) {
+        topics.remove(subscription.pattern, subscription);
+        subscribers.get(subscription.pattern).remove(subscription.subscriber);
+        LOGGER.warning("SUSPEND " + subscription.subscriber.getLocalName() + " on " + subscription.pattern);
+      }
+      subscribersLock.writeLock().unlock();
+
+      for (ACLMessage msg : notifications.values()) {
+        sendFanOut(msg);
+      }
+    }
+  } // End of inner class TopicNotificationServer
+
   /**
    * <p>A NotificationServer is a JADE behavior that implements part of the
    * <a href="http://www.fipa.org/specs/fipa00035/SC00035H.html">FIPA Subscribe Interaction Protocol</a>
    * for the role of the Participant.</p>
-   * <p>The behavior enables the agent to periodically send notifications about illuminance or weather.</p>
+   * <p>The behavior enables the agent to periodically send notifications about illuminance or weather.
+   * Subscribers to all rooms receive a separate text notification with the values of all rooms. If the
+   * illuminance was measured by a sensor, illuminance notifications carry the measured lux as well.</p>
    * <p>This behavior is triggered upon successful subscription on the {@link SubscriptionServer}.</p>
    * <p>The class extends {@link TickerBehaviour}, i.e. the behavior is executed periodically.</p>
    */
@@ -187,10 +1005,11 @@ public class BuildingEnvironmentAgent extends BaseAgent {
     @Override
     protected void onTick() {
       ACLMessage msg;
+      EnvironmentState snapshot = getEnvironmentState();
       // The agent INFORMS the subscribers about their topic of preference, i.e. illuminance or weather
       if ("read-illuminance".equals(notificationType) || "read-weather".equals(notificationType)) {
         msg = new ACLMessage(ACLMessage.INFORM);
-        msg.setContent("read-illuminance".equals(notificationType) ? illuminance : weather);
+        msg.setContent(snapshot.getValue(notificationType));
         LOGGER.info("INFORM " + notificationType + ": " + msg.getContent());
       } else {
         // The agent FAILS to notify subscribers for unknown topics
@@ -199,22 +1018,217 @@ public class BuildingEnvironmentAgent extends BaseAgent {
         LOGGER.info("FAIL " + notificationType);
       }
 
-      // Read subscribers
-      subscribersLock.readLock().lock();
-      for (AID subscriber : subscribers.get(notificationType)) {
-        msg.addReceiver(subscriber);
+      String value = msg.getContent();
+      long now = System.currentTimeMillis();
+
+      // Subscribers to all rooms receive the values of all rooms, which are only described if the agent
+      // simulates many rooms
+      ACLMessage roomsMsg = (ACLMessage) msg.clone();
+      long roomsSnapshotVersion = roomsVersion.get();
+      String roomsValue = roomStates != null && msg.getPerformative() == ACLMessage.INFORM
+              ? describeRooms(notificationType) : value;
+      roomsMsg.setContent(roomsValue);
+      roomsMsg.addUserDefinedParameter(ROOM_PARAMETER, ALL_ROOMS);
+
+      // Illuminance notifications also carry the measured lux, if the illuminance was measured by a sensor
+      if ("read-illuminance".equals(notificationType) && snapshot.getLux() >= 0) {
+        msg.addUserDefinedParameter(LUX_PARAMETER, String.valueOf(snapshot.getLux()));
       }
-      subscribersLock.readLock().unlock();
 
+      // Notifications of the single room carry its illuminance version, which set-illuminance requests can expect
+      msg.addUserDefinedParameter(VERSION_PARAMETER, String.valueOf(snapshot.getIlluminanceVersion()));
+
+      // Healthy subscribers receive every notification. Lagging subscribers only receive notifications
+      // if the value changed since their last delivery, and suspended subscribers are removed.
+      // Comparing the version of the snapshot first avoids comparing values if nothing changed.
+      // The health is updated, so the write lock is needed.
+      int textReceivers = 0;
+      int roomsReceivers = 0;
+      subscribersLock.writeLock().lock();
+      Iterator<Map.Entry<AID, SubscriberHealth>> it = subscribers.get(notificationType).entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<AID, SubscriberHealth> entry = it.next();
+        SubscriberHealth health = entry.getValue();
+        String deliveredValue = health.allRooms ? roomsValue : value;
+        long version = health.allRooms ? roomsSnapshotVersion : snapshot.getVersion();
+        health.checkAcknowledgement(now);
+        if (health.isSuspended()) {
+          it.remove();
+          LOGGER.warning("SUSPEND " + entry.getKey().getLocalName() + " on " + notificationType);
+        } else if (!health.isLagging() || (health.lastDeliveredVersion != version
+                && !deliveredValue.equals(health.lastDeliveredValue))) {
+          if (health.allRooms) {
+            roomsMsg.addReceiver(entry.getKey());
+            roomsReceivers++;
+          } else {
+            msg.addReceiver(entry.getKey());
+            textReceivers++;
+          }
+          health.delivered(deliveredValue, version, now);
+        }
+      }
+      subscribersLock.writeLock().unlock();
+
+      if (textReceivers > 0) {
+        send(msg, now);
+      }
+      if (roomsReceivers > 0) {
+        send(roomsMsg, now);
+      }
+    }
+
+    private void send(ACLMessage msg, long now) {
       // Set additional message meta-data, that are used to identify the incoming messages
       // of the conversation
       msg.setConversationId("subscribe-" + notificationType);
+      if (ackTimeout > 0) {
+        // Subscribers acknowledge notifications with a CONFIRM in reply to this message
+        msg.setReplyWith("notify-" + notificationType + "-" + now);
+      }
 
-      // Send the message
-      myAgent.send(msg);
+      // Send the message in batches, so that the fan-out to many subscribers does not delay actuation requests
+      sendFanOut(msg);
     }
   } // End of inner class NotificationServer
 
+  /**
+   * <p>A SubscriberHealth keeps track of the delivery health of a subscriber, i.e. of the number of
+   * consecutive notifications that failed to be delivered or that were not acknowledged in time.</p>
+   * <p>A subscriber is lagging once the number exceeds the lag threshold, and suspended once the number
+   * exceeds the suspend threshold. A lagging subscriber recovers when it acknowledges a notification.</p>
+   */
+  private class SubscriberHealth {
+
+    // The number of consecutive failed or unacknowledged notifications
+    private int misses = 0;
+
+    // The value that was last delivered to the subscriber, and the version of the state it was read from
+    private String lastDeliveredValue;
+    private long lastDeliveredVersion = -1;
+
+    // The time of the oldest unacknowledged notification, or 0 if all notifications are acknowledged
+    private long awaitingAckSince = 0;
+
+    // Whether the subscriber subscribed to the conditions of all rooms
+    private final boolean allRooms;
+
+    private SubscriberHealth(boolean allRooms) {
+      this.allRooms = allRooms;
+    }
+
+    private void delivered(String value, long version, long now) {
+      lastDeliveredValue = value;
+      lastDeliveredVersion = version;
+      if (ackTimeout > 0 && awaitingAckSince == 0) {
+        awaitingAckSince = now;
+      }
+    }
+
+    private void checkAcknowledgement(long now) {
+      if (ackTimeout > 0 && awaitingAckSince > 0 && now - awaitingAckSince > ackTimeout) {
+        misses++;
+        awaitingAckSince = now;
+      }
+    }
+
+    private void acknowledged() {
+      misses = 0;
+      awaitingAckSince = 0;
+    }
+
+    private void failed() {
+      misses++;
+    }
+
+    private boolean isLagging() {
+      return misses >= lagThreshold;
+    }
+
+    private boolean isSuspended() {
+      return misses >= suspendThreshold;
+    }
+  }
+
+  /**
+   * <p>A DeliveryHealthServer is a JADE behavior that receives the outcome of notifications:</p>
+   * <ul>
+   * <li>FAILURE messages that the AMS sends if a notification cannot be delivered to a subscriber
+   * <li>CONFIRM messages that subscribers send to acknowledge notifications (if ack-timeout is given)
+   * </ul>
+   * <p>The class extends {@link CyclicBehaviour}, i.e. the behavior is executed continuously.</p>
+   */
+  private class DeliveryHealthServer extends CyclicBehaviour {
+
+    private final MessageTemplate msgTemplate = MessageTemplate.and(
+            MessageTemplate.or(MessageTemplate.MatchPerformative(ACLMessage.FAILURE),
+                    MessageTemplate.MatchPerformative(ACLMessage.CONFIRM)),
+            new MessageTemplate((MessageTemplate.MatchExpression) msg -> msg.getConversationId() != null
+                    && msg.getConversationId().startsWith("subscribe-")));
+
+    public void action() {
+      if (!mayRun(PriorityClass.TELEMETRY, this)) {
+        return;
+      }
+      ACLMessage msg = myAgent.receive(msgTemplate);
+
+      if (msg != null) {
+        String notificationType = msg.getConversationId().substring("subscribe-".length());
+        AID subscriber = null;
+        if (msg.getPerformative() == ACLMessage.CONFIRM) {
+          subscriber = msg.getSender();
+        } else if (getAMS().equals(msg.getSender()) && msg.getContent() != null) {
+          Matcher matcher = FAILED_RECEIVER.matcher(msg.getContent());
+          if (matcher.find()) {
+            subscriber = new AID(matcher.group(1), AID.ISGUID);
+          }
+        }
+
+        subscribersLock.writeLock().lock();
+        SubscriberHealth health = subscriber == null || !subscribers.containsKey(notificationType) ? null
+                : subscribers.get(notificationType).get(subscriber);
+        if (health != null) {
+          if (msg.getPerformative() == ACLMessage.CONFIRM) {
+            health.acknowledged();
+          } else {
+            health.failed();
+            LOGGER.info("Delivery of " + notificationType + " to " + subscriber.getLocalName() + " failed");
+          }
+        }
+        subscribersLock.writeLock().unlock();
+      } else {
+        block();
+      }
+    }
+  } // End of inner class DeliveryHealthServer
+
+  /**
+   * <p>A RequestOutcome is the outcome of a set-illuminance request, which is kept to acknowledge retries of the
+   * request with the same reply.</p>
+   */
+  private static final class RequestOutcome {
+    private final int performative;
+    private final String content;
+
+    // The illuminance version after the request, or -1 if the request was invalid
+    private final long version;
+
+    private RequestOutcome(int performative, String content, long version) {
+      this.performative = performative;
+      this.content = content;
+      this.version = version;
+    }
+
+    private ACLMessage createReply(ACLMessage request) {
+      ACLMessage reply = request.createReply();
+      reply.setPerformative(performative);
+      reply.setContent(content);
+      if (version >= 0) {
+        reply.addUserDefinedParameter(VERSION_PARAMETER, String.valueOf(version));
+      }
+      return reply;
+    }
+  }
+
   /**
    * <p>An SetIlluminanceServer is a JADE behavior that implements the
    * <a href="http://www.fipa.org/specs/fipa00026/SC00026H.html">FIPA Request Interaction Protocol</a>
@@ -223,10 +1237,29 @@ public class BuildingEnvironmentAgent extends BaseAgent {
    * "high".</p>
    * <p>The behavior is used to simulate changes on the illuminance of the room, e.g. when a lamp is turned
    * on or blinds are raised.</p>
+   * <p>Requests are idempotent: A request that carries a request id (see {@link #REQUEST_ID_PARAMETER}) is applied
+   * once, and retries of the request by the same sender are answered with the outcome of the request from a
+   * bounded cache of recent requests, i.e. without changing the conditions or notifying subscribers again. A
+   * request that carries the illuminance version that the requester perceived (see {@link #VERSION_PARAMETER})
+   * is applied with a compare-and-set (see {@link #compareAndSetIlluminance}): If the illuminance already has
+   * the requested value, the request is merged and done, and if another request changed the illuminance since
+   * that version, the request FAILS with {@link #STALE_VERSION} and the current illuminance version.</p>
    * <p>The class extends {@link CyclicBehaviour}, i.e. the behavior is executed continuously.</p>
    */
   private class SetIlluminanceServer extends CyclicBehaviour {
 
+    // The outcomes of the recent requests by sender and request id, of which the oldest are evicted
+    private final Map<String, RequestOutcome> recentRequests;
+
+    public SetIlluminanceServer(int capacity) {
+      this.recentRequests = new LinkedHashMap<String, RequestOutcome>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, RequestOutcome> eldest) {
+          return size() > capacity;
+        }
+      };
+    }
+
     public void action() {
       // The agent continuously accepts REQUEST messages
       MessageTemplate mt = MessageTemplate.MatchPerformative(ACLMessage.REQUEST);
@@ -234,28 +1267,57 @@ public class BuildingEnvironmentAgent extends BaseAgent {
 
       if (msg != null) {
         // Request message received
-        String illuminanceValue = msg.getContent();
-        ACLMessage reply = msg.createReply();
-
-        // The agent INFORMS that the request is satisfied only if it is for setting illuminance to high or low
-        if ("low".equals(illuminanceValue) || "high".equals(illuminanceValue)) {
-          reply.setPerformative(ACLMessage.INFORM);
-          reply.setContent("inform-done");
-          illuminance = illuminanceValue;
-          LOGGER.info("INFORM done set-illuminance " + illuminanceValue);
+        String requestId = msg.getUserDefinedParameter(REQUEST_ID_PARAMETER);
+        String key = requestId == null ? null : msg.getSender().getName() + "/" + requestId;
+        RequestOutcome outcome = key == null ? null : recentRequests.get(key);
+        if (outcome != null) {
+          // A retry of a recent request is acknowledged with the outcome of the request
+          duplicateRequests.incrementAndGet();
         } else {
-          // The agent FAILS to satisfy the request if it is not for setting illuminance to high or low
-          reply.setPerformative(ACLMessage.FAILURE);
-          reply.setContent("set-illuminance");
-          LOGGER.info("REFUSE set-illuminance " + illuminanceValue);
+          outcome = apply(msg);
+          if (key != null) {
+            recentRequests.put(key, outcome);
+          }
         }
 
         // Send the reply
-        myAgent.send(reply);
+        sendMessage(outcome.createReply(msg));
       } else {
         // Block the behavior until a new message that matches the template is received
         block();
       }
     }
+
+    private RequestOutcome apply(ACLMessage msg) {
+      String illuminanceValue = msg.getContent();
+      String room = msg.getUserDefinedParameter(ROOM_PARAMETER);
+      String version = msg.getUserDefinedParameter(VERSION_PARAMETER);
+
+      // The request is only valid if it is for setting illuminance to high or low, if the expected version is a
+      // number, and, if the request is for a room, only if the agent simulates the room
+      EnvironmentState result = null;
+      if ("low".equals(illuminanceValue) || "high".equals(illuminanceValue)) {
+        try {
+          result = compareAndSetIlluminance(room, illuminanceValue, version == null ? -1 : Long.parseLong(version));
+        } catch (NumberFormatException e) {
+          LOGGER.warning("Invalid version " + version + " of set-illuminance by " + msg.getSender().getLocalName());
+        }
+      }
+
+      if (result == null) {
+        // The agent FAILS to satisfy the request if it is not valid
+        LOGGER.info("REFUSE set-illuminance " + illuminanceValue);
+        return new RequestOutcome(ACLMessage.FAILURE, "set-illuminance", -1);
+      } else if (!illuminanceValue.equals(result.getIlluminance())) {
+        // The conditions changed since the requester perceived them, so the requester decides again
+        staleRequests.incrementAndGet();
+        LOGGER.info("FAIL set-illuminance " + illuminanceValue + ": expected version " + version + ", current "
+                + result.getIlluminanceVersion());
+        return new RequestOutcome(ACLMessage.FAILURE, STALE_VERSION, result.getIlluminanceVersion());
+      }
+      // The agent INFORMS that the request is satisfied, whether it changed the illuminance or was merged
+      LOGGER.info("INFORM done set-illuminance " + illuminanceValue + (room == null ? "" : " in room " + room));
+      return new RequestOutcome(ACLMessage.INFORM, "inform-done", result.getIlluminanceVersion());
+    }
   }  // End of inner class SetIlluminanceServer
 }
@@ -8,38 +8,52 @@ import java.awt.event.WindowEvent;
 public class BuildingEnvironmentGUI extends JFrame {
   private final JComboBox<String> illuminanceBox;
   private final JComboBox<String> weatherBox;
+  private final JComboBox<String> occupancyBox;
   private final String[] illuminanceOptions = {"high", "low"};
   private final String[] weatherOptions = {"sunny", "cloudy"};
+  private final String[] occupancyOptions = {"occupied", "empty"};
   private final BuildingEnvironmentAgent myAgent;
   private String illuminance;
   private String weather;
+  private String occupancy;
 
   BuildingEnvironmentGUI(BuildingEnvironmentAgent agent) {
 
     myAgent = agent;
-    illuminance = myAgent.getWeather();
-    weather = myAgent.getIlluminance();
+    EnvironmentState state = myAgent.getEnvironmentState();
+    illuminance = state.getIlluminance();
+    weather = state.getWeather();
+    occupancy = state.getOccupancy();
 
     JPanel p = new JPanel();
-    p.setLayout(new GridLayout(2, 2));
+    p.setLayout(new GridLayout(3, 2));
 
     p.add(new JLabel("Perceived illuminance:"));
     illuminanceBox = new JComboBox<>(illuminanceOptions);
+    illuminanceBox.setSelectedItem(illuminance);
     p.add(illuminanceBox);
 
     p.add(new JLabel("Perceived weather:"));
     weatherBox = new JComboBox<>(weatherOptions);
+    weatherBox.setSelectedItem(weather);
     p.add(weatherBox);
 
+    p.add(new JLabel("Occupancy:"));
+    occupancyBox = new JComboBox<>(occupancyOptions);
+    occupancyBox.setSelectedItem(occupancy);
+    p.add(occupancyBox);
+
     getContentPane().add(p, BorderLayout.CENTER);
 
     JButton addButton = new JButton("Done");
 
     addButton.addActionListener(ev -> {
       this.illuminance = illuminanceBox.getItemAt(illuminanceBox.getSelectedIndex());
-      myAgent.setIlluminance(illuminance);
       this.weather = weatherBox.getItemAt(weatherBox.getSelectedIndex());
-      myAgent.setWeather(weather);
+      // Both values are published in one snapshot
+      myAgent.setConditions(illuminance, weather);
+      this.occupancy = occupancyBox.getItemAt(occupancyBox.getSelectedIndex());
+      myAgent.setOccupancy(occupancy);
       this.dispose();
     });
 
@@ -0,0 +1,195 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.environment;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import jade.util.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>An EnvironmentHttpServer is an embedded HTTP server on the loopback interface that serves the conditions of
+ * the building environment as JSON, so that dashboards and tools can read them without becoming agents:</p>
+ * <ul>
+ * <li>GET /state: the conditions of the environment and, if the {@link BuildingEnvironmentAgent} simulates many
+ * rooms, of every room
+ * <li>GET /history: the most recent changes of the conditions (see {@link StateHistory})
+ * </ul>
+ * <p>Requests are served by the threads of the server from the immutable snapshots that the agent publishes on
+ * every change, i.e. they never touch the mailbox or the thread of the agent. Each response carries the version
+ * of its snapshot as ETag, and requests with a matching If-None-Match header are answered with 304 Not Modified.
+ * The JSON of the latest version is cached, so that it is only rendered once per change.</p>
+ * <p>The JVM must be started with <code>-Dsun.net.httpserver.nodelay=true</code> (the {@link
+ * ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.launcher.Launcher} and the Gradle tasks set it).
+ * Without TCP_NODELAY, the delayed ACKs of clients throttle keep-alive connections to a few dozen responses per
+ * second, because the server writes the headers and the body of a response separately. The JDK reads the property
+ * once for all servers of the JVM, so the server only warns if it is missing.</p>
+ */
+public class EnvironmentHttpServer implements Closeable {
+
+  private final static Logger LOGGER = Logger.getJADELogger(EnvironmentHttpServer.class.getName());
+  // The property through which the JDK HTTP server enables TCP_NODELAY on its connections
+  public final static String NODELAY_PROPERTY = "sun.net.httpserver.nodelay";
+
+  /**
+   * <p>A Rendered is the cached JSON of a version of a snapshot.</p>
+   */
+  private static final class Rendered {
+    private final String etag;
+    private final byte[] body;
+
+    private Rendered(String etag, byte[] body) {
+      this.etag = etag;
+      this.body = body;
+    }
+  }
+
+  private final BuildingEnvironmentAgent environment;
+  private final HttpServer server;
+  private final ExecutorService executor;
+
+  private final AtomicReference<Rendered> state = new AtomicReference<>();
+  private final AtomicReference<Rendered> history = new AtomicReference<>();
+
+  /**
+   * Starts a server on the loopback interface.
+   *
+   * @param environment the agent whose conditions are served
+   * @param port        the port of the server
+   * @param threads     the number of threads that serve requests
+   * @throws IOException if the server cannot be started
+   */
+  public EnvironmentHttpServer(BuildingEnvironmentAgent environment, int port, int threads) throws IOException {
+    this.environment = environment;
+    if (!Boolean.getBoolean(NODELAY_PROPERTY)) {
+      LOGGER.warning("Serving without TCP_NODELAY, which limits keep-alive clients to a few dozen responses per "
+              + "second; start the JVM with -D" + NODELAY_PROPERTY + "=true");
+    }
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable, "environment-http");
+      thread.setDaemon(true);
+      return thread;
+    });
+    server.setExecutor(executor);
+    server.createContext("/state", exchange -> serve(exchange, this::renderState));
+    server.createContext("/history", exchange -> serve(exchange, this::renderHistory));
+    server.start();
+  }
+
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  private interface Renderer {
+    Rendered render();
+  }
+
+  private void serve(HttpExchange exchange, Renderer renderer) throws IOException {
+    try {
+      if (!"GET".equals(exchange.getRequestMethod())) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      Rendered rendered = renderer.render();
+      exchange.getResponseHeaders().set("ETag", rendered.etag);
+      exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+      if (rendered.etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+        exchange.sendResponseHeaders(304, -1);
+        return;
+      }
+      exchange.getResponseHeaders().set("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, rendered.body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(rendered.body);
+      }
+    } catch (RuntimeException e) {
+      LOGGER.warning("Cannot serve " + exchange.getRequestURI() + ": " + e);
+      exchange.sendResponseHeaders(500, -1);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private Rendered renderState() {
+    EnvironmentState snapshot = environment.getEnvironmentState();
+    int rooms = environment.getRooms();
+    String etag = "\"" + snapshot.getVersion() + "." + environment.getRoomsVersion() + "\"";
+    Rendered cached = state.get();
+    if (cached != null && cached.etag.equals(etag)) {
+      return cached;
+    }
+
+    StringBuilder json = new StringBuilder(64 + rooms * 80);
+    json.append('{');
+    appendState(json, snapshot);
+    if (rooms > 0) {
+      json.append(",\"rooms\":[");
+      for (int room = 1; room <= rooms; room++) {
+        if (room > 1) {
+          json.append(',');
+        }
+        json.append("{\"room\":").append(room).append(',');
+        appendState(json, environment.getRoomState(room));
+        json.append('}');
+      }
+      json.append(']');
+    }
+    json.append('}');
+
+    // The rooms may change while the JSON is rendered. The ETag of the version that was read first is kept,
+    // so that the next request renders the JSON again.
+    Rendered rendered = new Rendered(etag, json.toString().getBytes(StandardCharsets.UTF_8));
+    state.set(rendered);
+    return rendered;
+  }
+
+  private Rendered renderHistory() {
+    StateHistory snapshot = environment.getHistory();
+    String etag = "\"" + snapshot.getSequence() + "\"";
+    Rendered cached = history.get();
+    if (cached != null && cached.etag.equals(etag)) {
+      return cached;
+    }
+
+    StringBuilder json = new StringBuilder(32 + snapshot.getChanges().size() * 100);
+    json.append("{\"sequence\":").append(snapshot.getSequence()).append(",\"changes\":[");
+    boolean first = true;
+    for (StateHistory.Change change : snapshot.getChanges()) {
+      if (!first) {
+        json.append(',');
+      }
+      first = false;
+      json.append("{\"timestamp\":").append(change.timestamp).append(",\"room\":").append(change.room).append(',');
+      appendState(json, change.state);
+      json.append('}');
+    }
+    json.append("]}");
+
+    Rendered rendered = new Rendered(etag, json.toString().getBytes(StandardCharsets.UTF_8));
+    history.set(rendered);
+    return rendered;
+  }
+
+  // The values are fixed words (e.g. high or sunny), so they need no escaping
+  private static void appendState(StringBuilder json, EnvironmentState state) {
+    json.append("\"version\":").append(state.getVersion())
+            .append(",\"illuminance\":\"").append(state.getIlluminance())
+            .append("\",\"lux\":").append(state.getLux())
+            .append(",\"weather\":\"").append(state.getWeather())
+            .append("\",\"occupancy\":\"").append(state.getOccupancy()).append('"');
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,320 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.environment;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>An EnvironmentPublisher publishes the changes of the conditions of the building environment (see
+ * {@link StateHistory.Change}) to consumers in the same JVM, e.g. analytics, controllers or test harnesses, as a
+ * {@link Flow.Publisher}. Consumers do not subscribe with ACL messages and do not parse notifications, i.e. a
+ * change is handed to them as the snapshot that the {@link BuildingEnvironmentAgent} published.</p>
+ * <p>Each subscription has its own bounded buffer, and a subscriber receives changes only as far as it requested
+ * them (see {@link Flow.Subscription#request(long)}). If a subscriber does not keep up, its buffer is kept within
+ * its capacity according to its {@link Overflow} policy, so that a slow subscriber never delays the agent or other
+ * subscribers. The changes are delivered by the threads of an executor, one thread at a time per subscription, in
+ * the order in which they were recorded.</p>
+ * <p>When the agent is taken down, the subscribers receive the buffered changes that they request, and then
+ * {@link Flow.Subscriber#onComplete()}.</p>
+ */
+public class EnvironmentPublisher implements Flow.Publisher<StateHistory.Change> {
+
+  /**
+   * The policies for keeping the buffer of a subscription within its capacity:
+   * <ul>
+   * <li>DROP_OLDEST: the oldest change is dropped when a new change does not fit in the buffer
+   * <li>LATEST_PER_ROOM: a new change replaces any buffered change of the same room, i.e. only the latest
+   * conditions of each room are kept; if the buffer is full with changes of other rooms, the oldest is dropped
+   * <li>FAIL: the subscription is cancelled with {@link Flow.Subscriber#onError(Throwable)} when a change does not
+   * fit in the buffer, e.g. for test harnesses that must see every change
+   * </ul>
+   */
+  public enum Overflow {
+    DROP_OLDEST,
+    LATEST_PER_ROOM,
+    FAIL
+  }
+
+  // The buffer capacity and overflow policy of subscriptions that do not specify them
+  public static final int DEFAULT_CAPACITY = 256;
+  public static final Overflow DEFAULT_OVERFLOW = Overflow.LATEST_PER_ROOM;
+
+  // The executor that delivers the changes to the subscribers
+  private final Executor executor;
+
+  // The active subscriptions
+  private final List<ChangeSubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+  // Whether the publisher was closed, after which new subscribers are completed immediately
+  private volatile boolean closed = false;
+
+  // The number of changes that were dropped or replaced to keep the buffers of all subscribers within capacity
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * Constructs a publisher that delivers changes with daemon threads, which are started on demand and end when
+   * they are idle.
+   */
+  public EnvironmentPublisher() {
+    this(newDeliveryExecutor());
+  }
+
+  public EnvironmentPublisher(Executor executor) {
+    this.executor = executor;
+  }
+
+  private static ExecutorService newDeliveryExecutor() {
+    return Executors.newCachedThreadPool(task -> {
+      Thread thread = new Thread(task, "environment-publisher");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super StateHistory.Change> subscriber) {
+    subscribe(subscriber, DEFAULT_CAPACITY, DEFAULT_OVERFLOW);
+  }
+
+  /**
+   * Subscribes to the changes with a buffer of the given capacity and overflow policy.
+   *
+   * @param subscriber the subscriber
+   * @param capacity   the maximum number of changes that are buffered for the subscriber
+   * @param overflow   the policy for keeping the buffer within its capacity
+   */
+  public void subscribe(Flow.Subscriber<? super StateHistory.Change> subscriber, int capacity, Overflow overflow) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Invalid buffer capacity: " + capacity);
+    }
+    ChangeSubscription subscription = new ChangeSubscription(subscriber, capacity, overflow);
+    subscriptions.add(subscription);
+    subscription.start();
+    if (closed) {
+      subscription.complete();
+    }
+  }
+
+  /**
+   * Publishes a change to all subscribers.
+   *
+   * @param change the change
+   */
+  void publish(StateHistory.Change change) {
+    for (ChangeSubscription subscription : subscriptions) {
+      subscription.offer(change);
+    }
+  }
+
+  /**
+   * Completes all subscriptions, i.e. the subscribers receive the buffered changes that they request, and then
+   * {@link Flow.Subscriber#onComplete()}.
+   */
+  void close() {
+    closed = true;
+    for (ChangeSubscription subscription : subscriptions) {
+      subscription.complete();
+    }
+  }
+
+  public int getSubscribers() {
+    return subscriptions.size();
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * <p>A ChangeSubscription buffers the changes for a subscriber, and delivers them as far as the subscriber
+   * requested them. The buffer and the demand are guarded by the subscription, and the subscriber is called
+   * outside of the lock, by at most one thread at a time.</p>
+   */
+  private final class ChangeSubscription implements Flow.Subscription {
+
+    private final Flow.Subscriber<? super StateHistory.Change> subscriber;
+    private final int capacity;
+    private final Overflow overflow;
+
+    // The buffered changes, by room if the latest change of each room is kept, and in order otherwise
+    private final ArrayDeque<StateHistory.Change> buffer = new ArrayDeque<>();
+    private final Map<Integer, StateHistory.Change> latest = new LinkedHashMap<>();
+
+    // The number of requested changes that were not delivered yet
+    private long demand = 0;
+
+    // The terminal signal that is delivered once the buffer is drained, if any
+    private boolean completed = false;
+    private Throwable error;
+
+    // Whether the subscription ended, and whether a delivery task is scheduled or running
+    private boolean cancelled = false;
+    private boolean draining = false;
+
+    private ChangeSubscription(Flow.Subscriber<? super StateHistory.Change> subscriber, int capacity,
+                               Overflow overflow) {
+      this.subscriber = subscriber;
+      this.capacity = capacity;
+      this.overflow = overflow;
+    }
+
+    // Delivers onSubscribe before any other signal, i.e. the first delivery task starts after it
+    private void start() {
+      synchronized (this) {
+        draining = true;
+      }
+      executor.execute(() -> {
+        try {
+          subscriber.onSubscribe(this);
+        } catch (Throwable t) {
+          cancel();
+        }
+        drain();
+      });
+    }
+
+    private void offer(StateHistory.Change change) {
+      synchronized (this) {
+        if (cancelled || completed) {
+          return;
+        }
+        if (overflow == Overflow.LATEST_PER_ROOM) {
+          if (latest.containsKey(change.room)) {
+            // The change keeps the position of the replaced change, so that no room is starved
+            latest.put(change.room, change);
+            dropped.incrementAndGet();
+            return;
+          }
+          if (latest.size() == capacity) {
+            Iterator<StateHistory.Change> oldest = latest.values().iterator();
+            oldest.next();
+            oldest.remove();
+            dropped.incrementAndGet();
+          }
+          latest.put(change.room, change);
+        } else {
+          if (buffer.size() == capacity) {
+            if (overflow == Overflow.FAIL) {
+              error = new IllegalStateException("The buffer of " + capacity + " changes overflowed");
+              buffer.clear();
+            } else {
+              buffer.pollFirst();
+              dropped.incrementAndGet();
+            }
+          }
+          if (error == null) {
+            buffer.addLast(change);
+          }
+        }
+      }
+      schedule();
+    }
+
+    private void complete() {
+      synchronized (this) {
+        completed = true;
+      }
+      schedule();
+    }
+
+    @Override
+    public void request(long n) {
+      synchronized (this) {
+        if (n <= 0) {
+          // A non-positive request is a protocol violation of the subscriber (rule 3.9)
+          error = new IllegalArgumentException("Non-positive request: " + n);
+        } else {
+          demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+        }
+      }
+      schedule();
+    }
+
+    @Override
+    public void cancel() {
+      synchronized (this) {
+        cancelled = true;
+        buffer.clear();
+        latest.clear();
+      }
+      subscriptions.remove(this);
+    }
+
+    private void schedule() {
+      synchronized (this) {
+        if (draining || cancelled || !(error != null || completed || (demand > 0 && size() > 0))) {
+          return;
+        }
+        draining = true;
+      }
+      executor.execute(this::drain);
+    }
+
+    private void drain() {
+      while (true) {
+        StateHistory.Change next;
+        Throwable failure = null;
+        boolean done = false;
+        synchronized (this) {
+          if (cancelled) {
+            draining = false;
+            return;
+          }
+          if (error != null) {
+            failure = error;
+          } else if (demand > 0 && size() > 0) {
+            demand--;
+          } else if (completed && size() == 0) {
+            done = true;
+          } else {
+            draining = false;
+            return;
+          }
+          next = failure == null && !done ? poll() : null;
+          if (failure != null || done) {
+            cancelled = true;
+            draining = false;
+          }
+        }
+        if (failure != null) {
+          subscriptions.remove(this);
+          subscriber.onError(failure);
+          return;
+        } else if (done) {
+          subscriptions.remove(this);
+          subscriber.onComplete();
+          return;
+        }
+        try {
+          subscriber.onNext(next);
+        } catch (Throwable t) {
+          // A subscriber that throws is cancelled (rule 2.13)
+          cancel();
+          return;
+        }
+      }
+    }
+
+    private int size() {
+      return overflow == Overflow.LATEST_PER_ROOM ? latest.size() : buffer.size();
+    }
+
+    private StateHistory.Change poll() {
+      if (overflow != Overflow.LATEST_PER_ROOM) {
+        return buffer.pollFirst();
+      }
+      Iterator<StateHistory.Change> oldest = latest.values().iterator();
+      StateHistory.Change change = oldest.next();
+      oldest.remove();
+      return change;
+    }
+  } // End of inner class ChangeSubscription
+}
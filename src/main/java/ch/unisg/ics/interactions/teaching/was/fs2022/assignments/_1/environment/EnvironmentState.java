@@ -0,0 +1,152 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.environment;
+
+/**
+ * <p>An EnvironmentState is an immutable snapshot of the conditions of the building environment,
+ * i.e. the illuminance of the room, the weather, and whether the room is occupied. If the illuminance is read
+ * from a sensor, the snapshot also holds the measured lux.</p>
+ * <p>The {@link BuildingEnvironmentAgent} publishes a new snapshot atomically on every change, so that the
+ * agent thread and the GUI thread always read a consistent pair of values without locking. Each snapshot
+ * has a version number that is increased on every change, so that readers can cheaply check whether the
+ * conditions changed since they last read them. The illuminance version is only increased when the illuminance
+ * changes, so that set-illuminance requests that expect it are not outdated by lux readings or by changes of the
+ * weather.</p>
+ */
+public final class EnvironmentState {
+
+  // The state of the environment when the agent is set up
+  static final EnvironmentState INITIAL = new EnvironmentState("high", -1, "sunny", "occupied", 0, 0);
+
+  private final String illuminance;
+  private final int lux;
+  private final String weather;
+  private final String occupancy;
+  private final long version;
+  private final long illuminanceVersion;
+
+  private EnvironmentState(String illuminance, int lux, String weather, String occupancy, long version,
+                           long illuminanceVersion) {
+    this.illuminance = illuminance;
+    this.lux = lux;
+    this.weather = weather;
+    this.occupancy = occupancy;
+    this.version = version;
+    this.illuminanceVersion = illuminanceVersion;
+  }
+
+  public String getIlluminance() {
+    return illuminance;
+  }
+
+  /**
+   * Returns the measured illuminance.
+   *
+   * @return the illuminance in lux, or -1 if the illuminance was not measured by a sensor
+   */
+  public int getLux() {
+    return lux;
+  }
+
+  public String getWeather() {
+    return weather;
+  }
+
+  /**
+   * Returns whether the room is occupied.
+   *
+   * @return occupied or empty
+   */
+  public String getOccupancy() {
+    return occupancy;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Returns the version of the illuminance, which is only increased when the illuminance changes, i.e. not when
+   * only the measured lux, the weather or the occupancy change.
+   *
+   * @return the illuminance version
+   */
+  public long getIlluminanceVersion() {
+    return illuminanceVersion;
+  }
+
+  /**
+   * Returns the value of a notification type, i.e. the illuminance for read-illuminance and the weather
+   * for read-weather.
+   *
+   * @param notificationType the notification type
+   * @return the value, or null for unknown notification types
+   */
+  public String getValue(String notificationType) {
+    if ("read-illuminance".equals(notificationType)) {
+      return illuminance;
+    } else if ("read-weather".equals(notificationType)) {
+      return weather;
+    }
+    return null;
+  }
+
+  /**
+   * Returns the value of a kind of condition, as it is published on the topics of a room.
+   *
+   * @param kind the kind of condition, i.e. illuminance, weather or occupancy
+   * @return the value, or null if the kind is unknown
+   */
+  public String getTopicValue(String kind) {
+    switch (kind) {
+      case "illuminance":
+        return illuminance;
+      case "weather":
+        return weather;
+      case "occupancy":
+        return occupancy;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Creates the next snapshot with the given conditions. The version is only increased if the conditions
+   * change.
+   *
+   * @param illuminance the illuminance of the next snapshot
+   * @param weather     the weather of the next snapshot
+   * @return the next snapshot, or this snapshot if the conditions did not change
+   */
+  EnvironmentState with(String illuminance, String weather) {
+    // Illuminance that is set without a sensor reading has no measured lux
+    return with(illuminance, this.illuminance.equals(illuminance) ? lux : -1, weather);
+  }
+
+  EnvironmentState with(String illuminance, int lux, String weather) {
+    if (this.illuminance.equals(illuminance) && this.lux == lux && this.weather.equals(weather)) {
+      return this;
+    }
+    return new EnvironmentState(illuminance, lux, weather, occupancy, version + 1,
+            this.illuminance.equals(illuminance) ? illuminanceVersion : illuminanceVersion + 1);
+  }
+
+  EnvironmentState withOccupancy(String occupancy) {
+    if (this.occupancy.equals(occupancy)) {
+      return this;
+    }
+    return new EnvironmentState(illuminance, lux, weather, occupancy, version + 1, illuminanceVersion);
+  }
+
+  EnvironmentState withIlluminance(String illuminance) {
+    return with(illuminance, weather);
+  }
+
+  EnvironmentState withWeather(String weather) {
+    return with(illuminance, weather);
+  }
+
+  @Override
+  public String toString() {
+    return "illuminance=" + illuminance + ", lux=" + lux + ", weather=" + weather + ", occupancy=" + occupancy
+            + ", version=" + version + ", illuminanceVersion=" + illuminanceVersion;
+  }
+}
@@ -0,0 +1,224 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.environment;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <p>A SensorTraceReader streams the readings of a recorded building sensor trace through a buffered file
+ * channel, i.e. without loading the trace into memory. Two formats are supported:</p>
+ * <ul>
+ * <li>CSV: one reading per line with the columns timestamp (ms), room, lux and weather (sunny or cloudy).
+ * A header line and empty lines are skipped.
+ * <li>binary: the magic number {@link #MAGIC} followed by fixed-size records of {@link #RECORD_SIZE} bytes, i.e.
+ * the timestamp (8 bytes), the room number (4 bytes), the lux (4 bytes) and the weather (1 byte: 0 for sunny,
+ * 1 for cloudy).
+ * </ul>
+ * <p>The format is detected from the first bytes of the trace.</p>
+ */
+public class SensorTraceReader implements Closeable {
+
+  public static final int MAGIC = 0x534E5352; // "SNSR"
+  public static final int RECORD_SIZE = 17;
+
+  public static final String[] WEATHER = {"sunny", "cloudy"};
+
+  /**
+   * <p>A Reading is a single reading of a sensor trace.</p>
+   */
+  public static class Reading {
+    public final long timestamp;
+    public final String room;
+    public final int lux;
+    public final String weather;
+
+    public Reading(long timestamp, String room, int lux, String weather) {
+      this.timestamp = timestamp;
+      this.room = room;
+      this.lux = lux;
+      this.weather = weather;
+    }
+  }
+
+  private final FileChannel channel;
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+  private final boolean binary;
+  private boolean endOfFile = false;
+
+  // The last room id of the CSV trace, which is reused as long as consecutive readings are for the same room
+  private final byte[] roomBytes = new byte[64];
+  private int roomLength = 0;
+  private String room;
+
+  // The last room number of the binary trace
+  private int roomNumber;
+
+  private long readings = 0;
+
+  public SensorTraceReader(Path path) throws IOException {
+    this.channel = FileChannel.open(path, StandardOpenOption.READ);
+    buffer.flip();
+    binary = fill(4) && buffer.getInt(buffer.position()) == MAGIC;
+    if (binary) {
+      buffer.getInt();
+    }
+  }
+
+  /**
+   * Reads the next reading of the trace.
+   *
+   * @return the next reading, or null at the end of the trace
+   * @throws IOException if the trace cannot be read or is malformed
+   */
+  public Reading next() throws IOException {
+    Reading reading = binary ? nextRecord() : nextLine();
+    if (reading != null) {
+      readings++;
+    }
+    return reading;
+  }
+
+  public long getReadings() {
+    return readings;
+  }
+
+  private Reading nextRecord() throws IOException {
+    if (!fill(RECORD_SIZE)) {
+      return null;
+    }
+    long timestamp = buffer.getLong();
+    int roomNumber = buffer.getInt();
+    int lux = buffer.getInt();
+    byte weather = buffer.get();
+    if (room == null || this.roomNumber != roomNumber) {
+      this.roomNumber = roomNumber;
+      room = Integer.toString(roomNumber);
+    }
+    return new Reading(timestamp, room, lux, WEATHER[weather == 0 ? 0 : 1]);
+  }
+
+  private Reading nextLine() throws IOException {
+    while (true) {
+      if (!fill(1)) {
+        return null;
+      }
+      int start = buffer.position();
+      int end = findLineEnd();
+      if (end < 0) {
+        // The line does not end within the buffered bytes
+        if (buffer.remaining() == buffer.capacity() || endOfFile) {
+          if (endOfFile && buffer.hasRemaining()) {
+            end = buffer.limit();
+          } else {
+            throw new IOException("Line too long in trace");
+          }
+        } else {
+          fill(buffer.remaining() + 1);
+          continue;
+        }
+      }
+      Reading reading = parseLine(start, end);
+      buffer.position(Math.min(end + 1, buffer.limit()));
+      if (reading != null) {
+        return reading;
+      }
+    }
+  }
+
+  private int findLineEnd() {
+    for (int i = buffer.position(); i < buffer.limit(); i++) {
+      if (buffer.get(i) == '\n') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // Parses a line of the form timestamp,room,lux,weather. Returns null for header or empty lines.
+  private Reading parseLine(int start, int end) throws IOException {
+    if (end > start && buffer.get(end - 1) == '\r') {
+      end--;
+    }
+    if (end == start || !isDigit(buffer.get(start))) {
+      return null;
+    }
+    int[] columns = new int[4];
+    int column = 1;
+    for (int i = start; i < end && column < 4; i++) {
+      if (buffer.get(i) == ',') {
+        columns[column++] = i + 1;
+      }
+    }
+    if (column < 4) {
+      throw new IOException("Malformed trace line after " + readings + " readings");
+    }
+    long timestamp = parseLong(start, columns[1] - 1);
+    String room = parseRoom(columns[1], columns[2] - 1);
+    int lux = (int) parseLong(columns[2], columns[3] - 1);
+    String weather = buffer.get(columns[3]) == 'c' ? WEATHER[1] : WEATHER[0];
+    return new Reading(timestamp, room, lux, weather);
+  }
+
+  private static boolean isDigit(byte b) {
+    return b >= '0' && b <= '9';
+  }
+
+  private long parseLong(int start, int end) throws IOException {
+    long value = 0;
+    for (int i = start; i < end; i++) {
+      byte b = buffer.get(i);
+      if (!isDigit(b)) {
+        throw new IOException("Malformed number in trace after " + readings + " readings");
+      }
+      value = value * 10 + (b - '0');
+    }
+    return value;
+  }
+
+  // Reuses the room id of the previous reading if the bytes are equal, so that no string is created per line
+  private String parseRoom(int start, int end) {
+    int length = end - start;
+    boolean same = room != null && length == roomLength;
+    for (int i = 0; same && i < length; i++) {
+      same = roomBytes[i] == buffer.get(start + i);
+    }
+    if (!same) {
+      byte[] bytes = new byte[length];
+      for (int i = 0; i < length; i++) {
+        bytes[i] = buffer.get(start + i);
+      }
+      room = new String(bytes, StandardCharsets.US_ASCII);
+      roomLength = Math.min(length, roomBytes.length);
+      System.arraycopy(bytes, 0, roomBytes, 0, roomLength);
+      if (length > roomBytes.length) {
+        // Room ids that do not fit are never reused
+        roomLength = -1;
+      }
+    }
+    return room;
+  }
+
+  // Makes sure that at least size bytes are buffered, unless the end of the file is reached
+  private boolean fill(int size) throws IOException {
+    if (buffer.remaining() >= size) {
+      return true;
+    }
+    buffer.compact();
+    while (!endOfFile && buffer.position() < size && buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        endOfFile = true;
+      }
+    }
+    buffer.flip();
+    return buffer.remaining() >= size;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,183 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.environment;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <p>A SharedStateChannel is a memory-mapped state file through which local processes (e.g. sensor simulators
+ * or bridges) write sensor readings that the {@link BuildingEnvironmentAgent} picks up, without sending an
+ * ACL message per reading.</p>
+ * <p>The file has a fixed layout in native byte order:</p>
+ * <ul>
+ * <li>header ({@link #HEADER_SIZE} bytes): magic number (4 bytes), layout version (4 bytes), number of room
+ * slots (4 bytes), slot size (4 bytes), change counter (8 bytes)
+ * <li>one slot per room ({@link #SLOT_SIZE} bytes): sequence number (8 bytes), lux (4 bytes), weather (1 byte:
+ * 0 for sunny, 1 for cloudy), padding (3 bytes), timestamp in ms (8 bytes), padding (8 bytes)
+ * </ul>
+ * <p>Slots are versioned as a seqlock: A writer makes the sequence number odd, writes the reading, makes the
+ * sequence number even again, and then increments the change counter. A reader retries while the sequence
+ * number is odd or changed during the read, so that it never sees a torn reading. Readers poll the change
+ * counter, and only read the slots whose sequence number changed.</p>
+ * <p>Each slot must be written by a single process at a time.</p>
+ */
+public class SharedStateChannel implements Closeable {
+
+  public static final int MAGIC = 0x53484D53; // "SHMS"
+  public static final int LAYOUT_VERSION = 1;
+  public static final int HEADER_SIZE = 64;
+  public static final int SLOT_SIZE = 32;
+
+  private static final int ROOMS_OFFSET = 8;
+  private static final int CHANGES_OFFSET = 16;
+
+  private static final int SEQUENCE = 0;
+  private static final int LUX = 8;
+  private static final int WEATHER = 12;
+  private static final int TIMESTAMP = 16;
+
+  private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+  /**
+   * <p>A Reading is a consistent copy of a slot.</p>
+   */
+  public static class Reading {
+    public final long sequence;
+    public final int lux;
+    public final String weather;
+    public final long timestamp;
+
+    Reading(long sequence, int lux, String weather, long timestamp) {
+      this.sequence = sequence;
+      this.lux = lux;
+      this.weather = weather;
+      this.timestamp = timestamp;
+    }
+  }
+
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final int rooms;
+
+  private SharedStateChannel(FileChannel channel, MappedByteBuffer buffer, int rooms) {
+    this.channel = channel;
+    this.buffer = buffer;
+    this.rooms = rooms;
+  }
+
+  /**
+   * Opens a state file, and creates it with the given number of room slots if it does not exist yet.
+   *
+   * @param path  the state file
+   * @param rooms the number of room slots of a new state file
+   * @return the channel
+   * @throws IOException if the file cannot be mapped or has an incompatible layout
+   */
+  public static SharedStateChannel open(Path path, int rooms) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    boolean created = channel.size() == 0;
+    long size = created ? HEADER_SIZE + (long) rooms * SLOT_SIZE : channel.size();
+    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    buffer.order(ByteOrder.nativeOrder());
+    if (created) {
+      buffer.putInt(0, MAGIC);
+      buffer.putInt(4, LAYOUT_VERSION);
+      buffer.putInt(ROOMS_OFFSET, rooms);
+      buffer.putInt(12, SLOT_SIZE);
+    } else if (size < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != LAYOUT_VERSION
+            || buffer.getInt(12) != SLOT_SIZE || size < HEADER_SIZE + (long) buffer.getInt(ROOMS_OFFSET) * SLOT_SIZE) {
+      channel.close();
+      throw new IOException("Incompatible state file: " + path);
+    }
+    return new SharedStateChannel(channel, buffer, buffer.getInt(ROOMS_OFFSET));
+  }
+
+  public int getRooms() {
+    return rooms;
+  }
+
+  /**
+   * Returns the change counter, which is incremented after every write.
+   *
+   * @return the change counter
+   */
+  public long getChanges() {
+    return (long) LONGS.getAcquire(buffer, CHANGES_OFFSET);
+  }
+
+  /**
+   * Returns the sequence number of a slot, which is even unless the slot is being written.
+   *
+   * @param slot the slot of a room
+   * @return the sequence number
+   */
+  public long getSequence(int slot) {
+    return (long) LONGS.getAcquire(buffer, offset(slot) + SEQUENCE);
+  }
+
+  /**
+   * Writes a reading to a slot.
+   *
+   * @param slot      the slot of a room
+   * @param lux       the measured illuminance in lux
+   * @param weather   the weather, i.e. sunny or cloudy
+   * @param timestamp the time of the reading
+   */
+  public void write(int slot, int lux, String weather, long timestamp) {
+    int offset = offset(slot);
+    long sequence = (long) LONGS.getOpaque(buffer, offset + SEQUENCE);
+    LONGS.setRelease(buffer, offset + SEQUENCE, sequence + 1);
+    VarHandle.storeStoreFence();
+    buffer.putInt(offset + LUX, lux);
+    buffer.put(offset + WEATHER, (byte) ("cloudy".equals(weather) ? 1 : 0));
+    buffer.putLong(offset + TIMESTAMP, timestamp);
+    LONGS.setRelease(buffer, offset + SEQUENCE, sequence + 2);
+    LONGS.getAndAddRelease(buffer, CHANGES_OFFSET, 1L);
+  }
+
+  /**
+   * Reads a consistent copy of a slot.
+   *
+   * @param slot the slot of a room
+   * @return the reading, or null if no reading was written to the slot yet
+   */
+  public Reading read(int slot) {
+    int offset = offset(slot);
+    while (true) {
+      long before = (long) LONGS.getAcquire(buffer, offset + SEQUENCE);
+      if (before == 0) {
+        return null;
+      }
+      if ((before & 1) != 0) {
+        Thread.onSpinWait();
+        continue;
+      }
+      int lux = buffer.getInt(offset + LUX);
+      byte weather = buffer.get(offset + WEATHER);
+      long timestamp = buffer.getLong(offset + TIMESTAMP);
+      VarHandle.loadLoadFence();
+      if ((long) LONGS.getAcquire(buffer, offset + SEQUENCE) == before) {
+        return new Reading(before, lux, weather == 1 ? "cloudy" : "sunny", timestamp);
+      }
+    }
+  }
+
+  private int offset(int slot) {
+    if (slot < 0 || slot >= rooms) {
+      throw new IndexOutOfBoundsException("No slot " + slot + " in state file with " + rooms + " slots");
+    }
+    return HEADER_SIZE + slot * SLOT_SIZE;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
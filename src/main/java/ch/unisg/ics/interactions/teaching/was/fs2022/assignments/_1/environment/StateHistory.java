@@ -0,0 +1,66 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.environment;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>A StateHistory is an immutable list of the most recent changes of the conditions of the building
+ * environment. The {@link BuildingEnvironmentAgent} publishes a new history atomically on every change, so
+ * that readers on other threads (e.g. the {@link EnvironmentHttpServer}) read it without locking.</p>
+ * <p>The history keeps a fixed number of changes, the oldest first. The sequence number counts all changes
+ * that were ever recorded, so that readers can cheaply check whether the history changed.</p>
+ */
+public final class StateHistory {
+
+  /**
+   * <p>A Change is the snapshot of a room after a change of its conditions.</p>
+   */
+  public static final class Change {
+    public final long timestamp;
+
+    // The room that changed, or 0 for the single room of the environment
+    public final int room;
+
+    public final EnvironmentState state;
+
+    Change(long timestamp, int room, EnvironmentState state) {
+      this.timestamp = timestamp;
+      this.room = room;
+      this.state = state;
+    }
+  }
+
+  // The history when the agent is set up
+  static final StateHistory EMPTY = new StateHistory(new Change[0], 0);
+
+  private final Change[] changes;
+  private final long sequence;
+
+  private StateHistory(Change[] changes, long sequence) {
+    this.changes = changes;
+    this.sequence = sequence;
+  }
+
+  /**
+   * Creates the next history with a change appended, and the oldest change dropped if the capacity is exceeded.
+   *
+   * @param change   the change
+   * @param capacity the maximum number of changes
+   * @return the next history
+   */
+  StateHistory append(Change change, int capacity) {
+    int kept = Math.min(changes.length, capacity - 1);
+    Change[] next = Arrays.copyOfRange(changes, changes.length - kept, changes.length + 1);
+    next[kept] = change;
+    return new StateHistory(next, sequence + 1);
+  }
+
+  public List<Change> getChanges() {
+    return Collections.unmodifiableList(Arrays.asList(changes));
+  }
+
+  public long getSequence() {
+    return sequence;
+  }
+}
@@ -0,0 +1,162 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.environment;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * <p>A TopicTrie indexes subscriptions to hierarchical topics, i.e. topics whose levels are separated by '/'
+ * (e.g. <code>building/3/12/illuminance</code>). A subscription pattern may contain wildcards:</p>
+ * <ul>
+ * <li><code>*</code> matches exactly one level, e.g. <code>building/3/&#42;/illuminance</code> matches the
+ * illuminance of all rooms on floor 3
+ * <li><code>#</code> as the last level matches any number of remaining levels, e.g. <code>building/3/#</code>
+ * matches all topics of floor 3
+ * </ul>
+ * <p>Each level of a pattern is a node of the trie, and the subscriptions are kept at the node of their last
+ * level. Matching a topic walks the trie level by level, following the exact level and the wildcards, so the
+ * time to find the subscribers of a topic depends on the depth of the topic and the wildcards in the trie, but
+ * not on the total number of subscriptions.</p>
+ * <p>The trie is not thread-safe, i.e. it must only be accessed by the behaviors of the agent.</p>
+ *
+ * @param <V> the type of the subscriptions
+ */
+public class TopicTrie<V> {
+
+  public static final String SEPARATOR = "/";
+  public static final String SINGLE_LEVEL = "*";
+  public static final String MULTI_LEVEL = "#";
+
+  private static final class Node<V> {
+    private final Map<String, Node<V>> children = new HashMap<>(4);
+    private final List<V> subscriptions = new ArrayList<>(1);
+  }
+
+  private final Node<V> root = new Node<>();
+  private int size = 0;
+
+  /**
+   * Checks whether a pattern is valid, i.e. has no empty levels and has # only as the last level.
+   *
+   * @param pattern the pattern
+   * @return true if the pattern is valid
+   */
+  public static boolean isValid(String pattern) {
+    if (pattern == null || pattern.isEmpty()) {
+      return false;
+    }
+    String[] levels = pattern.split(SEPARATOR, -1);
+    for (int i = 0; i < levels.length; i++) {
+      if (levels[i].isEmpty() || (MULTI_LEVEL.equals(levels[i]) && i < levels.length - 1)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Checks whether a topic matches a pattern, without a trie.
+   *
+   * @param pattern the pattern, which may contain wildcards
+   * @param topic   the topic
+   * @return true if the topic matches the pattern
+   */
+  public static boolean matches(String pattern, String topic) {
+    String[] patternLevels = pattern.split(SEPARATOR, -1);
+    String[] topicLevels = topic.split(SEPARATOR, -1);
+    for (int i = 0; i < patternLevels.length; i++) {
+      if (MULTI_LEVEL.equals(patternLevels[i])) {
+        return true;
+      }
+      if (i >= topicLevels.length
+              || (!SINGLE_LEVEL.equals(patternLevels[i]) && !patternLevels[i].equals(topicLevels[i]))) {
+        return false;
+      }
+    }
+    return patternLevels.length == topicLevels.length;
+  }
+
+  /**
+   * Adds a subscription to a pattern.
+   *
+   * @param pattern      the pattern, which must be valid
+   * @param subscription the subscription
+   */
+  public void add(String pattern, V subscription) {
+    Node<V> node = root;
+    for (String level : pattern.split(SEPARATOR, -1)) {
+      node = node.children.computeIfAbsent(level, l -> new Node<>());
+    }
+    node.subscriptions.add(subscription);
+    size++;
+  }
+
+  /**
+   * Removes a subscription from a pattern, and the nodes that are left without subscriptions.
+   *
+   * @param pattern      the pattern
+   * @param subscription the subscription
+   * @return true if the subscription was removed
+   */
+  public boolean remove(String pattern, V subscription) {
+    boolean removed = remove(root, pattern.split(SEPARATOR, -1), 0, subscription);
+    if (removed) {
+      size--;
+    }
+    return removed;
+  }
+
+  private boolean remove(Node<V> node, String[] levels, int depth, V subscription) {
+    if (depth == levels.length) {
+      return node.subscriptions.remove(subscription);
+    }
+    Node<V> child = node.children.get(levels[depth]);
+    if (child == null || !remove(child, levels, depth + 1, subscription)) {
+      return false;
+    }
+    if (child.subscriptions.isEmpty() && child.children.isEmpty()) {
+      node.children.remove(levels[depth]);
+    }
+    return true;
+  }
+
+  /**
+   * Passes all subscriptions whose pattern matches a topic to a consumer.
+   *
+   * @param topic    the topic, which must not contain wildcards
+   * @param consumer the consumer of the matching subscriptions
+   */
+  public void match(String topic, Consumer<V> consumer) {
+    match(root, topic.split(SEPARATOR, -1), 0, consumer);
+  }
+
+  private void match(Node<V> node, String[] levels, int depth, Consumer<V> consumer) {
+    Node<V> rest = node.children.get(MULTI_LEVEL);
+    if (rest != null) {
+      rest.subscriptions.forEach(consumer);
+    }
+    if (depth == levels.length) {
+      node.subscriptions.forEach(consumer);
+      return;
+    }
+    Node<V> exact = node.children.get(levels[depth]);
+    if (exact != null) {
+      match(exact, levels, depth + 1, consumer);
+    }
+    Node<V> any = node.children.get(SINGLE_LEVEL);
+    if (any != null) {
+      match(any, levels, depth + 1, consumer);
+    }
+  }
+
+  /**
+   * Returns the number of subscriptions.
+   *
+   * @return the number of subscriptions
+   */
+  public int size() {
+    return size;
+  }
+}
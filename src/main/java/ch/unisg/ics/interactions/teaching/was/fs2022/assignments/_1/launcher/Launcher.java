@@ -0,0 +1,192 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.launcher;
+
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.environment.EnvironmentHttpServer;
+import jade.core.Profile;
+import jade.core.ProfileImpl;
+import jade.core.Runtime;
+import jade.util.Logger;
+import jade.wrapper.AgentController;
+import jade.wrapper.ContainerController;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <p>A Launcher starts the containers and the agents of a deployment through the in-process runtime of JADE,
+ * with less start-up latency than <code>jade.Boot</code>:</p>
+ * <ul>
+ * <li>The containers are started without GUI and without MTP, i.e. without the HTTP transport for remote platforms.
+ * <li>The agents are created and started in parallel on a pool of threads, instead of one after the other.
+ * </ul>
+ * <p>The deployment is either a {@link Topology} file given with the option -topology, or agents in the syntax
+ * of <code>jade.Boot</code>, e.g. <code>ENV:...BuildingEnvironmentAgent(gui=false);MNG:...RoomManagerAgent</code>,
+ * which are started in a main container on the port given with -port. A topology may place its containers in
+ * several JVMs: each JVM runs a launcher with the same topology and the option -jvm, and only starts the
+ * containers that are placed in it (the JVM of the main container must be started first). Since the agents are
+ * started in any order, they must not depend on the start order (e.g. the room manager waits for the DF to
+ * notify the providers of its services).</p>
+ * <p>The class loading of the JVM dominates the start-up, and can be cut with an application class-data sharing
+ * (AppCDS) archive: a run with <code>-XX:ArchiveClassesAtExit=launcher.jsa</code> and the option -exit-after
+ * writes the archive, and later runs map it with <code>-XX:SharedArchiveFile=launcher.jsa</code>
+ * (see the Gradle tasks cdsArchive and launch).</p>
+ * <p>The launcher enables TCP_NODELAY for the HTTP servers of the JVM (see {@link EnvironmentHttpServer}), unless
+ * the property <code>sun.net.httpserver.nodelay</code> is given on the command line.</p>
+ * <p>Usage: <code>Launcher [-topology file] [-jvm name] [-port N] [-threads N] [-exit-after ms] [agents]</code></p>
+ */
+public class Launcher {
+
+  private final static Logger LOGGER = Logger.getJADELogger(Launcher.class.getName());
+
+  public static void main(String[] args) throws Exception {
+    // The JDK reads the property when the first HTTP server of the JVM is created
+    if (System.getProperty(EnvironmentHttpServer.NODELAY_PROPERTY) == null) {
+      System.setProperty(EnvironmentHttpServer.NODELAY_PROPERTY, "true");
+    }
+    String topologyFile = null;
+    String jvm = Topology.DEFAULT_JVM;
+    int port = 1099;
+    int threads = java.lang.Runtime.getRuntime().availableProcessors();
+    long exitAfter = -1;
+    String agents = "";
+    for (int i = 0; i < args.length; i++) {
+      if ("-topology".equals(args[i]) && i + 1 < args.length) {
+        topologyFile = args[++i];
+      } else if ("-jvm".equals(args[i]) && i + 1 < args.length) {
+        jvm = args[++i];
+      } else if ("-port".equals(args[i]) && i + 1 < args.length) {
+        port = Integer.parseInt(args[++i]);
+      } else if ("-threads".equals(args[i]) && i + 1 < args.length) {
+        threads = Integer.parseInt(args[++i]);
+      } else if ("-exit-after".equals(args[i]) && i + 1 < args.length) {
+        exitAfter = Long.parseLong(args[++i]);
+      } else if ("-agents".equals(args[i]) && i + 1 < args.length) {
+        agents = args[++i];
+      } else {
+        agents = args[i];
+      }
+    }
+
+    Topology topology;
+    if (topologyFile != null) {
+      try (Reader reader = Files.newBufferedReader(Paths.get(topologyFile), StandardCharsets.UTF_8)) {
+        topology = Topology.read(reader);
+      } catch (IOException | IllegalArgumentException e) {
+        LOGGER.severe("Cannot read topology " + topologyFile + ": " + e.getMessage());
+        System.exit(1);
+        return;
+      }
+    } else {
+      topology = Topology.ofAgents(agents, port);
+    }
+
+    if (topology.getContainers(jvm).isEmpty()) {
+      LOGGER.severe("No containers are placed in the JVM " + jvm);
+      System.exit(1);
+    }
+    Map<String, ContainerController> containers = startContainers(topology, jvm);
+    if (containers == null) {
+      System.exit(1);
+    }
+    long containersStarted = ManagementFactory.getRuntimeMXBean().getUptime();
+
+    int started = startAgents(topology, containers, threads);
+    LOGGER.info(containers.size() + " containers started " + containersStarted + " ms and " + started
+            + " agents started " + ManagementFactory.getRuntimeMXBean().getUptime() + " ms after start.");
+
+    if (exitAfter >= 0) {
+      Thread.sleep(exitAfter);
+      // The main container is killed last, so that the other containers can leave the platform
+      List<ContainerController> stopping = new ArrayList<>(containers.values());
+      Collections.reverse(stopping);
+      for (ContainerController container : stopping) {
+        container.kill();
+      }
+      // The threads of the platform outlive the containers
+      System.exit(0);
+    }
+  }
+
+  /**
+   * Starts the containers of a topology that are placed in a JVM, the main container first.
+   *
+   * @param topology the topology
+   * @param jvm      the name of the JVM
+   * @return the started containers by name in the order of starting, or null if a container cannot be started
+   */
+  static Map<String, ContainerController> startContainers(Topology topology, String jvm) {
+    Runtime runtime = Runtime.instance();
+    Map<String, ContainerController> containers = new LinkedHashMap<>();
+    for (Topology.ContainerSpec spec : topology.getContainers(jvm)) {
+      ContainerController container;
+      if (spec.isMain()) {
+        Profile profile = new ProfileImpl();
+        profile.setParameter(Profile.GUI, "false");
+        profile.setParameter(Profile.NO_MTP, "true");
+        profile.setParameter(Profile.LOCAL_PORT, String.valueOf(spec.getPort()));
+        container = runtime.createMainContainer(profile);
+      } else {
+        Profile profile = new ProfileImpl(spec.getHost(), spec.getPort(), null, false);
+        profile.setParameter(Profile.CONTAINER_NAME, spec.getName());
+        profile.setParameter(Profile.NO_MTP, "true");
+        container = runtime.createAgentContainer(profile);
+      }
+      if (container == null) {
+        LOGGER.severe("Cannot start container " + spec.getName() + " with the main container on "
+                + spec.getHost() + ":" + spec.getPort());
+        return null;
+      }
+      containers.put(spec.getName(), container);
+    }
+    return containers;
+  }
+
+  /**
+   * Creates and starts the agents of the started containers in parallel, since the creation of an agent mostly
+   * waits for the platform.
+   *
+   * @param topology   the topology
+   * @param containers the started containers by name
+   * @param threads    the number of threads that create agents
+   * @return the number of started agents
+   */
+  static int startAgents(Topology topology, Map<String, ContainerController> containers, int threads) {
+    List<Topology.AgentSpec> specs = new ArrayList<>();
+    for (String container : containers.keySet()) {
+      specs.addAll(topology.getAgents(container));
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+    List<Future<?>> futures = new ArrayList<>(specs.size());
+    for (Topology.AgentSpec spec : specs) {
+      ContainerController container = containers.get(spec.getContainer());
+      futures.add(pool.submit(() -> {
+        AgentController agent = container.createNewAgent(spec.getName(), spec.getClassName(), spec.getArguments());
+        agent.start();
+        return null;
+      }));
+    }
+    int started = 0;
+    for (int i = 0; i < specs.size(); i++) {
+      try {
+        futures.get(i).get();
+        started++;
+      } catch (Exception e) {
+        LOGGER.warning("Cannot start agent " + specs.get(i).getName() + ": " + e.getCause());
+      }
+    }
+    pool.shutdown();
+    return started;
+  }
+}
@@ -0,0 +1,349 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.launcher;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A Topology describes a deployment of agents on a JADE platform: the containers, the JVMs that run the
+ * containers, and the agents of each container. Topologies are read from text files (see {@link #read(Reader)}),
+ * so that the building can be scaled up and down, and performance configurations can be repeated, without
+ * changing the Gradle tasks:</p>
+ * <pre>
+ * # Classes that start with a dot are relative to the package
+ * package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1
+ *
+ * # container &lt;name&gt; [main] [jvm=&lt;name&gt;] [host=&lt;host&gt;] [port=&lt;port&gt;]
+ * container Main-Container main port=1099
+ * container Rooms jvm=rooms
+ *
+ * # agent &lt;name&gt;:&lt;class&gt;[(&lt;arguments&gt;)] [count=&lt;N&gt;] [container=&lt;name&gt;]
+ * agent ENV:.environment.BuildingEnvironmentAgent(gui=false,rooms=10)
+ * agent MNG-{i}:.cnp.initiators.RoomManagerAgent(room={i}) count=10 container=Rooms
+ * </pre>
+ * <p>An agent line with count=N stands for N agents, and <code>{i}</code> in the name and the arguments is
+ * replaced with the index 1 to N of each agent, e.g. to give each agent its own room. Agents without a container
+ * are placed in the main container. Containers without a JVM are placed in the JVM <code>default</code>. If the
+ * topology declares no main container, a main container named Main-Container on port 1099 is added.</p>
+ * <p>The arguments of an agent must not contain white space, i.e. they are given as in <code>jade.Boot</code>.</p>
+ */
+public class Topology {
+
+  // The name of the JVM of containers without a JVM, and of the main container that is added by default
+  public static final String DEFAULT_JVM = "default";
+  public static final String MAIN_CONTAINER = "Main-Container";
+
+  // The placeholder for the index of an agent in the name and the arguments of an agent line with a count
+  private static final String INDEX = "{i}";
+
+  /**
+   * <p>A ContainerSpec is the specification of a container, i.e. its name, whether it is the main container,
+   * the JVM that runs it, and the address of the main container (for the main container, its own address).</p>
+   */
+  public static final class ContainerSpec {
+    private final String name;
+    private final boolean main;
+    private final String jvm;
+    private final String host;
+    private final int port;
+
+    ContainerSpec(String name, boolean main, String jvm, String host, int port) {
+      this.name = name;
+      this.main = main;
+      this.jvm = jvm;
+      this.host = host;
+      this.port = port;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public boolean isMain() {
+      return main;
+    }
+
+    public String getJvm() {
+      return jvm;
+    }
+
+    public String getHost() {
+      return host;
+    }
+
+    public int getPort() {
+      return port;
+    }
+  }
+
+  /**
+   * <p>An AgentSpec is the specification of an agent to start, i.e. its name, its class, its arguments and its
+   * container.</p>
+   */
+  public static final class AgentSpec {
+    private final String name;
+    private final String className;
+    private final Object[] arguments;
+    private final String container;
+
+    AgentSpec(String name, String className, Object[] arguments, String container) {
+      this.name = name;
+      this.className = className;
+      this.arguments = arguments;
+      this.container = container;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getClassName() {
+      return className;
+    }
+
+    public Object[] getArguments() {
+      return arguments.clone();
+    }
+
+    public String getContainer() {
+      return container;
+    }
+  }
+
+  private final List<ContainerSpec> containers;
+  private final List<AgentSpec> agents;
+
+  private Topology(List<ContainerSpec> containers, List<AgentSpec> agents) {
+    this.containers = Collections.unmodifiableList(containers);
+    this.agents = Collections.unmodifiableList(agents);
+  }
+
+  public List<ContainerSpec> getContainers() {
+    return containers;
+  }
+
+  public List<AgentSpec> getAgents() {
+    return agents;
+  }
+
+  /**
+   * Returns the main container of the topology.
+   *
+   * @return the main container
+   */
+  public ContainerSpec getMainContainer() {
+    for (ContainerSpec container : containers) {
+      if (container.main) {
+        return container;
+      }
+    }
+    throw new IllegalStateException("No main container");
+  }
+
+  /**
+   * Returns the containers that are placed in a JVM, the main container first.
+   *
+   * @param jvm the name of the JVM
+   * @return the containers of the JVM
+   */
+  public List<ContainerSpec> getContainers(String jvm) {
+    List<ContainerSpec> placed = new ArrayList<>();
+    for (ContainerSpec container : containers) {
+      if (container.jvm.equals(jvm)) {
+        placed.add(container.main ? 0 : placed.size(), container);
+      }
+    }
+    return placed;
+  }
+
+  /**
+   * Returns the agents of a container.
+   *
+   * @param container the name of the container
+   * @return the agents of the container
+   */
+  public List<AgentSpec> getAgents(String container) {
+    List<AgentSpec> placed = new ArrayList<>();
+    for (AgentSpec agent : agents) {
+      if (agent.container.equals(container)) {
+        placed.add(agent);
+      }
+    }
+    return placed;
+  }
+
+  /**
+   * Creates the topology of a single main container with agents in the syntax of <code>jade.Boot</code>, i.e.
+   * <code>name:class(arg,arg);name:class</code>.
+   *
+   * @param agents the agents, separated by semicolons
+   * @param port   the port of the main container
+   * @return the topology
+   */
+  public static Topology ofAgents(String agents, int port) {
+    List<ContainerSpec> containers = new ArrayList<>();
+    containers.add(new ContainerSpec(MAIN_CONTAINER, true, DEFAULT_JVM, "localhost", port));
+    List<AgentSpec> specs = new ArrayList<>();
+    for (String agent : agents.split(";")) {
+      if (!agent.trim().isEmpty()) {
+        specs.add(parseAgent(agent.trim(), "", MAIN_CONTAINER));
+      }
+    }
+    return new Topology(containers, specs);
+  }
+
+  /**
+   * Reads a topology file.
+   *
+   * @param reader the reader of the file
+   * @return the topology
+   * @throws IOException              if the file cannot be read
+   * @throws IllegalArgumentException if the file is malformed, with the number of the malformed line
+   */
+  public static Topology read(Reader reader) throws IOException {
+    BufferedReader lines = new BufferedReader(reader);
+    String packagePrefix = "";
+    Map<String, ContainerSpec> containers = new LinkedHashMap<>();
+    // The agent lines are expanded once all containers are known
+    List<String[]> agentLines = new ArrayList<>();
+    List<Integer> agentLineNumbers = new ArrayList<>();
+
+    String line;
+    int lineNumber = 0;
+    while ((line = lines.readLine()) != null) {
+      lineNumber++;
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] words = line.split("\\s+");
+      try {
+        switch (words[0]) {
+          case "package":
+            if (words.length != 2) {
+              throw new IllegalArgumentException("expected package <name>");
+            }
+            packagePrefix = words[1];
+            break;
+          case "container":
+            ContainerSpec container = parseContainer(words);
+            if (containers.put(container.name, container) != null) {
+              throw new IllegalArgumentException("duplicate container " + container.name);
+            }
+            break;
+          case "agent":
+            if (words.length < 2) {
+              throw new IllegalArgumentException("expected agent <name>:<class>");
+            }
+            agentLines.add(words);
+            agentLineNumbers.add(lineNumber);
+            break;
+          default:
+            throw new IllegalArgumentException("unknown declaration " + words[0]);
+        }
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("line " + lineNumber + ": " + e.getMessage(), e);
+      }
+    }
+
+    String mainName = null;
+    for (ContainerSpec container : containers.values()) {
+      if (container.main && mainName != null) {
+        throw new IllegalArgumentException("more than one main container: " + mainName + ", " + container.name);
+      } else if (container.main) {
+        mainName = container.name;
+      }
+    }
+    if (mainName == null) {
+      mainName = MAIN_CONTAINER;
+      containers.put(mainName, new ContainerSpec(mainName, true, DEFAULT_JVM, "localhost", 1099));
+    }
+    // The peripheral containers join the main container
+    ContainerSpec main = containers.get(mainName);
+    for (Map.Entry<String, ContainerSpec> entry : containers.entrySet()) {
+      ContainerSpec container = entry.getValue();
+      if (!container.main) {
+        entry.setValue(new ContainerSpec(container.name, false, container.jvm, main.host, main.port));
+      }
+    }
+
+    List<AgentSpec> agents = new ArrayList<>();
+    for (int i = 0; i < agentLines.size(); i++) {
+      try {
+        expandAgents(agentLines.get(i), packagePrefix, mainName, containers, agents);
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("line " + agentLineNumbers.get(i) + ": " + e.getMessage(), e);
+      }
+    }
+    return new Topology(new ArrayList<>(containers.values()), agents);
+  }
+
+  private static ContainerSpec parseContainer(String[] words) {
+    if (words.length < 2) {
+      throw new IllegalArgumentException("expected container <name>");
+    }
+    boolean main = false;
+    String jvm = DEFAULT_JVM;
+    String host = "localhost";
+    int port = 1099;
+    for (int i = 2; i < words.length; i++) {
+      if ("main".equals(words[i])) {
+        main = true;
+      } else if (words[i].startsWith("jvm=")) {
+        jvm = words[i].substring(4);
+      } else if (words[i].startsWith("host=")) {
+        host = words[i].substring(5);
+      } else if (words[i].startsWith("port=")) {
+        port = Integer.parseInt(words[i].substring(5));
+      } else {
+        throw new IllegalArgumentException("unknown container option " + words[i]);
+      }
+    }
+    return new ContainerSpec(words[1], main, jvm, host, port);
+  }
+
+  private static void expandAgents(String[] words, String packagePrefix, String mainName,
+                                   Map<String, ContainerSpec> containers, List<AgentSpec> agents) {
+    int count = 1;
+    String container = mainName;
+    for (int i = 2; i < words.length; i++) {
+      if (words[i].startsWith("count=")) {
+        count = Integer.parseInt(words[i].substring(6));
+      } else if (words[i].startsWith("container=")) {
+        container = words[i].substring(10);
+      } else {
+        throw new IllegalArgumentException("unknown agent option " + words[i]);
+      }
+    }
+    if (!containers.containsKey(container)) {
+      throw new IllegalArgumentException("unknown container " + container);
+    }
+    String spec = words[1];
+    if (count != 1 && !spec.substring(0, Math.max(0, spec.indexOf(':'))).contains(INDEX)) {
+      throw new IllegalArgumentException("the name of " + count + " agents must contain " + INDEX);
+    }
+    for (int index = 1; index <= count; index++) {
+      agents.add(parseAgent(spec.replace(INDEX, String.valueOf(index)), packagePrefix, container));
+    }
+  }
+
+  private static AgentSpec parseAgent(String agent, String packagePrefix, String container) {
+    int colon = agent.indexOf(':');
+    int open = agent.indexOf('(');
+    if (colon <= 0 || (open >= 0 && !agent.endsWith(")"))) {
+      throw new IllegalArgumentException("malformed agent " + agent);
+    }
+    String className = (open < 0 ? agent.substring(colon + 1) : agent.substring(colon + 1, open)).trim();
+    if (className.startsWith(".")) {
+      className = packagePrefix + className;
+    }
+    Object[] arguments = open < 0 || open + 1 == agent.length() - 1 ? new Object[0]
+            : agent.substring(open + 1, agent.length() - 1).split(",");
+    return new AgentSpec(agent.substring(0, colon).trim(), className, arguments, container);
+  }
+}
@@ -0,0 +1,274 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1;
+
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.cnp.initiators.RoomManagerAgent;
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.cnp.participants.BlindsControllerAgent;
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.cnp.participants.LampControllerAgent;
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common.BaseAgent;
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common.FaultInjector;
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.environment.BuildingEnvironmentAgent;
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.TickerBehaviour;
+import jade.lang.acl.ACLMessage;
+import jade.wrapper.AgentController;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * <p>Checks that the protocols of the room recover from injected faults (see {@link FaultInjector}): delayed,
+ * dropped, duplicated and reordered messages, and a participant that crashes after it was awarded a contract.</p>
+ * <p>In each scenario, a headless environment, a room manager, a lamp and blinds are started with the fault files
+ * of the scenario. A driver repeatedly sets the illuminance to low, and waits until the room manager remediates
+ * it, i.e. until the driver's topic subscription reports a high illuminance again. A cycle that is not remediated
+ * within the deadline is stuck, i.e. a behavior waits for a message that never arrives; the driver then restores
+ * the illuminance itself. Every scenario must remediate cycles without getting stuck.</p>
+ * <p>The duration of a scenario is read from the system property chaos.seconds (default 4), and the seed of the
+ * faults from chaos.seed (default 1).</p>
+ */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class ChaosTest {
+
+  private static final long SECONDS = Long.getLong("chaos.seconds", 4);
+  private static final long SEED = Long.getLong("chaos.seed", 1);
+
+  // The time (in ms) after which a cycle is stuck, which exceeds the proposal and award timeouts of the manager
+  private static final long DEADLINE = 3000;
+
+  private static final String CONVERSATION = "chaos-drive";
+
+  private static InProcessPlatform platform;
+
+  @TempDir
+  static Path dir;
+
+  @BeforeAll
+  static void startPlatform() throws Exception {
+    platform = new InProcessPlatform();
+  }
+
+  @AfterAll
+  static void stopPlatform() throws Exception {
+    platform.close();
+  }
+
+  @Test
+  @Order(1)
+  void baseline() throws Exception {
+    check(run("baseline"));
+  }
+
+  @Test
+  @Order(2)
+  void delayedNegotiations() throws Exception {
+    check(run("delay", "MNG", "fault both * cfp- delay=20-200", "fault both * acceptProposal- delay=20-200"));
+  }
+
+  @Test
+  @Order(3)
+  void duplicatedMessages() throws Exception {
+    check(run("duplicate",
+            "MNG", "fault in * cfp- duplicate=0.2", "fault in * acceptProposal- duplicate=0.2",
+            "ENV", "fault in REQUEST request- duplicate=0.2"));
+  }
+
+  @Test
+  @Order(4)
+  void reorderedMessages() throws Exception {
+    check(run("reorder",
+            "MNG", "fault in * * reorder=0.2",
+            "LAMP", "fault in * * reorder=0.2",
+            "BLINDS", "fault in * * reorder=0.2"));
+  }
+
+  @Test
+  @Order(5)
+  void droppedProposals() throws Exception {
+    check(run("drop-propose", "MNG", "fault in PROPOSE cfp- drop=0.2"));
+  }
+
+  @Test
+  @Order(6)
+  void droppedInforms() throws Exception {
+    check(run("drop-inform", "ENV", "fault out INFORM request- drop=0.2"));
+  }
+
+  // The crashed agent is not deregistered from the DF, so this scenario runs last
+  @Test
+  @Order(7)
+  void crashedAwardee() throws Exception {
+    check(run("crash", "BLINDS", "fault in ACCEPT_PROPOSAL * crash=0.5"));
+  }
+
+  private static void check(Result result) {
+    assertEquals(0, result.stuck.get(), "stuck cycles");
+    assertTrue(result.latencies.size() > 0, "no cycle was remediated");
+  }
+
+  /**
+   * <p>The Result of a scenario: the remediation latencies (in ns) of the cycles, and the stuck cycles.</p>
+   */
+  private static final class Result {
+    private final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong stuck = new AtomicLong();
+  }
+
+  /**
+   * <p>A Driver sets the illuminance of the environment to low whenever the previous cycle is remediated, and
+   * records the remediation latency of each cycle.</p>
+   */
+  public static class Driver extends Agent {
+
+    private static final int IDLE = 0;
+    private static final int REQUESTED = 1;
+    private static final int LOW = 2;
+
+    private final AID environment;
+    private final Result result;
+
+    private int state = IDLE;
+    private long cycleStart;
+    private long idleSince;
+
+    Driver(String environment, Result result) {
+      this.environment = new AID(environment, AID.ISLOCALNAME);
+      this.result = result;
+    }
+
+    @Override
+    protected void setup() {
+      ACLMessage subscription = new ACLMessage(ACLMessage.SUBSCRIBE);
+      subscription.addReceiver(environment);
+      subscription.setContent("building/#");
+      subscription.setConversationId("subscribe-building/#");
+      send(subscription);
+      idleSince = System.nanoTime();
+
+      addBehaviour(new TickerBehaviour(this, 20) {
+        @Override
+        protected void onTick() {
+          long now = System.nanoTime();
+          if (state == IDLE && now - idleSince > 100_000_000L) {
+            cycleStart = now;
+            state = REQUESTED;
+            send(request("low"));
+          } else if (state != IDLE && now - cycleStart > DEADLINE * 1_000_000L) {
+            // The cycle is stuck: the illuminance is restored, so that the next cycle can start
+            result.stuck.incrementAndGet();
+            state = IDLE;
+            idleSince = now;
+            send(request("high"));
+          }
+        }
+      });
+      addBehaviour(new CyclicBehaviour(this) {
+        @Override
+        public void action() {
+          ACLMessage msg = receive();
+          if (msg == null) {
+            block();
+          } else if (CONVERSATION.equals(msg.getConversationId()) && msg.getPerformative() == ACLMessage.INFORM
+                  && state == REQUESTED) {
+            // The low illuminance is applied: notifications from now on are about the remediation
+            state = LOW;
+          } else if (state == LOW && msg.getPerformative() == ACLMessage.INFORM && "high".equals(msg.getContent())
+                  && String.valueOf(msg.getUserDefinedParameter(BaseAgent.TOPIC_PARAMETER)).endsWith("illuminance")) {
+            long now = System.nanoTime();
+            result.latencies.add(now - cycleStart);
+            state = IDLE;
+            idleSince = now;
+          }
+        }
+      });
+    }
+
+    private ACLMessage request(String illuminance) {
+      ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+      msg.addReceiver(environment);
+      msg.setContent(illuminance);
+      msg.setConversationId(CONVERSATION);
+      return msg;
+    }
+  }
+
+  // Runs a scenario with the fault lines that follow the role of each faulty agent
+  private static Result run(String name, String... faults) throws Exception {
+    String suffix = "-" + name;
+    List<AgentController> agents = new ArrayList<>();
+    List<BaseAgent> providers = Arrays.asList(new BuildingEnvironmentAgent(), new LampControllerAgent(),
+            new BlindsControllerAgent());
+    agents.add(start(name, "ENV", providers.get(0), faults,
+            "gui=false", "notify-period=100", "topic-period=20", "sweep-period=0"));
+    agents.add(start(name, "LAMP", providers.get(1), faults, "sweep-period=0"));
+    agents.add(start(name, "BLINDS", providers.get(2), faults, "sweep-period=0"));
+    // The room manager is started once the services are registered, so that its first search finds them
+    long start = System.nanoTime();
+    for (BaseAgent provider : providers) {
+      while (!provider.isRegistered() && System.nanoTime() - start < DEADLINE * 1_000_000L) {
+        Thread.sleep(1);
+      }
+    }
+    agents.add(start(name, "MNG", new RoomManagerAgent(), faults,
+            "sweep-period=0", "proposal-timeout=1000", "award-timeout=1000"));
+    // The room manager discovers the services and subscribes
+    Thread.sleep(1000);
+
+    Result result = new Result();
+    AgentController driver = platform.start("DRIVER" + suffix, new Driver("ENV" + suffix, result));
+    Thread.sleep(SECONDS * 1000);
+    InProcessPlatform.kill(driver);
+    for (AgentController agent : agents) {
+      InProcessPlatform.kill(agent);
+    }
+
+    List<Long> sorted;
+    synchronized (result.latencies) {
+      sorted = new ArrayList<>(result.latencies);
+    }
+    Collections.sort(sorted);
+    if (!sorted.isEmpty()) {
+      System.out.printf("%-14s %4d cycles, %5.2f/s, latency p50 %7.1f ms, max %7.1f ms, %d stuck%n", name,
+              sorted.size(), sorted.size() / (double) SECONDS, sorted.get(sorted.size() / 2) / 1e6,
+              sorted.get(sorted.size() - 1) / 1e6, result.stuck.get());
+    }
+    return result;
+  }
+
+  private static AgentController start(String scenario, String role, Agent agent, String[] faults,
+                                       String... arguments) throws Exception {
+    List<Object> args = new ArrayList<>(Arrays.asList(arguments));
+    List<String> lines = new ArrayList<>();
+    String current = null;
+    for (String line : faults) {
+      if (!line.startsWith("fault ")) {
+        current = line;
+      } else if (role.equals(current)) {
+        lines.add(line);
+      }
+    }
+    if (!lines.isEmpty()) {
+      Path file = dir.resolve(scenario + "-" + role + ".faults");
+      Files.write(file, lines, StandardCharsets.UTF_8);
+      args.add("faults=" + file);
+      args.add("fault-seed=" + SEED);
+    }
+    return platform.start(role + "-" + scenario, agent, args.toArray());
+  }
+}
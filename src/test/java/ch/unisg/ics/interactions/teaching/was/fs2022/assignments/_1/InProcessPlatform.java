@@ -0,0 +1,98 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1;
+
+import jade.core.Agent;
+import jade.core.Profile;
+import jade.core.ProfileImpl;
+import jade.core.Runtime;
+import jade.wrapper.AgentController;
+import jade.wrapper.ContainerController;
+import jade.wrapper.StaleProxyException;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+
+/**
+ * <p>An InProcessPlatform is a JADE main container without GUI and MTP that tests start in their own JVM, so that
+ * they can host agents and read their counters.</p>
+ * <p>The container listens on a free port, so that tests do not collide with a platform that runs on the default
+ * port, or with each other. The agents log every message, which would dominate the measurements, so the platform
+ * only logs warnings.</p>
+ */
+public class InProcessPlatform implements AutoCloseable {
+
+  private final ContainerController container;
+
+  public InProcessPlatform() throws IOException {
+    java.util.logging.Logger root = java.util.logging.Logger.getLogger("");
+    root.setLevel(Level.WARNING);
+    for (Handler handler : root.getHandlers()) {
+      handler.setLevel(Level.WARNING);
+    }
+
+    Runtime runtime = Runtime.instance();
+    runtime.setCloseVM(false);
+    Profile profile = new ProfileImpl();
+    profile.setParameter(Profile.GUI, "false");
+    profile.setParameter(Profile.NO_MTP, "true");
+    profile.setParameter(Profile.LOCAL_PORT, String.valueOf(freePort()));
+    container = runtime.createMainContainer(profile);
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  /**
+   * Starts an agent instance in the container.
+   *
+   * @param name      the local name of the agent
+   * @param agent     the agent
+   * @param arguments the arguments of the agent, e.g. <code>gui=false</code>
+   * @return the controller of the agent
+   * @throws StaleProxyException if the agent cannot be started
+   */
+  public AgentController start(String name, Agent agent, Object... arguments) throws StaleProxyException {
+    agent.setArguments(arguments);
+    AgentController controller = container.acceptNewAgent(name, agent);
+    controller.start();
+    return controller;
+  }
+
+  /**
+   * Creates and starts an agent of a class in the container.
+   *
+   * @param name       the local name of the agent
+   * @param agentClass the class of the agent
+   * @param arguments  the arguments of the agent
+   * @return the controller of the agent
+   * @throws StaleProxyException if the agent cannot be started
+   */
+  public AgentController start(String name, Class<? extends Agent> agentClass, Object... arguments)
+          throws StaleProxyException {
+    AgentController controller = container.createNewAgent(name, agentClass.getName(), arguments);
+    controller.start();
+    return controller;
+  }
+
+  /**
+   * Kills an agent, unless it is already gone, e.g. since it crashed by an injected fault.
+   *
+   * @param controller the controller of the agent
+   */
+  public static void kill(AgentController controller) {
+    try {
+      controller.kill();
+    } catch (StaleProxyException e) {
+      // The agent is already gone
+    }
+  }
+
+  @Override
+  public void close() throws StaleProxyException {
+    container.kill();
+  }
+}
@@ -0,0 +1,287 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1;
+
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.cnp.initiators.RoomManagerAgent;
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.cnp.participants.BlindsControllerAgent;
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.cnp.participants.LampControllerAgent;
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common.BaseAgent;
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common.CNPParticipant;
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.environment.BuildingEnvironmentAgent;
+import jade.wrapper.AgentController;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * <p>Checks the end-to-end behavior of the room against latency and message budgets, so that performance
+ * regressions in the agent code fail the Gradle task perfCheck.</p>
+ * <p>Each scenario starts a headless environment, a room manager and the participants of the scenario, and then
+ * lets the illuminance go low a number of times. For every event, the test measures the time until the
+ * illuminance is high again, and the messages that all agents sent for the event, without notifications. The
+ * first event of a scenario includes the start-up of the agents, i.e. the search of the services and the
+ * subscriptions, so its latency is only checked against the maximum, and its messages are not checked.</p>
+ * <p>The budgets are read from the system properties perf.p50-ms (default 500), perf.max-ms (default 2000),
+ * perf.messages (messages per event, default 12) and perf.events (events per scenario, default 5), e.g.
+ * <code>./gradlew perfCheck -Pperf.p50-ms=300</code>.</p>
+ * <p>The HTTP scenario runs perf.http-events events (default 20) once without and once with clients that read
+ * GET /state of the environment at perf.http-rate reads per second (default 500) over keep-alive connections. It
+ * checks that the clients get at least perf.http-reads reads per second (default 400), and that the latency p50
+ * of the room grows by at most perf.http-slack-ms (default 25). The clients run in the JVM of the agents, so on a
+ * single core they compete with the agents and with the server for the CPU.</p>
+ */
+@Tag("performance")
+class RoomPerformanceTest {
+
+  private static final long P50_BUDGET = Long.getLong("perf.p50-ms", 500);
+  private static final long MAX_BUDGET = Long.getLong("perf.max-ms", 2000);
+  private static final long MESSAGE_BUDGET = Long.getLong("perf.messages", 12);
+  private static final int EVENTS = Integer.getInteger("perf.events", 5);
+  private static final int HTTP_EVENTS = Integer.getInteger("perf.http-events", 20);
+  private static final long HTTP_RATE = Long.getLong("perf.http-rate", 500);
+  private static final long HTTP_READ_BUDGET = Long.getLong("perf.http-reads", 400);
+  private static final long HTTP_SLACK = Long.getLong("perf.http-slack-ms", 25);
+
+  // The clients that read the state over HTTP, each with its own keep-alive connection
+  private static final int HTTP_CLIENTS = 4;
+
+  // The time (in ms) that the test waits for the remediation of an event
+  private static final long TIMEOUT = 10000;
+
+  // The time (in ms) that the replies of a protocol may trail the remediation, and after which levels are released
+  private static final long SETTLE = 300;
+
+  private static InProcessPlatform platform;
+
+  @BeforeAll
+  static void startPlatform() throws Exception {
+    platform = new InProcessPlatform();
+  }
+
+  @AfterAll
+  static void stopPlatform() throws Exception {
+    platform.close();
+  }
+
+  @Test
+  void sunnyRoomIsRemediatedByBlindsWithinBudgets() throws Exception {
+    checkBudgets(run("low-sunny", "sunny", true, true, EVENTS, 0), "BLINDS");
+  }
+
+  @Test
+  void cloudyRoomIsRemediatedByLampWithinBudgets() throws Exception {
+    checkBudgets(run("low-cloudy", "cloudy", true, true, EVENTS, 0), "LAMP");
+  }
+
+  @Test
+  void roomWithoutBlindsIsRemediatedByLampWithinBudgets() throws Exception {
+    checkBudgets(run("missing-blinds", "sunny", true, false, EVENTS, 0), "LAMP");
+  }
+
+  @Test
+  void httpReadsDoNotDelayTheRoom() throws Exception {
+    Result baseline = run("http-baseline", "cloudy", true, true, HTTP_EVENTS, 0);
+    Result loaded = run("http-readers", "cloudy", true, true, HTTP_EVENTS, HTTP_RATE);
+    checkBudgets(loaded, "LAMP");
+    assertTrue(loaded.readsPerSecond() >= HTTP_READ_BUDGET, loaded.readsPerSecond() + " reads per second are below "
+            + HTTP_READ_BUDGET);
+    assertTrue(loaded.p50() <= baseline.p50() + HTTP_SLACK, "latency p50 " + loaded.p50() + " ms with HTTP reads "
+            + "exceeds " + baseline.p50() + " ms without them by more than " + HTTP_SLACK + " ms");
+  }
+
+  private static void checkBudgets(Result result, String expected) {
+    assertEquals(result.events, result.remediated, "events remediated within " + TIMEOUT + " ms");
+    for (Map.Entry<String, List<Integer>> entry : result.contracts.entrySet()) {
+      int completed = entry.getKey().equals(expected) ? 1 : 0;
+      assertEquals(Collections.nCopies(result.events, completed), entry.getValue(), "contracts of " + entry.getKey()
+              + " per event");
+    }
+    assertTrue(result.p50() <= P50_BUDGET, "latency p50 " + result.p50() + " ms exceeds " + P50_BUDGET + " ms");
+    assertTrue(result.max() <= MAX_BUDGET, "latency max " + result.max() + " ms exceeds " + MAX_BUDGET + " ms");
+    assertTrue(result.maxMessages <= MESSAGE_BUDGET, result.maxMessages + " messages per event exceed "
+            + MESSAGE_BUDGET);
+  }
+
+  /**
+   * <p>The Result of a scenario: the latencies (in ms) of the events after the first one, the maximum latency
+   * including the first event, the messages of the event with the most messages, the contracts that each
+   * participant completed per event, and the reads of the HTTP clients.</p>
+   */
+  private static final class Result {
+    private final List<Long> latencies = new ArrayList<>();
+    private final int events;
+    private long firstLatency;
+    private long maxMessages;
+    private int remediated;
+    private final Map<String, List<Integer>> contracts = new LinkedHashMap<>();
+    private long reads;
+    private long readNanos;
+
+    private Result(int events) {
+      this.events = events;
+    }
+
+    private long readsPerSecond() {
+      return readNanos == 0 ? 0 : reads * 1_000_000_000L / readNanos;
+    }
+
+    private long p50() {
+      List<Long> sorted = new ArrayList<>(latencies);
+      Collections.sort(sorted);
+      return sorted.isEmpty() ? Long.MAX_VALUE : sorted.get(sorted.size() / 2);
+    }
+
+    private long max() {
+      return Math.max(firstLatency, latencies.isEmpty() ? 0 : Collections.max(latencies));
+    }
+  }
+
+  private static Result run(String name, String weather, boolean lamp, boolean blinds, int events,
+                            long httpRate)
+          throws Exception {
+    String suffix = "-" + name;
+    Map<String, BaseAgent> agents = new LinkedHashMap<>();
+    agents.put("ENV", new BuildingEnvironmentAgent());
+    agents.put("MNG", new RoomManagerAgent());
+    if (lamp) {
+      agents.put("LAMP", new LampControllerAgent());
+    }
+    if (blinds) {
+      agents.put("BLINDS", new BlindsControllerAgent());
+    }
+    List<AgentController> controllers = new ArrayList<>();
+    for (Map.Entry<String, BaseAgent> entry : agents.entrySet()) {
+      Object[] arguments = entry.getValue() instanceof BuildingEnvironmentAgent
+              ? httpRate > 0
+              ? new Object[]{"gui=false", "notify-period=100", "weather=" + weather, "http-port=0"}
+              : new Object[]{"gui=false", "notify-period=100", "weather=" + weather}
+              : new Object[0];
+      controllers.add(platform.start(entry.getKey() + suffix, entry.getValue(), arguments));
+    }
+    BuildingEnvironmentAgent environment = (BuildingEnvironmentAgent) agents.get("ENV");
+
+    // The environment applies its initial conditions when it is set up, i.e. before its services are registered
+    long setup = System.nanoTime();
+    for (BaseAgent agent : agents.values()) {
+      while (!(agent instanceof RoomManagerAgent) && !agent.isRegistered()
+              && System.nanoTime() - setup < TIMEOUT * 1_000_000L) {
+        Thread.sleep(1);
+      }
+    }
+
+    AtomicBoolean reading = new AtomicBoolean(httpRate > 0);
+    AtomicLong reads = new AtomicLong();
+    List<Thread> clients = new ArrayList<>();
+    if (httpRate > 0) {
+      URL url = new URL("http://localhost:" + environment.getHttpPort() + "/state");
+      for (int i = 0; i < HTTP_CLIENTS; i++) {
+        Thread client = new Thread(() -> read(url, httpRate / HTTP_CLIENTS, reading, reads), "http-client-" + i);
+        client.start();
+        clients.add(client);
+      }
+    }
+    long readStart = System.nanoTime();
+
+    Result result = new Result(events);
+    for (int event = 0; event < events; event++) {
+      long sentBefore = countSent(agents);
+      Map<String, Integer> contractsBefore = countContracts(agents);
+      long start = System.nanoTime();
+      environment.setConditions("low", weather);
+      while (!"high".equals(environment.getEnvironmentState().getIlluminance())
+              && System.nanoTime() - start < TIMEOUT * 1_000_000L) {
+        Thread.sleep(1);
+      }
+      long latency = (System.nanoTime() - start) / 1_000_000L;
+      Thread.sleep(SETTLE);
+      long messages = countSent(agents) - sentBefore;
+
+      if (!"high".equals(environment.getEnvironmentState().getIlluminance())) {
+        break;
+      }
+      result.remediated++;
+      for (Map.Entry<String, Integer> entry : countContracts(agents).entrySet()) {
+        result.contracts.computeIfAbsent(entry.getKey(), participant -> new ArrayList<>())
+                .add(entry.getValue() - contractsBefore.get(entry.getKey()));
+      }
+      if (event == 0) {
+        result.firstLatency = latency;
+      } else {
+        result.latencies.add(latency);
+        result.maxMessages = Math.max(result.maxMessages, messages);
+      }
+    }
+
+    reading.set(false);
+    for (Thread client : clients) {
+      client.join();
+    }
+    result.reads = reads.get();
+    result.readNanos = System.nanoTime() - readStart;
+
+    for (AgentController controller : controllers) {
+      InProcessPlatform.kill(controller);
+    }
+    System.out.printf("%-16s latency p50 %d ms, max %d ms, at most %d messages per event, %d reads per second%n",
+            name, result.p50(), result.max(), result.maxMessages, result.readsPerSecond());
+    return result;
+  }
+
+  // Reads the URL at a fixed rate until reading is stopped. The body is read to the end, so that the connection is
+  // kept alive for the next read.
+  private static void read(URL url, long rate, AtomicBoolean reading, AtomicLong reads) {
+    long interval = 1_000_000_000L / Math.max(1, rate);
+    long next = System.nanoTime();
+    byte[] buffer = new byte[1024];
+    while (reading.get()) {
+      try {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try (InputStream in = connection.getInputStream()) {
+          while (in.read(buffer) >= 0) {
+            // The body is only counted as read
+          }
+        }
+        if (connection.getResponseCode() == 200) {
+          reads.incrementAndGet();
+        }
+      } catch (IOException e) {
+        // Failed reads are not counted
+      }
+      next += interval;
+      LockSupport.parkNanos(next - System.nanoTime());
+    }
+  }
+
+  private static long countSent(Map<String, BaseAgent> agents) {
+    long sent = 0;
+    for (BaseAgent agent : agents.values()) {
+      sent += agent.getSentMessages() - agent.getSentNotifications();
+    }
+    return sent;
+  }
+
+  private static Map<String, Integer> countContracts(Map<String, BaseAgent> agents) {
+    Map<String, Integer> contracts = new LinkedHashMap<>();
+    for (Map.Entry<String, BaseAgent> entry : agents.entrySet()) {
+      if (entry.getValue() instanceof CNPParticipant) {
+        contracts.put(entry.getKey(), ((CNPParticipant) entry.getValue()).getCompletedContracts());
+      }
+    }
+    return contracts;
+  }
+}
@@ -0,0 +1,235 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.cnp.initiators;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * <p>Checks the compiled {@link RuleNetwork} against a naive evaluation that tests every condition of every rule
+ * after each asserted fact.</p>
+ */
+class RuleNetworkTest {
+
+  private static final int ROOMS = 5;
+  private static final int RULES = 400;
+  private static final int UPDATES = 100_000;
+
+  private static final String[] ILLUMINANCE = {"low", "high"};
+  private static final String[] WEATHER = {"sunny", "cloudy", "rainy"};
+  private static final String[] OPERATORS = {"=", "!=", "<", "<=", ">", ">="};
+
+  /**
+   * <p>A NaiveCondition is a condition of a generated rule, which is tested against the current facts.</p>
+   */
+  private static final class NaiveCondition {
+    private final String fact;
+    private final String operator;
+    private final String value;
+
+    private NaiveCondition(String fact, String operator, String value) {
+      this.fact = fact;
+      this.operator = operator;
+      this.value = value;
+    }
+
+    private boolean test(Map<String, String> facts) {
+      String current = facts.get(fact);
+      if (current == null) {
+        return false;
+      }
+      switch (operator) {
+        case "=":
+          return value.equals(current);
+        case "!=":
+          return !value.equals(current);
+        default:
+          double number;
+          try {
+            number = Double.parseDouble(current);
+          } catch (NumberFormatException e) {
+            return false;
+          }
+          double threshold = Double.parseDouble(value);
+          switch (operator) {
+            case "<":
+              return number < threshold;
+            case "<=":
+              return number <= threshold;
+            case ">":
+              return number > threshold;
+            default:
+              return number >= threshold;
+          }
+      }
+    }
+
+    @Override
+    public String toString() {
+      return fact + " " + operator + " " + value;
+    }
+  }
+
+  /**
+   * <p>A Recorder keeps the rules that the listener of the network reports as active, per room.</p>
+   */
+  private static final class Recorder implements RuleNetwork.Listener {
+    private final Map<String, boolean[]> active = new HashMap<>();
+    private final List<Integer> rooms = new ArrayList<>();
+
+    @Override
+    public void activated(RuleNetwork.Rule rule, int room) {
+      record(rule, room, true);
+    }
+
+    @Override
+    public void deactivated(RuleNetwork.Rule rule, int room) {
+      record(rule, room, false);
+    }
+
+    private void record(RuleNetwork.Rule rule, int room, boolean activated) {
+      boolean[] states = active.computeIfAbsent(rule.getName(), name -> new boolean[ROOMS]);
+      assertEquals(!activated, states[room], rule.getName() + " fired twice in room " + room);
+      states[room] = activated;
+      rooms.add(room);
+    }
+
+    private boolean isActive(String rule, int room) {
+      boolean[] states = active.get(rule);
+      return states != null && states[room];
+    }
+  }
+
+  @Test
+  void networkMatchesNaiveEvaluationOfRandomRules() throws IOException {
+    Random random = new Random(42);
+
+    // Generate the rules, and keep their conditions, mechanisms and weights for the naive evaluation
+    StringBuilder file = new StringBuilder("# Generated rules\n");
+    List<List<NaiveCondition>> conditions = new ArrayList<>();
+    List<String> mechanisms = new ArrayList<>();
+    List<Double> weights = new ArrayList<>();
+    for (int i = 0; i < RULES; i++) {
+      List<NaiveCondition> rule = new ArrayList<>();
+      int size = 1 + random.nextInt(3);
+      for (int c = 0; c < size; c++) {
+        rule.add(randomCondition(random));
+      }
+      conditions.add(rule);
+      file.append("rule r").append(i).append(": ");
+      for (int c = 0; c < size; c++) {
+        file.append(c > 0 ? " and " : "").append(rule.get(c));
+      }
+      if (random.nextBoolean()) {
+        mechanisms.add(null);
+        weights.add(0.0);
+        file.append(" -> negotiate service-").append(random.nextInt(4)).append('\n');
+      } else {
+        String mechanism = "mechanism-" + random.nextInt(4);
+        double weight = 1 + random.nextInt(100);
+        mechanisms.add(mechanism);
+        weights.add(weight);
+        file.append(" -> prefer ").append(mechanism).append(' ').append((int) weight).append('\n');
+      }
+    }
+
+    RuleNetwork network = RuleNetwork.compile(new StringReader(file.toString()), ROOMS);
+    Recorder recorder = new Recorder();
+    network.setListener(recorder);
+    assertEquals(RULES, network.getRules().size());
+    assertTrue(network.getConditions() < RULES * 2, "conditions are shared among rules");
+
+    List<Map<String, String>> facts = new ArrayList<>();
+    for (int room = 0; room < ROOMS; room++) {
+      facts.add(new HashMap<>());
+    }
+    for (int update = 0; update < UPDATES; update++) {
+      int room = random.nextInt(ROOMS);
+      String fact;
+      String value;
+      switch (random.nextInt(3)) {
+        case 0:
+          fact = "illuminance";
+          value = ILLUMINANCE[random.nextInt(ILLUMINANCE.length)];
+          break;
+        case 1:
+          fact = "weather";
+          value = WEATHER[random.nextInt(WEATHER.length)];
+          break;
+        default:
+          // Sensors may report values that are not numbers
+          fact = "lux";
+          value = random.nextInt(20) == 0 ? "n/a" : String.valueOf(random.nextInt(1001));
+      }
+      facts.get(room).put(fact, value);
+      recorder.rooms.clear();
+      network.assertFact(room, fact, value);
+
+      for (int other : recorder.rooms) {
+        assertEquals(room, other, "a rule fired in another room than the room of the fact");
+      }
+      Map<String, Double> preferences = new HashMap<>();
+      for (int i = 0; i < RULES; i++) {
+        boolean expected = true;
+        for (NaiveCondition condition : conditions.get(i)) {
+          expected &= condition.test(facts.get(room));
+        }
+        RuleNetwork.Rule rule = network.getRules().get(i);
+        assertEquals(expected, network.isActive(rule, room), "update " + update + ": " + rule);
+        assertEquals(expected, recorder.isActive(rule.getName(), room), "update " + update + ": " + rule);
+        if (expected && mechanisms.get(i) != null) {
+          preferences.merge(mechanisms.get(i), weights.get(i), Double::sum);
+        }
+      }
+      for (int m = 0; m < 4; m++) {
+        String mechanism = "mechanism-" + m;
+        assertEquals(preferences.getOrDefault(mechanism, 0.0), network.getPreference(room, mechanism),
+                "update " + update + ": preference of " + mechanism);
+      }
+    }
+  }
+
+  private static NaiveCondition randomCondition(Random random) {
+    switch (random.nextInt(3)) {
+      case 0:
+        return new NaiveCondition("illuminance", OPERATORS[random.nextInt(2)],
+                ILLUMINANCE[random.nextInt(ILLUMINANCE.length)]);
+      case 1:
+        return new NaiveCondition("weather", OPERATORS[random.nextInt(2)], WEATHER[random.nextInt(WEATHER.length)]);
+      default:
+        return new NaiveCondition("lux", OPERATORS[random.nextInt(OPERATORS.length)],
+                String.valueOf(50 * random.nextInt(21)));
+    }
+  }
+
+  @Test
+  void ruleFiresOnlyWhenItsConditionsBecomeTrue() throws IOException {
+    RuleNetwork network = RuleNetwork.compile(new StringReader(
+            "rule low-illuminance: illuminance = low -> negotiate increase-illuminance"), 1);
+    Recorder recorder = new Recorder();
+    network.setListener(recorder);
+
+    network.assertFact(0, "illuminance", "low");
+    network.assertFact(0, "illuminance", "low");
+    assertEquals(1, recorder.rooms.size());
+    network.assertFact(0, "illuminance", "high");
+    network.assertFact(0, "illuminance", "low");
+    assertEquals(3, recorder.rooms.size());
+  }
+
+  @Test
+  void invalidRuleIsRejectedWithItsLine() {
+    IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> RuleNetwork.compile(
+            new StringReader("# comment\nrule broken: illuminance ~ low -> negotiate x"), 1));
+    assertTrue(e.getMessage().contains("line 2"), e.getMessage());
+  }
+}
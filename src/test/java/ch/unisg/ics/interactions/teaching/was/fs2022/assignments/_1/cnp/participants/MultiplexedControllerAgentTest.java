@@ -0,0 +1,71 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.cnp.participants;
+
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.InProcessPlatform;
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.cnp.initiators.RoomManagerAgent;
+import ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.environment.BuildingEnvironmentAgent;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * <p>Checks that the {@link MultiplexedControllerAgent} offers the mechanism that suits the weather of the room,
+ * like the room manager chooses between a {@link BlindsControllerAgent} and a {@link LampControllerAgent}.</p>
+ * <p>The end-to-end scenario starts a headless environment of one room, a multiplexed controller with a lamp and
+ * blinds in the room, and a room manager of the room. It makes the room cloudy, lets the illuminance go low, and
+ * waits until the controller actuated a device.</p>
+ */
+class MultiplexedControllerAgentTest {
+
+  // The time (in ms) that the test waits for the agents to start, and for the remediation of the room
+  private static final long WARM_UP = 2000;
+  private static final long TIMEOUT = 10000;
+
+  private static InProcessPlatform platform;
+
+  @BeforeAll
+  static void startPlatform() throws Exception {
+    platform = new InProcessPlatform();
+  }
+
+  @AfterAll
+  static void stopPlatform() throws Exception {
+    platform.close();
+  }
+
+  @Test
+  void mechanismSuitsTheWeather() {
+    int[] both = {1, 1};
+    assertEquals(0, MultiplexedControllerAgent.chooseMechanism(both, "sunny"));
+    assertEquals(1, MultiplexedControllerAgent.chooseMechanism(both, "cloudy"));
+    assertEquals(0, MultiplexedControllerAgent.chooseMechanism(both, null));
+    assertEquals(0, MultiplexedControllerAgent.chooseMechanism(new int[]{1, 0}, "cloudy"));
+    assertEquals(1, MultiplexedControllerAgent.chooseMechanism(new int[]{0, 1}, "sunny"));
+    assertEquals(-1, MultiplexedControllerAgent.chooseMechanism(new int[]{0, 0}, "cloudy"));
+  }
+
+  @Test
+  void cloudyRoomIsRemediatedByLamp() throws Exception {
+    BuildingEnvironmentAgent environment = new BuildingEnvironmentAgent();
+    platform.start("ENV-cloudy", environment, "gui=false", "rooms=1", "notify-period=100", "topic-period=100");
+    long setup = System.currentTimeMillis();
+    while (!environment.isRegistered() && System.currentTimeMillis() - setup < TIMEOUT) {
+      Thread.sleep(1);
+    }
+    environment.setReading("1", 1000, "cloudy");
+
+    MultiplexedControllerAgent devices = new MultiplexedControllerAgent();
+    platform.start("MUX-cloudy", devices, "rooms=1", "lamps=1", "blinds=1");
+    platform.start("MNG-cloudy", new RoomManagerAgent(), "rooms=1");
+    Thread.sleep(WARM_UP);
+
+    environment.setIlluminance("1", "low");
+    long start = System.currentTimeMillis();
+    while (devices.getActuatedDevices() == 0 && System.currentTimeMillis() - start < TIMEOUT) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, devices.getActuatedDevices("turn-on-light"), "actuated lamps");
+    assertEquals(0, devices.getActuatedDevices("raise-blinds"), "actuated blinds");
+  }
+}
@@ -0,0 +1,94 @@
+package ch.unisg.ics.interactions.teaching.was.fs2022.assignments._1.common;
+
+import jade.core.AID;
+import jade.lang.acl.ACLMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * <p>Checks that a {@link TrafficRecorder} writes its records in the background, and that a
+ * {@link TrafficReplayer.Reader} reads them back.</p>
+ */
+class TrafficRecorderTest {
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void recordsAreWrittenWithinTheFlushInterval() throws Exception {
+    Path log = dir.resolve("idle.acl");
+    try (TrafficRecorder recorder = new TrafficRecorder(log)) {
+      recorder.record(TrafficRecorder.RECEIVED, message(0), System.currentTimeMillis());
+      // No further message is recorded, so only the writer thread writes the record
+      Thread.sleep(1500);
+      assertEquals(1, count(log));
+    }
+  }
+
+  @Test
+  void closedLogContainsAllRecordsInOrder() throws Exception {
+    Path log = dir.resolve("busy.acl");
+    int messages = 20_000;
+    try (TrafficRecorder recorder = new TrafficRecorder(log)) {
+      for (int i = 0; i < messages; i++) {
+        recorder.record(i % 2 == 0 ? TrafficRecorder.SENT : TrafficRecorder.RECEIVED, message(i), i);
+      }
+      recorder.flush();
+      assertEquals(messages, count(log));
+    }
+
+    try (TrafficReplayer.Reader reader = new TrafficReplayer.Reader(log)) {
+      for (int i = 0; i < messages; i++) {
+        TrafficReplayer.Reader.Entry entry = reader.next();
+        assertEquals(i, entry.timestamp);
+        assertEquals(String.valueOf(i), entry.message.getContent());
+        assertEquals("7", entry.message.getUserDefinedParameter("lux"));
+      }
+      assertNull(reader.next());
+    }
+  }
+
+  @Test
+  void largeRecordIsWritten() throws Exception {
+    Path log = dir.resolve("large.acl");
+    ACLMessage large = message(0);
+    large.setContent(new String(new char[200_000]).replace('\0', 'x'));
+    try (TrafficRecorder recorder = new TrafficRecorder(log)) {
+      recorder.record(TrafficRecorder.SENT, message(1), 1);
+      recorder.record(TrafficRecorder.SENT, large, 2);
+      recorder.record(TrafficRecorder.SENT, message(3), 3);
+    }
+    try (TrafficReplayer.Reader reader = new TrafficReplayer.Reader(log)) {
+      assertEquals("1", reader.next().message.getContent());
+      assertEquals(200_000, reader.next().message.getContent().length());
+      assertEquals("3", reader.next().message.getContent());
+      assertNull(reader.next());
+    }
+  }
+
+  private static ACLMessage message(int i) {
+    ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+    msg.setSender(new AID("ENV@localhost:1099/JADE", AID.ISGUID));
+    msg.addReceiver(new AID("MNG@localhost:1099/JADE", AID.ISGUID));
+    msg.setConversationId("subscribe-read-illuminance");
+    msg.setContent(String.valueOf(i));
+    msg.addUserDefinedParameter("lux", "7");
+    return msg;
+  }
+
+  private static int count(Path log) throws IOException {
+    int count = 0;
+    try (TrafficReplayer.Reader reader = new TrafficReplayer.Reader(log)) {
+      while (reader.next() != null) {
+        count++;
+      }
+    }
+    return count;
+  }
+}